@@ -0,0 +1,42 @@
+package com.ac.iisc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tiny {@code --key value} command-line parser shared by the developer tools
+ * ({@link MockLLMServer}, {@link MockLLMHarness}, {@link ShardRunner}).
+ *
+ * <p>Every argument must start with {@code --}; a key followed by another
+ * key (or by nothing) is a flag with the value {@code "true"}. Unknown keys
+ * are kept, so each tool only reads the options it knows.</p>
+ */
+public final class CliArgs
+{
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * Parse {@code argv} followed by {@code extra} (e.g. defaults appended by
+     * the caller); a later occurrence of a key wins.
+     */
+    public CliArgs(String[] argv, String... extra)
+    {
+        List<String> all = new ArrayList<>(List.of(argv));
+        all.addAll(List.of(extra));
+        for (int i = 0; i < all.size(); i++) {
+            String a = all.get(i);
+            if (!a.startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + a);
+            String key = a.substring(2);
+            if (i + 1 < all.size() && !all.get(i + 1).startsWith("--")) values.put(key, all.get(++i));
+            else values.put(key, "true");
+        }
+    }
+
+    public boolean has(String key) { return values.containsKey(key); }
+    public String get(String key, String def) { return values.getOrDefault(key, def); }
+    public int getInt(String key, int def) { return has(key) ? Integer.parseInt(values.get(key)) : def; }
+    public long getLong(String key, long def) { return has(key) ? Long.parseLong(values.get(key)) : def; }
+    public double getDouble(String key, double def) { return has(key) ? Double.parseDouble(values.get(key)) : def; }
+}
@@ -0,0 +1,206 @@
+package com.ac.iisc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Interned, token-based form of a canonical digest string.
+ *
+ * <p>{@link Calcite#canonicalDigest(org.apache.calcite.rel.RelNode)} strings repeat the same
+ * fragments (table names, conjuncts such as {@code =($x,$x)}, operator
+ * prefixes) many times, and the comparison ladder in {@link Calcite} derives
+ * about a dozen normalized variants per plan. A {@code CompactDigest} splits
+ * a digest at its structural delimiters ({@code | & { } [ ]}) and stores the
+ * fragments as ids in a {@link Symbols} table, so each distinct fragment is
+ * held once and every variant is an {@code int[]}. Equality is
+ * {@link Arrays#equals(int[], int[])} behind a cached hash.</p>
+ *
+ * <p>A symbol table belongs to one comparison (the ladder that owns it) and
+ * is dropped with it; it is not thread-safe and needs no locking. Two
+ * digests are only ever equal if they share a table.</p>
+ *
+ * <p>The split is lossless: {@link #toString()} rebuilds the exact digest
+ * string on demand (it is not cached). {@link #map(String, UnaryOperator)}
+ * first checks the tokens for the text a normalization needs to find, and
+ * only renders the string for the normalizers that can change it.</p>
+ */
+public final class CompactDigest
+{
+    /**
+     * Fragments of the digests of one comparison, by id. Lookups hash a span
+     * of the digest being split, so a fragment's text is only copied the
+     * first time it is seen.
+     */
+    public static final class Symbols
+    {
+        private String[] fragments = new String[64];
+        private int[] hashes = new int[64];
+        private int size;
+        /** Open-addressing table of {@code id + 1}; 0 marks an empty slot. */
+        private int[] slots = new int[128];
+        /** Per trigger text and fragment id: 0 not yet checked, 1 contains it, 2 does not. */
+        private final Map<String, byte[]> triggers = new HashMap<>();
+
+        /** Number of distinct fragments in this table. */
+        public int size()
+        {
+            return size;
+        }
+
+        private String fragment(int id)
+        {
+            return fragments[id];
+        }
+
+        /** Id of the fragment {@code s[start, end)}, added if it is new. */
+        private int intern(CharSequence s, int start, int end)
+        {
+            int h = 0;
+            for (int i = start; i < end; i++) h = 31 * h + s.charAt(i);
+            int mask = slots.length - 1;
+            int slot = spread(h) & mask;
+            while (slots[slot] != 0) {
+                int id = slots[slot] - 1;
+                String f = fragments[id];
+                if (hashes[id] == h && f.length() == end - start && DigestScanner.regionMatches(s, start, f)) return id;
+                slot = (slot + 1) & mask;
+            }
+            if (size == fragments.length) {
+                fragments = Arrays.copyOf(fragments, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            int id = size++;
+            fragments[id] = s.subSequence(start, end).toString();
+            hashes[id] = h;
+            slots[slot] = id + 1;
+            if (2 * size > slots.length) rehash();
+            return id;
+        }
+
+        private void rehash()
+        {
+            int[] grown = new int[slots.length * 2];
+            int mask = grown.length - 1;
+            for (int id = 0; id < size; id++) {
+                int slot = spread(hashes[id]) & mask;
+                while (grown[slot] != 0) slot = (slot + 1) & mask;
+                grown[slot] = id + 1;
+            }
+            slots = grown;
+        }
+
+        private static int spread(int h)
+        {
+            return h ^ (h >>> 16);
+        }
+
+        /** True if fragment {@code id} contains {@code trigger}; cached per fragment. */
+        private boolean contains(int id, String trigger)
+        {
+            byte[] state = triggers.get(trigger);
+            if (state == null || state.length <= id) {
+                state = state == null ? new byte[fragments.length] : Arrays.copyOf(state, fragments.length);
+                triggers.put(trigger, state);
+            }
+            if (state[id] == 0) state[id] = (byte) (fragments[id].contains(trigger) ? 1 : 2);
+            return state[id] == 1;
+        }
+    }
+
+    private final Symbols symbols;
+    private final int[] tokens;
+    private final int length;
+    private final int hash;
+
+    private CompactDigest(Symbols symbols, int[] tokens, int length)
+    {
+        this.symbols = symbols;
+        this.tokens = tokens;
+        this.length = length;
+        this.hash = Arrays.hashCode(tokens);
+    }
+
+    /** Compact form of {@code digest} (null is treated as the digest {@code "null"}) over {@code symbols}. */
+    public static CompactDigest of(Symbols symbols, String digest)
+    {
+        if (symbols == null) throw new IllegalArgumentException("symbols must not be null");
+        String s = digest == null ? "null" : digest;
+        int[] buf = new int[Math.max(4, s.length() / 8)];
+        int n = 0;
+        int start = 0;
+        while (start < s.length()) {
+            boolean delim = isDelimiter(s.charAt(start));
+            int end = start + 1;
+            while (end < s.length() && isDelimiter(s.charAt(end)) == delim) end++;
+            if (n == buf.length) buf = Arrays.copyOf(buf, n * 2);
+            buf[n++] = symbols.intern(s, start, end);
+            start = end;
+        }
+        return new CompactDigest(symbols, Arrays.copyOf(buf, n), s.length());
+    }
+
+    /**
+     * Apply a string-to-string digest normalization that can only change a
+     * digest containing {@code trigger}. Returns {@code this} when no token
+     * contains the trigger (without rendering the string) or when the
+     * normalization leaves the digest unchanged.
+     *
+     * @param trigger text without delimiters that the normalization looks for;
+     *                it therefore always lies within a single token
+     */
+    public CompactDigest map(String trigger, UnaryOperator<String> normalization)
+    {
+        if (trigger == null || trigger.isEmpty()) throw new IllegalArgumentException("trigger is required");
+        for (int i = 0; i < trigger.length(); i++) {
+            if (isDelimiter(trigger.charAt(i))) throw new IllegalArgumentException("trigger contains a delimiter: " + trigger);
+        }
+        if (!containsTrigger(trigger)) return this;
+        String before = toString();
+        String after = normalization.apply(before);
+        return before.equals(after) ? this : of(symbols, after);
+    }
+
+    private boolean containsTrigger(String trigger)
+    {
+        for (int t : tokens) {
+            if (symbols.contains(t, trigger)) return true;
+        }
+        return false;
+    }
+
+    /** Number of tokens (fragments) in this digest. */
+    public int tokenCount()
+    {
+        return tokens.length;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof CompactDigest other)) return false;
+        return symbols == other.symbols && hash == other.hash && Arrays.equals(tokens, other.tokens);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    /** The digest string this was built from (rebuilt on every call). */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(length);
+        for (int t : tokens) sb.append(symbols.fragment(t));
+        return sb.toString();
+    }
+
+    private static boolean isDelimiter(char c)
+    {
+        return c == '|' || c == '&' || c == '{' || c == '}' || c == '[' || c == ']';
+    }
+}
@@ -0,0 +1,307 @@
+package com.ac.iisc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allocation-light scanning primitives for digest and SQL text.
+ *
+ * <p>The digest normalizers in {@link Calcite} all do the same few things:
+ * find the parenthesis that closes a call, split its arguments at a separator
+ * (at any depth, or at the top level of {@code () {} []}), sort the pieces and
+ * write them back, or substitute placeholders for input references. Here the
+ * pieces are <em>spans</em>, a {@code long} packing the start and end offset
+ * into the scanned {@link CharSequence}, so splitting, trimming and sorting
+ * never copy characters. Output goes through an {@link Output}, which only
+ * starts a {@link StringBuilder} at the first real change; a pass that
+ * changes nothing returns its input string as is.</p>
+ */
+public final class DigestScanner
+{
+    private static final long[] NO_SPANS = new long[0];
+
+    private DigestScanner() { }
+
+    /** Span of {@code [start, end)}. */
+    public static long span(int start, int end)
+    {
+        return ((long) start << 32) | (end & 0xffffffffL);
+    }
+
+    public static int start(long span)
+    {
+        return (int) (span >>> 32);
+    }
+
+    public static int end(long span)
+    {
+        return (int) span;
+    }
+
+    public static int length(long span)
+    {
+        return end(span) - start(span);
+    }
+
+    /**
+     * Index of the {@code ')'} closing the {@code '('} at {@code open},
+     * counting parentheses only; -1 if the text ends first.
+     */
+    public static int matchingParen(CharSequence s, int open)
+    {
+        int depth = 0;
+        for (int i = open; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '(') {
+                depth++;
+            } else if (ch == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Spans of {@code [from, to)} separated by {@code sep} outside any
+     * {@code ()}, {@code {}} or {@code []}; unbalanced closers are ignored.
+     * Empty segments are kept.
+     */
+    public static long[] splitTopLevel(CharSequence s, int from, int to, char sep)
+    {
+        long[] out = new long[4];
+        int n = 0;
+        int paren = 0;
+        int brace = 0;
+        int brack = 0;
+        int segStart = from;
+        for (int i = from; i < to; i++) {
+            char ch = s.charAt(i);
+            if (ch == '(') paren++;
+            else if (ch == ')') paren = Math.max(0, paren - 1);
+            else if (ch == '{') brace++;
+            else if (ch == '}') brace = Math.max(0, brace - 1);
+            else if (ch == '[') brack++;
+            else if (ch == ']') brack = Math.max(0, brack - 1);
+            else if (ch == sep && paren == 0 && brace == 0 && brack == 0) {
+                if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                out[n++] = span(segStart, i);
+                segStart = i + 1;
+            }
+        }
+        if (n == out.length) out = Arrays.copyOf(out, n + 1);
+        out[n++] = span(segStart, to);
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Spans of {@code [from, to)} separated by every {@code sep}, regardless
+     * of nesting, with {@link String#split(String)} semantics: trailing empty
+     * segments are dropped, and a region without a separator is one segment.
+     */
+    public static long[] split(CharSequence s, int from, int to, char sep)
+    {
+        long[] out = new long[4];
+        int n = 0;
+        int segStart = from;
+        boolean found = false;
+        for (int i = from; i <= to; i++) {
+            if (i < to && s.charAt(i) != sep) continue;
+            if (i < to) found = true;
+            if (n == out.length) out = Arrays.copyOf(out, n * 2);
+            out[n++] = span(segStart, i);
+            segStart = i + 1;
+        }
+        if (!found) return new long[] { span(from, to) };
+        while (n > 0 && length(out[n - 1]) == 0) n--;
+        return n == 0 ? NO_SPANS : Arrays.copyOf(out, n);
+    }
+
+    /** {@code span} without leading and trailing characters {@code <= ' '} (as {@link String#trim()}). */
+    public static long trim(CharSequence s, long span)
+    {
+        int a = start(span);
+        int b = end(span);
+        while (a < b && s.charAt(a) <= ' ') a++;
+        while (b > a && s.charAt(b - 1) <= ' ') b--;
+        return span(a, b);
+    }
+
+    public static boolean startsWith(CharSequence s, long span, String prefix)
+    {
+        if (length(span) < prefix.length()) return false;
+        int a = start(span);
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(a + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public static boolean endsWith(CharSequence s, long span, char ch)
+    {
+        return length(span) > 0 && s.charAt(end(span) - 1) == ch;
+    }
+
+    /** Compare two spans of {@code s} in {@link String#compareTo(String)} order. */
+    public static int compare(CharSequence s, long a, long b)
+    {
+        int ia = start(a);
+        int ib = start(b);
+        int la = length(a);
+        int lb = length(b);
+        int n = Math.min(la, lb);
+        for (int k = 0; k < n; k++) {
+            char ca = s.charAt(ia + k);
+            char cb = s.charAt(ib + k);
+            if (ca != cb) return ca - cb;
+        }
+        return la - lb;
+    }
+
+    /** Sort {@code spans} in place by their text (stable merge sort); returns {@code spans}. */
+    public static long[] sort(CharSequence s, long[] spans)
+    {
+        if (spans.length < 2) return spans;
+        long[] buf = new long[spans.length];
+        for (int width = 1; width < spans.length; width *= 2) {
+            for (int lo = 0; lo < spans.length - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, spans.length);
+                if (compare(s, spans[mid - 1], spans[mid]) <= 0) continue;
+                System.arraycopy(spans, lo, buf, lo, hi - lo);
+                int i = lo;
+                int j = mid;
+                for (int k = lo; k < hi; k++) {
+                    if (i < mid && (j >= hi || compare(s, buf[i], buf[j]) <= 0)) spans[k] = buf[i++];
+                    else spans[k] = buf[j++];
+                }
+            }
+        }
+        return spans;
+    }
+
+    public static boolean isSorted(CharSequence s, long[] spans)
+    {
+        for (int i = 1; i < spans.length; i++) {
+            if (compare(s, spans[i - 1], spans[i]) > 0) return false;
+        }
+        return true;
+    }
+
+    /** True if {@code [from, to)} already reads as {@code spans} joined by {@code sep}. */
+    public static boolean joinedEquals(CharSequence s, long[] spans, char sep, int from, int to)
+    {
+        int pos = from;
+        for (int i = 0; i < spans.length; i++) {
+            if (i > 0) {
+                if (pos >= to || s.charAt(pos) != sep) return false;
+                pos++;
+            }
+            int a = start(spans[i]);
+            int len = length(spans[i]);
+            if (pos + len > to) return false;
+            if (a != pos) {
+                for (int k = 0; k < len; k++) {
+                    if (s.charAt(a + k) != s.charAt(pos + k)) return false;
+                }
+            }
+            pos += len;
+        }
+        return pos == to;
+    }
+
+    /** Append {@code spans} of {@code s} joined by {@code sep}. */
+    public static StringBuilder appendJoined(StringBuilder out, CharSequence s, long[] spans, char sep)
+    {
+        for (int i = 0; i < spans.length; i++) {
+            if (i > 0) out.append(sep);
+            out.append(s, start(spans[i]), end(spans[i]));
+        }
+        return out;
+    }
+
+    /** The spans as strings, for callers that keep the pieces. */
+    public static List<String> strings(String s, long[] spans)
+    {
+        List<String> out = new ArrayList<>(spans.length);
+        for (long sp : spans) out.add(s.substring(start(sp), end(sp)));
+        return out;
+    }
+
+    /** End of the run of ASCII digits starting at {@code i} ({@code i} itself if there is none). */
+    public static int skipDigits(CharSequence s, int i)
+    {
+        while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') i++;
+        return i;
+    }
+
+    /** End of the run of {@code [A-Za-z0-9_]} starting at {@code i}. */
+    public static int skipWord(CharSequence s, int i)
+    {
+        while (i < s.length()) {
+            char ch = s.charAt(i);
+            if (!(ch == '_' || (ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z'))) break;
+            i++;
+        }
+        return i;
+    }
+
+    public static boolean regionMatches(CharSequence s, int i, String text)
+    {
+        if (i + text.length() > s.length()) return false;
+        for (int k = 0; k < text.length(); k++) {
+            if (s.charAt(i + k) != text.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy-on-write output of one pass over a source string. Unchanged text
+     * is copied lazily, in one piece, up to the next edit; if no edit is made
+     * {@link #finish()} returns the source itself.
+     */
+    public static final class Output
+    {
+        private final String source;
+        private final int from;
+        private final int to;
+        private StringBuilder out;
+        private int copied;
+
+        /** Output over the whole of {@code source}. */
+        public Output(String source)
+        {
+            this(source, 0, source.length());
+        }
+
+        /** Output over {@code [from, to)} of {@code source}; text outside is dropped. */
+        public Output(String source, int from, int to)
+        {
+            this.source = source;
+            this.from = from;
+            this.to = to;
+            this.copied = from;
+        }
+
+        /**
+         * Replace {@code [start, end)} of the source: copies the unchanged text
+         * before {@code start} and returns the builder to append the
+         * replacement to. Edits must come in source order.
+         */
+        public StringBuilder edit(int start, int end)
+        {
+            if (start < copied || end < start) throw new IllegalArgumentException("edits must be in order: " + start + ".." + end);
+            if (out == null) out = new StringBuilder(to - from + 16);
+            out.append(source, copied, start);
+            copied = end;
+            return out;
+        }
+
+        public String finish()
+        {
+            if (out == null) return from == 0 && to == source.length() ? source : source.substring(from, to);
+            out.append(source, copied, to);
+            return out.toString();
+        }
+    }
+}
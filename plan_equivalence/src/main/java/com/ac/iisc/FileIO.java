@@ -307,6 +307,18 @@ public class FileIO
 		return (v == null || v.isBlank()) ? defaultValue : v.trim();
 	}
 
+	/**
+	 * The effective configuration as sorted {@code key=value} lines, e.g. for
+	 * the engine fingerprint of {@link RunManifest}.
+	 */
+	static String describeConfig() {
+		StringBuilder sb = new StringBuilder();
+		for (String key : new java.util.TreeSet<>(getConfig().stringPropertyNames())) {
+			sb.append(key).append('=').append(getConfig().getProperty(key)).append('\n');
+		}
+		return sb.toString();
+	}
+
 	// Typed accessors
 	public static String getOriginalSqlPath() { return ORIGINAL_SQL_PATH; }
 	public static String getRewrittenSqlPath() { return REWRITTEN_SQL_PATH; }
@@ -0,0 +1,384 @@
+package com.ac.iisc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.calcite.tools.Frameworks;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs the local comparison ladder ({@link Test#checkLocally}) and the
+ * verification of LLM-proposed transformations
+ * ({@link Test#runVerification}) in a pool of pre-warmed child JVMs, each
+ * with its own heap and wall-clock cap.
+ *
+ * <p>A few pairs exhaust the heap or hit Calcite {@code AssertionError}s deep
+ * inside {@code RelDecorrelator} or {@code PROJECT_JOIN_TRANSPOSE}; in the
+ * batch JVM one such pair can stall or kill the whole run. Here a child that
+ * does not answer within {@code forked_worker_timeout_ms} is killed and the
+ * pair is reported as {@link Status#TIMEOUT}; a comparison that throws, or a
+ * child that dies (heap exhausted, JVM error), is reported as
+ * {@link Status#ERROR}. A killed or dead child, or one that threw an
+ * {@link Error}, is replaced by a fresh one, which starts warming up at once.
+ * Children are also replaced after {@code forked_worker_max_pairs} pairs so
+ * their heaps stay bounded.</p>
+ *
+ * <p>Children talk to the parent over stdin/stdout, one JSON object per line:
+ * {@code {"a": sql, "b": sql}} in, {@code {"stage": ..., "log": ...}} out
+ * for a local check; {@code {"verify": kind, "a": sql, "b": sql, "steps": [...]}}
+ * in, {@code {"equivalent": ..., "rules": [...], "reversed": ..., "variants": ...,
+ * "log": ...}} out for a verification. Either reply carries {@code "error"}
+ * instead if the comparison threw. Anything else a child prints goes to its
+ * stderr, which is inherited.</p>
+ *
+ * <p>Configuration keys in {@code config.properties}:</p>
+ * <ul>
+ *   <li>{@code forked_workers_enabled} – {@code true}/{@code false} (default false).</li>
+ *   <li>{@code forked_workers} – child JVMs (0 = {@link PairScheduler#configuredParallelism()}, default 0).</li>
+ *   <li>{@code forked_worker_heap} – {@code -Xmx} of each child (default {@code 1g}).</li>
+ *   <li>{@code forked_worker_timeout_ms} – wall-clock cap per pair (default 120000).</li>
+ *   <li>{@code forked_worker_max_pairs} – pairs before a child is recycled (default 200).</li>
+ *   <li>{@code forked_worker_jvm_args} – extra JVM options, space separated (default none).</li>
+ * </ul>
+ */
+public final class ForkedWorkerPool implements AutoCloseable
+{
+    public enum Status { OK, TIMEOUT, ERROR }
+
+    /**
+     * Result of one pair. {@code stage} is as returned by
+     * {@link Test#checkLocally} (null if unresolved) and only meaningful for
+     * {@link Status#OK}; {@code log} is the child's comparison output.
+     */
+    public record Outcome(Status status, String stage, String log, long millis) { }
+
+    /**
+     * Result of one verification. {@code result} is only meaningful for
+     * {@link Status#OK}; {@code log} is the child's comparison output.
+     */
+    public record Verdict(Status status, TransformationVerifier.Result result, String log, long millis) { }
+
+    /** A child's reply ({@code null} unless {@link Status#OK}) and the pair's log so far. */
+    private record Reply(Status status, JSONObject reply, String log, long millis) { }
+
+    /** Marks the end of a child's stdout in its reader queue. */
+    private static final String EOF = new String("EOF");
+
+    private static volatile ForkedWorkerPool shared;
+
+    private final List<String> command;
+    private final long timeoutMs;
+    private final int maxPairs;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final List<Worker> all = new ArrayList<>();
+    private volatile boolean closed;
+
+    /** Start {@code size} children with the given heap cap, per-pair timeout and recycling threshold. */
+    public ForkedWorkerPool(int size, String heap, long timeoutMs, int maxPairs, List<String> jvmArgs)
+    {
+        if (size < 1) throw new IllegalArgumentException("size must be at least 1");
+        if (timeoutMs < 1) throw new IllegalArgumentException("timeoutMs must be positive");
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-Xmx" + heap);
+        cmd.add("-XX:+ExitOnOutOfMemoryError");
+        cmd.add("-Duser.home=" + System.getProperty("user.home"));
+        cmd.addAll(jvmArgs);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(ForkedWorkerPool.class.getName());
+        this.command = List.copyOf(cmd);
+        this.timeoutMs = timeoutMs;
+        this.maxPairs = Math.max(1, maxPairs);
+        for (int i = 0; i < size; i++) idle.add(spawn());
+    }
+
+    /** True if {@code forked_workers_enabled} is set. */
+    public static boolean isEnabled()
+    {
+        return Boolean.parseBoolean(FileIO.getProperty("forked_workers_enabled", "false"));
+    }
+
+    /**
+     * Process-wide pool configured from {@code config.properties}; the
+     * children are stopped when the JVM exits.
+     */
+    public static ForkedWorkerPool getShared()
+    {
+        ForkedWorkerPool p = shared;
+        if (p == null) {
+            synchronized (ForkedWorkerPool.class) {
+                p = shared;
+                if (p == null) {
+                    int size = intProperty("forked_workers", 0);
+                    List<String> jvmArgs = new ArrayList<>();
+                    for (String a : FileIO.getProperty("forked_worker_jvm_args", "").trim().split("\\s+")) {
+                        if (!a.isEmpty()) jvmArgs.add(a);
+                    }
+                    p = new ForkedWorkerPool(
+                        size > 0 ? size : PairScheduler.configuredParallelism(),
+                        FileIO.getProperty("forked_worker_heap", "1g").trim(),
+                        intProperty("forked_worker_timeout_ms", 120_000),
+                        intProperty("forked_worker_max_pairs", 200),
+                        jvmArgs);
+                    Runtime.getRuntime().addShutdownHook(new Thread(p::close, "forked-worker-shutdown"));
+                    shared = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Run {@link Test#checkLocally} for the pair in a child JVM. Blocks until
+     * a child is free; safe to call from several threads. An interrupted
+     * caller gets {@link Status#ERROR} with its interrupt flag set.
+     */
+    public Outcome checkLocally(String sqlA, String sqlB)
+    {
+        Reply r = exchange(new JSONObject().put("a", sqlA).put("b", sqlB));
+        if (r.status() != Status.OK) return new Outcome(r.status(), null, r.log(), r.millis());
+        JSONObject reply = r.reply();
+        return new Outcome(Status.OK, reply.isNull("stage") ? null : reply.optString("stage"), r.log(), r.millis());
+    }
+
+    /**
+     * Run {@link Test#runVerification} for the pair in a child JVM; blocks
+     * like {@link #checkLocally(String, String)}.
+     */
+    public Verdict verify(Test.Verification kind, String sqlA, String sqlB, List<String> steps)
+    {
+        Reply r = exchange(new JSONObject().put("verify", kind.name()).put("a", sqlA).put("b", sqlB)
+            .put("steps", new JSONArray(steps)));
+        if (r.status() != Status.OK) return new Verdict(r.status(), null, r.log(), r.millis());
+        JSONObject reply = r.reply();
+        List<String> rules = new ArrayList<>();
+        JSONArray arr = reply.optJSONArray("rules");
+        for (int i = 0; arr != null && i < arr.length(); i++) rules.add(arr.getString(i));
+        TransformationVerifier.Result result = new TransformationVerifier.Result(reply.optBoolean("equivalent"),
+            List.copyOf(rules), reply.optBoolean("reversed"), reply.optInt("variants", 1));
+        return new Verdict(Status.OK, result, r.log(), r.millis());
+    }
+
+    /** Send {@code request} to a free child and wait for its reply. */
+    private Reply exchange(JSONObject request)
+    {
+        if (closed) throw new IllegalStateException("pool is closed");
+        Worker w;
+        try {
+            w = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Reply(Status.ERROR, null, "[ForkedWorkerPool] Interrupted\n", 0);
+        }
+        long t0 = System.nanoTime();
+        boolean healthy = false;
+        try {
+            // Startup counts against the pair's cap too: a child that cannot warm up is as stuck as one that cannot answer
+            long deadline = t0 + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            if (!w.ready) {
+                String line = w.lines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (line == null) return reply(Status.TIMEOUT, null, "[ForkedWorkerPool] Worker did not start in time\n", t0);
+                if (line == EOF) return reply(Status.ERROR, null, "[ForkedWorkerPool] Worker exited during startup" + w.exitCode() + "\n", t0);
+                w.ready = true;
+            }
+            try {
+                w.in.write(request.toString());
+                w.in.newLine();
+                w.in.flush();
+            } catch (IOException e) {
+                return reply(Status.ERROR, null, "[ForkedWorkerPool] Unable to reach worker: " + e.getMessage() + "\n", t0);
+            }
+            String line = w.lines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (line == null) {
+                return reply(Status.TIMEOUT, null, "[ForkedWorkerPool] No verdict within " + timeoutMs + " ms\n", t0);
+            }
+            if (line == EOF) {
+                return reply(Status.ERROR, null, "[ForkedWorkerPool] Worker died" + w.exitCode() + "\n", t0);
+            }
+            JSONObject reply;
+            try {
+                reply = new JSONObject(line);
+            } catch (JSONException e) {
+                return reply(Status.ERROR, null, "[ForkedWorkerPool] Unreadable reply: " + line + "\n", t0);
+            }
+            String log = reply.optString("log", "");
+            // After an Error the child exits; its JVM state is not trusted any more
+            healthy = !reply.optBoolean("fatal") && ++w.pairs < maxPairs;
+            if (reply.has("error")) {
+                return reply(Status.ERROR, null, log + "[ForkedWorkerPool] " + reply.getString("error") + "\n", t0);
+            }
+            return reply(Status.OK, reply, log, t0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return reply(Status.ERROR, null, "[ForkedWorkerPool] Interrupted\n", t0);
+        } finally {
+            if (healthy || closed) {
+                if (closed) w.destroy();
+                else idle.add(w);
+            } else {
+                w.destroy();
+                if (!closed) idle.add(spawn());
+            }
+        }
+    }
+
+    /** Stop all children. */
+    @Override
+    public void close()
+    {
+        closed = true;
+        synchronized (all) {
+            for (Worker w : all) w.destroy();
+            all.clear();
+        }
+    }
+
+    private static Reply reply(Status status, JSONObject reply, String log, long t0)
+    {
+        return new Reply(status, reply, log, (System.nanoTime() - t0) / 1_000_000);
+    }
+
+    private Worker spawn()
+    {
+        Worker w = new Worker(command);
+        synchronized (all) {
+            all.removeIf(old -> !old.process.isAlive());
+            all.add(w);
+        }
+        return w;
+    }
+
+    private static int intProperty(String key, int def)
+    {
+        try {
+            return Integer.parseInt(FileIO.getProperty(key, String.valueOf(def)).trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /** One child JVM and a daemon thread that queues its stdout lines. */
+    private static final class Worker
+    {
+        final Process process;
+        final BufferedWriter in;
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        boolean ready;
+        int pairs;
+
+        Worker(List<String> command)
+        {
+            Process p = start(command);
+            process = p;
+            if (p == null) {
+                in = new BufferedWriter(OutputStreamWriter.nullWriter());
+                lines.add(EOF);
+                return;
+            }
+            in = new BufferedWriter(new OutputStreamWriter(p.getOutputStream(), StandardCharsets.UTF_8));
+            Thread reader = new Thread(() -> {
+                try (BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = out.readLine()) != null) lines.add(line);
+                } catch (IOException e) {
+                    // Stream closed by destroy()
+                }
+                lines.add(EOF);
+            }, "forked-worker-" + p.pid());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private static Process start(List<String> command)
+        {
+            try {
+                return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            } catch (IOException e) {
+                System.err.println("[ForkedWorkerPool] Unable to start worker: " + e.getMessage());
+                return null;
+            }
+        }
+
+        String exitCode()
+        {
+            if (process == null) return "";
+            try {
+                return process.waitFor(1, TimeUnit.SECONDS) ? " (exit code " + process.exitValue() + ")" : "";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "";
+            }
+        }
+
+        void destroy()
+        {
+            if (process != null) process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Entry point of a child JVM: warm up Calcite, report ready, then answer
+     * one request (local check or verification) per stdin line until stdin
+     * closes. Exits after an
+     * {@link Error} so the parent replaces it.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        // Only protocol lines go to the real stdout
+        PrintStream protocol = new PrintStream(System.out, true, StandardCharsets.UTF_8);
+        System.setOut(System.err);
+
+        try {
+            Frameworks.getPlanner(Calcite.getFrameworkConfig()).parse("SELECT 1");
+        } catch (Exception e) {
+            // Warm-up is best effort; a real failure shows up on the first pair
+        }
+        protocol.println(new JSONObject().put("ready", true));
+
+        BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = requests.readLine()) != null) {
+            if (line.isBlank()) continue;
+            StringBuilder log = new StringBuilder();
+            JSONObject reply = new JSONObject();
+            boolean fatal = false;
+            try {
+                JSONObject request = new JSONObject(line);
+                if (request.has("verify")) {
+                    List<String> steps = new ArrayList<>();
+                    JSONArray arr = request.getJSONArray("steps");
+                    for (int i = 0; i < arr.length(); i++) steps.add(arr.getString(i));
+                    TransformationVerifier.Result result = Test.runVerification(
+                        Test.Verification.valueOf(request.getString("verify")),
+                        request.getString("a"), request.getString("b"), steps, null);
+                    reply.put("equivalent", result.isEquivalent()).put("rules", new JSONArray(result.getRules()))
+                        .put("reversed", result.isReversed()).put("variants", result.getVariantsRun());
+                } else {
+                    String stage = Test.checkLocally(request.getString("a"), request.getString("b"), log);
+                    reply.put("stage", stage == null ? JSONObject.NULL : stage);
+                }
+            } catch (Exception e) {
+                reply.put("error", "Comparison failed: " + e.getMessage());
+            } catch (Error e) {
+                reply.put("error", e.getClass().getSimpleName() + ": " + e.getMessage()).put("fatal", true);
+                fatal = true;
+            }
+            protocol.println(reply.put("log", log.toString()));
+            if (fatal) System.exit(1);
+        }
+    }
+}
@@ -2,11 +2,11 @@ package com.ac.iisc;
 
 import java.sql.SQLException;
 import java.util.List;
+import java.util.function.Predicate;
 
-import com.openai.client.OpenAIClient;
-import com.openai.client.okhttp.OpenAIOkHttpClient;
 import com.openai.models.responses.Response;
-import com.openai.models.responses.ResponseCreateParams;
+import com.openai.models.responses.ResponseOutputItem;
+import com.openai.models.responses.ResponseOutputMessage;
 import org.json.JSONArray;
 
 /**
@@ -46,6 +46,12 @@ public class LLM
      */
     private static final String DEFAULT_LLM_MODEL = "gpt-5";
 
+    /**
+     * Version of the prompt template below; bump it when PROMPT_1/PROMPT_2
+     * change so cached responses to the old wording are not reused.
+     */
+    private static final String PROMPT_VERSION = "llm-1";
+
     private static final String PROMPT_1 = """
             System Message:
             You are an expert in relational query optimization and Apache Calcite rewrite rules.
@@ -154,25 +160,16 @@ public class LLM
         // immutable List.of
         return SUPPORTED_TRANSFORMATIONS;
     }
+
+    /** Contract answer of the {@code contactLLM} methods when no assistant text could be obtained. */
+    private static final String NO_ANSWER = "false\nNo transformations found";
+
     /**
-     * Contact the LLM with two cleaned plan JSON strings and receive the assistant's
-     * text output. The method performs an environment check and a defensive
-     * extraction of assistant text from the response object.
-     *
-     * @param sqlAJSON cleaned JSON plan for query A (may be null)
-     * @param sqlBJSON cleaned JSON plan for query B (may be null)
-     * @return assistant text trimmed, or a safe "false\nNo transformations found" contract string on failure
+     * Prompt for one pair of plans: the template, the allow-list, the schema
+     * summary (only the referenced tables in compact mode) and both plans.
      */
-    public static String contactLLM(String sqlAJSON, String sqlBJSON)
+    private static String buildPrompt(PromptCompactor.Parts parts)
     {
-        // Fail fast if API key is not present in the environment
-        String apiKey = System.getenv("OPENAI_API_KEY");
-        if (apiKey == null || apiKey.isBlank()) {
-            System.err.println("[LLM] OPENAI_API_KEY is not set in the environment; skipping LLM call.");
-            // Return a minimal, valid contract string to avoid crashing callers
-            return "false\nNo transformations found";
-        }
-
         // Build strict prompt including both plans and the allowed rule list
         StringBuilder sb = new StringBuilder();
         sb.append(PROMPT_1);
@@ -181,72 +178,96 @@ public class LLM
         sb.append('\n');
         sb.append(PROMPT_2);
 
-        //Get database schemas
         sb.append("\n\nSCHEMA_SUMMARY:\n");
-        sb.append(FileIO.readSchemaSummary());
-
-        sb.append("\nORIGINAL_PLAN_JSON:\n").append(sqlAJSON == null ? "(null)" : sqlAJSON);
-        sb.append("\n\nTARGET_PLAN_JSON:\n").append(sqlBJSON == null ? "(null)" : sqlBJSON);
+        sb.append(parts.getSchemaSummary());
+        if (parts.isCompact()) sb.append("\n\n").append(PromptCompactor.COMPACT_FORMAT_NOTE);
 
-        String prompt = sb.toString();
+        sb.append("\nORIGINAL_PLAN_JSON:\n").append(parts.getPlanA());
+        sb.append("\n\nTARGET_PLAN_JSON:\n").append(parts.getPlanB());
+        return sb.toString();
+    }
 
-        //System.out.println("Prompt sent to LLM: \n" + prompt);
+    /**
+     * Assistant text for {@code prompt}, from the response cache or the
+     * shared {@link LLMClient}. Identical prompts (same model, template
+     * version, plans, schema summary and allow-list) are answered from the
+     * on-disk cache without a network call.
+     *
+     * @param promptVersion version of the caller's prompt template (part of the cache key)
+     * @return the trimmed assistant text, or null if there is no answer
+     *         ({@code OPENAI_API_KEY} unset, or no text in the response)
+     */
+    static String cachedComplete(String promptVersion, String prompt)
+    {
+        return cachedComplete(promptVersion, prompt, text -> true);
+    }
 
-        // Contact the OpenAI Responses API using env configuration
-        OpenAIClient client = OpenAIOkHttpClient.fromEnv();
+    /**
+     * {@link #cachedComplete(String, String)} that only caches an answer
+     * {@code cacheable} accepts; the answer is returned either way.
+     */
+    static String cachedComplete(String promptVersion, String prompt, Predicate<String> cacheable)
+    {
         String model = getConfiguredModel();
+        String cacheKey = LLMResponseCache.key(model, promptVersion, prompt);
+        String cached = LLMResponseCache.getShared().get(cacheKey);
+        if (cached != null) return cached;
 
-        ResponseCreateParams params = ResponseCreateParams.builder()
-            .input(prompt)
-            .model(model)
-            .build();
-
-        Response resp = client.responses().create(params);
-
-        //System.out.println("[LLM] Received response from LLM: " + resp);
+        // Fail fast if API key is not present in the environment
+        String apiKey = System.getenv("OPENAI_API_KEY");
+        if (apiKey == null || apiKey.isBlank()) {
+            System.err.println("[LLM] OPENAI_API_KEY is not set in the environment; skipping LLM call.");
+            return null;
+        }
 
-        // Best-effort extraction of assistant text content from the response.
-        // If SDK accessors are unavailable, fall back to parsing the toString() output.
-        String raw = resp.toString();
-        String contentText = extractAssistantText(raw);
+        // Contact the OpenAI Responses API through the shared, rate-limited client
+        Response resp = LLMClient.getShared().complete(prompt);
 
+        // Assistant text via the typed SDK accessors (toString() parsing as a fallback)
+        String contentText = extractAssistantText(resp);
         if (contentText == null || contentText.isBlank()) {
             System.err.println("[LLM] Unable to extract assistant text from response; returning not equivalent.");
-            return "false\nNo transformations found";
+            return null;
         }
 
-        //DEBUG: Print reduced LLM output text
-        //System.out.println("LLM Assistant Text: " + contentText);
-
-        return contentText.trim();
+        String text = contentText.trim();
+        if (cacheable.test(text)) LLMResponseCache.getShared().put(cacheKey, model, text);
+        return text;
     }
 
-    public static String contactLLM(String sqlAJSON, String sqlBJSON, LLMResponse previousResponse)
+    /**
+     * Contact the LLM with two cleaned plan JSON strings and receive the assistant's
+     * text output (see {@link #cachedComplete(String, String)}).
+     *
+     * @param sqlAJSON cleaned JSON plan for query A (may be null)
+     * @param sqlBJSON cleaned JSON plan for query B (may be null)
+     * @return assistant text trimmed, or the safe {@link #NO_ANSWER} contract string on failure
+     */
+    public static String contactLLM(String sqlAJSON, String sqlBJSON)
     {
-        // Fail fast if API key is not present in the environment
-        String apiKey = System.getenv("OPENAI_API_KEY");
-        if (apiKey == null || apiKey.isBlank()) {
-            System.err.println("[LLM] OPENAI_API_KEY is not set in the environment; skipping LLM call.");
-            // Return a minimal, valid contract string to avoid crashing callers
-            return "false\nNo transformations found";
-        }
+        PromptCompactor.Parts parts = PromptCompactor.prepare(sqlAJSON, sqlBJSON, FileIO.readSchemaSummary());
+        String prompt = buildPrompt(parts);
+        parts.reportSavings(prompt);
 
-        // Build strict prompt including both plans and the allowed rule list
-        StringBuilder sb = new StringBuilder();
-        sb.append(PROMPT_1);
-        sb.append("\nSUPPORTED_TRANSFORMATIONS:\n");
-        sb.append(new JSONArray(SUPPORTED_TRANSFORMATIONS).toString());
-        sb.append('\n');
-        sb.append(PROMPT_2);
+        String text = cachedComplete(PROMPT_VERSION, prompt);
+        return text == null ? NO_ANSWER : text;
+    }
 
-        //Get database schemas
-        sb.append("\n\nSCHEMA_SUMMARY:\n");
-        sb.append(FileIO.readSchemaSummary());
+    /**
+     * Round-2 variant of {@link #contactLLM(String, String)}: the same prompt
+     * followed by the rejected {@code previousResponse}.
+     */
+    public static String contactLLM(String sqlAJSON, String sqlBJSON, LLMResponse previousResponse)
+    {
+        PromptCompactor.Parts parts = PromptCompactor.prepare(sqlAJSON, sqlBJSON, FileIO.readSchemaSummary());
+        String prompt = buildPrompt(parts) + PREVIOUS_RESPONSE_NOTE + '\n' + previousResponse.toString() + '\n';
+        parts.reportSavings(prompt);
 
-        sb.append("\nORIGINAL_PLAN_JSON:\n").append(sqlAJSON == null ? "(null)" : sqlAJSON);
-        sb.append("\n\nTARGET_PLAN_JSON:\n").append(sqlBJSON == null ? "(null)" : sqlBJSON);
+        String text = cachedComplete(PROMPT_VERSION, prompt);
+        return text == null ? NO_ANSWER : text;
+    }
 
-        sb.append("""
+    private static final String PREVIOUS_RESPONSE_NOTE = """
                 
                 The JSON object shown below was your previous response. It was judged incorrect
                 by an external equivalence checker. Carefully reconsider SCHEMA_SUMMARY,
@@ -254,39 +275,7 @@ public class LLM
                 return a NEW JSON object that follows the RESPONSE SCHEMA. Do not simply repeat
                 the same 'transformations' list unless you have a strong reason to believe it is correct.
                 Previous response:
-                """);
-        sb.append('\n').append(previousResponse.toString()).append('\n');
-
-        String prompt = sb.toString();
-
-        // Contact the OpenAI Responses API using env configuration
-        OpenAIClient client = OpenAIOkHttpClient.fromEnv();
-        String model = getConfiguredModel();
-
-        ResponseCreateParams params = ResponseCreateParams.builder()
-            .input(prompt)
-            .model(model)
-            .build();
-
-        Response resp = client.responses().create(params);
-
-        //System.out.println("[LLM] Received response from LLM: " + resp);
-
-        // Best-effort extraction of assistant text content from the response.
-        // If SDK accessors are unavailable, fall back to parsing the toString() output.
-        String raw = resp.toString();
-        String contentText = extractAssistantText(raw);
-
-        if (contentText == null || contentText.isBlank()) {
-            System.err.println("[LLM] Unable to extract assistant text from response; returning not equivalent.");
-            return "false\nNo transformations found";
-        }
-
-        //DEBUG: Print reduced LLM output text
-        //System.out.println("LLM Assistant Text: " + contentText);
-
-        return contentText.trim();
-    }
+                """;
 
     /**
      * Reads the configured LLM model from {@code config.properties}.
@@ -354,6 +343,29 @@ public class LLM
     }
 
     // --- Helpers ---
+    /**
+     * Concatenated {@code output_text} parts of the assistant message(s) in
+     * {@code resp}, read through the typed SDK accessors. Falls back to
+     * {@link #extractAssistantText(String)} on the {@code toString()} form if
+     * the typed walk finds no text.
+     */
+    public static String extractAssistantText(Response resp) {
+        if (resp == null) return null;
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (ResponseOutputItem item : resp.output()) {
+                if (item.message().isEmpty()) continue;
+                for (ResponseOutputMessage.Content c : item.message().get().content()) {
+                    c.outputText().ifPresent(t -> sb.append(t.text()));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Unexpected or partial response shape: use the string fallback below
+            sb.setLength(0);
+        }
+        return sb.length() > 0 ? sb.toString() : extractAssistantText(resp.toString());
+    }
+
     /**
      * Extract the assistant's text from the Response.toString() output.
      * This is a fallback for environments where typed SDK getters are not available.
@@ -0,0 +1,265 @@
+package com.ac.iisc;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Batched form of {@link LLMEqual#getLLMResponse(String, String)}: several
+ * pairs are packed into one request with a per-pair response schema.
+ *
+ * <p>The shared prompt sections (instructions, transformation allow-list,
+ * schema summary) are sent once per batch instead of once per pair, which
+ * cuts tokens and requests when many pairs reach the LLM stage. The schema
+ * summary is filtered to the tables the batch's plans reference. Batches are
+ * sent concurrently through {@link LLMClient}.</p>
+ *
+ * <p>Every returned item is validated with the {@link LLMResponse} parser.
+ * Items that are missing or malformed are re-queued individually through
+ * {@link LLMEqual#contactLLM(String, String)}. Valid items are also stored
+ * in {@link LLMResponseCache} under the key of the equivalent single-pair
+ * prompt, so a later {@code getLLMResponse} for the same pair is a cache
+ * hit; {@link Test} uses this to prefetch round-1 answers.</p>
+ *
+ * <p>Configuration keys in {@code config.properties}:</p>
+ * <ul>
+ *   <li>{@code llm_batch_mode} – {@code true}/{@code false} (default false).</li>
+ *   <li>{@code llm_batch_size} – pairs per request (default 8).</li>
+ * </ul>
+ */
+public final class LLMBatch
+{
+    private static final String PROMPT_VERSION = "llmequal-batch-2";
+
+    private static final String BATCH_PROMPT = """
+            BATCH MODE: PAIRS below contains several independent pairs, each with an "id",
+            ORIGINAL_PLAN_JSON and TARGET_PLAN_JSON. Treat every pair on its own, exactly as if
+            it were the only pair in the request.
+
+            RESPONSE SCHEMA (MUST return exactly ONE JSON object; one entry per pair, same ids):
+            {
+                "results": [
+                    {
+                        "id": "",
+                        "reasoning": "",
+                        "equivalent": "true",
+                        "transformations": [],
+                        "preconditions": []
+                    }
+                ]
+            }
+
+            RULES:
+            1) Use each entry's "reasoning" field to compare that pair BEFORE choosing its
+               "transformations" and "preconditions".
+            2) Only use names from SUPPORTED_TRANSFORMATIONS. If you are unsure about a pair,
+               use "equivalent":"dont_know" for that pair.
+            3) Output NOTHING but the required JSON object: valid JSON, no markdown, no code fences.
+
+            NOW PROCESS:
+            """;
+
+    private LLMBatch() { }
+
+    /** One pair to ask about; {@code id} only has to be unique within a call. */
+    public static final class Item
+    {
+        private final String id;
+        private final String sqlA;
+        private final String sqlB;
+
+        public Item(String id, String sqlA, String sqlB)
+        {
+            this.id = id;
+            this.sqlA = sqlA;
+            this.sqlB = sqlB;
+        }
+
+        public String getId() { return id; }
+        public String getSqlA() { return sqlA; }
+        public String getSqlB() { return sqlB; }
+    }
+
+    /** Plans of one item, prepared for prompting. */
+    private static final class Prepared
+    {
+        final Item item;
+        final String planA;
+        final String planB;
+        final PromptCompactor.Parts parts;
+
+        Prepared(Item item, String planA, String planB, PromptCompactor.Parts parts)
+        {
+            this.item = item;
+            this.planA = planA;
+            this.planB = planB;
+            this.parts = parts;
+        }
+    }
+
+    /** True when {@code llm_batch_mode=true}. */
+    public static boolean isEnabled()
+    {
+        return Boolean.parseBoolean(FileIO.getProperty("llm_batch_mode", "false"));
+    }
+
+    /**
+     * Round-1 responses for {@code items}, keyed by item id in input order.
+     * Items whose plans cannot be retrieved or that get no answer map to null, as with
+     * {@link LLMEqual#getLLMResponse(String, String)}.
+     */
+    public static Map<String, LLMResponse> getLLMResponses(List<Item> items)
+    {
+        Map<String, LLMResponse> results = new LinkedHashMap<>();
+        List<Prepared> pending = new ArrayList<>();
+        String schemaSummary = FileIO.readSchemaSummary();
+        for (Item item : items) {
+            results.put(item.getId(), null);
+            try {
+                String planA = GetQueryPlans.getCleanedQueryPlanJSONasString(item.getSqlA());
+                String planB = GetQueryPlans.getCleanedQueryPlanJSONasString(item.getSqlB());
+                Prepared p = new Prepared(item, planA, planB, PromptCompactor.prepare(planA, planB, schemaSummary));
+
+                // Pairs answered before (batched or not) need no request
+                String cached = LLMResponseCache.getShared().get(LLMEqual.cacheKey(LLMEqual.buildPrompt(p.parts)));
+                LLMResponse parsed = cached == null ? null : parse(cached);
+                if (parsed != null) results.put(item.getId(), parsed);
+                else pending.add(p);
+            } catch (SQLException ex) {
+                System.err.println("Error obtaining query plans for " + item.getId() + ": " + ex.getMessage());
+            }
+        }
+        if (pending.isEmpty()) return results;
+
+        int batchSize = Math.max(1, intProperty("llm_batch_size", 8));
+        List<CompletableFuture<Map<String, LLMResponse>>> futures = new ArrayList<>();
+        for (int i = 0; i < pending.size(); i += batchSize) {
+            List<Prepared> batch = pending.subList(i, Math.min(pending.size(), i + batchSize));
+            futures.add(LLMClient.getShared().supplyAsync(() -> runBatch(batch, schemaSummary)));
+        }
+        for (CompletableFuture<Map<String, LLMResponse>> f : futures) results.putAll(f.join());
+        return results;
+    }
+
+    /** Send one batch; fall back to single-pair requests for items that did not validate. */
+    private static Map<String, LLMResponse> runBatch(List<Prepared> batch, String schemaSummary)
+    {
+        Map<String, LLMResponse> out = new LinkedHashMap<>();
+        Map<String, String> texts = batch.size() == 1 ? Map.of() : requestBatch(batch, schemaSummary);
+
+        for (Prepared p : batch) {
+            String id = p.item.getId();
+            String text = texts.get(id);
+            LLMResponse parsed = text == null ? null : parse(text);
+            if (parsed != null) {
+                LLMResponseCache.getShared().put(LLMEqual.cacheKey(LLMEqual.buildPrompt(p.parts)), LLM.getConfiguredModel(), text);
+                out.put(id, parsed);
+                continue;
+            }
+            if (batch.size() > 1) System.err.println("[LLMBatch] No valid batched answer for " + id + "; re-queuing individually.");
+            String raw = LLMEqual.contactLLM(p.planA, p.planB);
+            if (raw == null) continue;
+            try {
+                out.put(id, new LLMResponse(raw));
+            } catch (IllegalArgumentException iae) {
+                System.err.println("[LLM] Unexpected LLM output format; treating as not equivalent. " + iae.getMessage());
+                out.put(id, new LLMResponse(false, List.of()));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Send the batch prompt and split the answer into per-id JSON texts.
+     * Returns an empty map if the request cannot be made or parsed.
+     */
+    private static Map<String, String> requestBatch(List<Prepared> batch, String schemaSummary)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(LLMEqual.PROMPT_1);
+        sb.append("\nSUPPORTED_TRANSFORMATIONS:\n");
+        sb.append(new JSONArray(LLM.SUPPORTED_TRANSFORMATIONS).toString());
+        sb.append('\n');
+        sb.append(BATCH_PROMPT);
+
+        boolean compact = batch.get(0).parts.isCompact();
+        List<String> plans = new ArrayList<>();
+        for (Prepared p : batch) {
+            plans.add(p.planA);
+            plans.add(p.planB);
+        }
+        Set<String> tables = PromptCompactor.referencedTables(plans);
+        // Keep the whole summary if no plan could be read for its tables
+        String summary = tables.isEmpty() && schemaSummary != null
+            ? schemaSummary
+            : PromptCompactor.filterSchemaSummary(schemaSummary, tables);
+        sb.append("\n\nSCHEMA_SUMMARY:\n").append(summary);
+        if (compact) sb.append("\n\n").append(PromptCompactor.COMPACT_FORMAT_NOTE);
+
+        sb.append("\nPAIRS:\n");
+        for (Prepared p : batch) {
+            sb.append("\n=== id: ").append(p.item.getId()).append(" ===\n");
+            sb.append("ORIGINAL_PLAN_JSON:\n").append(p.parts.getPlanA());
+            sb.append("\n\nTARGET_PLAN_JSON:\n").append(p.parts.getPlanB()).append('\n');
+        }
+        String prompt = sb.toString();
+
+        // Only answers with an item per pair are cached
+        String text;
+        try {
+            text = LLM.cachedComplete(PROMPT_VERSION, prompt, t -> split(t).size() == batch.size());
+        } catch (RuntimeException e) {
+            System.err.println("[LLMBatch] Batch request failed: " + e.getMessage());
+            return Map.of();
+        }
+        return text == null ? Map.of() : split(text);
+    }
+
+    /** Split a batch answer ({@code {"results":[...]}} or a bare array) into per-id JSON texts. */
+    static Map<String, String> split(String text)
+    {
+        Map<String, String> byId = new LinkedHashMap<>();
+        JSONArray arr;
+        try {
+            arr = text.startsWith("[") ? new JSONArray(text) : new JSONObject(text).optJSONArray("results");
+        } catch (JSONException e) {
+            System.err.println("[LLMBatch] Batch answer is not valid JSON: " + e.getMessage());
+            return byId;
+        }
+        if (arr == null) return byId;
+        for (int i = 0; i < arr.length(); i++) {
+            JSONObject entry = arr.optJSONObject(i);
+            if (entry == null || !entry.has("id")) continue;
+            String id = String.valueOf(entry.get("id"));
+            entry.remove("id");
+            byId.put(id, entry.toString());
+        }
+        return byId;
+    }
+
+    private static LLMResponse parse(String text)
+    {
+        try {
+            return new LLMResponse(text);
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    private static int intProperty(String key, int defaultValue)
+    {
+        try {
+            return Integer.parseInt(FileIO.getProperty(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.ac.iisc;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.openai.client.OpenAIClient;
+import com.openai.client.okhttp.OpenAIOkHttpClient;
+import com.openai.errors.InternalServerException;
+import com.openai.errors.OpenAIIoException;
+import com.openai.errors.OpenAIRetryableException;
+import com.openai.errors.OpenAIServiceException;
+import com.openai.errors.RateLimitException;
+import com.openai.models.responses.Response;
+import com.openai.models.responses.ResponseCreateParams;
+
+/**
+ * Shared, rate-limited client for the OpenAI Responses API.
+ *
+ * <p>All LLM helpers ({@link LLM}, {@link LLMEqual}) send their prompts through
+ * {@link #getShared()} instead of building a new HTTP client per call. The
+ * client adds:</p>
+ * <ul>
+ *   <li>one {@link OpenAIClient} (and OkHttp connection pool) per process;</li>
+ *   <li>a token-bucket limiter on requests per minute;</li>
+ *   <li>a cap on concurrent in-flight requests;</li>
+ *   <li>retries with jittered exponential backoff for rate-limit,
+ *       5xx and I/O failures (the SDK's own retries are disabled);</li>
+ *   <li>per-call token, latency and retry accounting in {@link LLMMetrics}.</li>
+ * </ul>
+ *
+ * <p>Asynchronous calls run on virtual threads when the JVM provides them
+ * (Java 21+) and on a cached daemon pool otherwise.</p>
+ *
+ * <p>Configuration keys in {@code config.properties}:</p>
+ * <ul>
+ *   <li>{@code llm_base_url} – API base URL (e.g. a local mock server); defaults to
+ *       {@code OPENAI_BASE_URL} or the public endpoint.</li>
+ *   <li>{@code llm_max_concurrency} – maximum in-flight requests (default 4).</li>
+ *   <li>{@code llm_requests_per_minute} – token-bucket refill rate (default 60).</li>
+ *   <li>{@code llm_max_retries} – retries after the first attempt (default 3).</li>
+ *   <li>{@code llm_retry_base_ms} – base backoff delay (default 1000).</li>
+ *   <li>{@code llm_timeout_seconds} – per-request timeout (default 600).</li>
+ * </ul>
+ */
+public final class LLMClient
+{
+    private static volatile LLMClient shared;
+
+    private final OpenAIClient client;
+    private final Semaphore inFlight;
+    private final TokenBucket bucket;
+    private final int maxRetries;
+    private final long retryBaseMillis;
+    private final ExecutorService executor;
+
+    /**
+     * Create a client against {@code baseUrl} ({@code null} = environment default).
+     * Mostly useful for pointing a harness at a local mock server; regular
+     * callers should use {@link #getShared()}.
+     */
+    public LLMClient(String baseUrl, int maxConcurrency, double requestsPerMinute,
+                     int maxRetries, long retryBaseMillis, Duration timeout)
+    {
+        OpenAIOkHttpClient.Builder builder = OpenAIOkHttpClient.builder().fromEnv().maxRetries(0);
+        if (baseUrl != null && !baseUrl.isBlank()) builder.baseUrl(baseUrl.trim());
+        if (timeout != null) builder.timeout(timeout);
+        this.client = builder.build();
+        this.inFlight = new Semaphore(Math.max(1, maxConcurrency), true);
+        this.bucket = new TokenBucket(Math.max(1, maxConcurrency), requestsPerMinute / 60.0);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryBaseMillis = Math.max(1, retryBaseMillis);
+        this.executor = newExecutor();
+    }
+
+    /**
+     * Process-wide client configured from {@code config.properties}.
+     */
+    public static LLMClient getShared()
+    {
+        LLMClient c = shared;
+        if (c == null) {
+            synchronized (LLMClient.class) {
+                c = shared;
+                if (c == null) {
+                    c = new LLMClient(
+                        FileIO.getProperty("llm_base_url", null),
+                        intProperty("llm_max_concurrency", 4),
+                        doubleProperty("llm_requests_per_minute", 60),
+                        intProperty("llm_max_retries", 3),
+                        intProperty("llm_retry_base_ms", 1000),
+                        Duration.ofSeconds(intProperty("llm_timeout_seconds", 600)));
+                    shared = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /** Replace the process-wide client, e.g. to point {@link MockLLMHarness} at a mock server. */
+    static void setShared(LLMClient client)
+    {
+        synchronized (LLMClient.class) {
+            shared = client;
+        }
+    }
+
+    /**
+     * Send {@code prompt} to the configured model and block for the response.
+     *
+     * @throws com.openai.errors.OpenAIException when the request fails after all retries
+     */
+    public Response complete(String prompt)
+    {
+        String model = LLM.getConfiguredModel();
+        ResponseCreateParams params = ResponseCreateParams.builder()
+            .input(prompt)
+            .model(model)
+            .build();
+        return completeWithRetries(params, model);
+    }
+
+    /**
+     * Asynchronous form of {@link #complete(String)}.
+     */
+    public CompletableFuture<Response> completeAsync(String prompt)
+    {
+        return supplyAsync(() -> complete(prompt));
+    }
+
+    /**
+     * Run an arbitrary LLM-backed task (plan retrieval + prompt + parse) on the
+     * client's executor. Used to run the prompt batches of {@link LLMBatch}
+     * concurrently.
+     */
+    public <T> CompletableFuture<T> supplyAsync(java.util.function.Supplier<T> task)
+    {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    private Response completeWithRetries(ResponseCreateParams params, String model)
+    {
+        long start = System.nanoTime();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                bucket.acquire();
+                inFlight.acquire();
+                Response resp;
+                try {
+                    resp = client.responses().create(params);
+                } finally {
+                    inFlight.release();
+                }
+                LLMMetrics.getShared().record(model, resp, (System.nanoTime() - start) / 1_000_000, attempt, null);
+                return resp;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                LLMMetrics.getShared().record(model, null, (System.nanoTime() - start) / 1_000_000, attempt, ie);
+                throw new CompletionException(ie);
+            } catch (RuntimeException ex) {
+                if (attempt >= maxRetries || !isRetryable(ex)) {
+                    LLMMetrics.getShared().record(model, null, (System.nanoTime() - start) / 1_000_000, attempt, ex);
+                    throw ex;
+                }
+                long delay = backoffMillis(attempt);
+                System.err.println("[LLMClient] " + ex.getClass().getSimpleName() + " on attempt " + (attempt + 1)
+                    + "; retrying in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    LLMMetrics.getShared().record(model, null, (System.nanoTime() - start) / 1_000_000, attempt, ex);
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private static boolean isRetryable(RuntimeException ex)
+    {
+        if (ex instanceof RateLimitException || ex instanceof InternalServerException
+            || ex instanceof OpenAIIoException || ex instanceof OpenAIRetryableException) {
+            return true;
+        }
+        if (ex instanceof OpenAIServiceException se) {
+            int status = se.statusCode();
+            return status == 408 || status == 409 || status >= 500;
+        }
+        return false;
+    }
+
+    /** Exponential backoff with jitter: uniform in [cap/2, cap], cap = base * 2^attempt (at most 60 s). */
+    private long backoffMillis(int attempt)
+    {
+        long cap = Math.min(60_000L, retryBaseMillis << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    private static ExecutorService newExecutor()
+    {
+        try {
+            // Java 21+: one virtual thread per task.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "llm-client-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private static int intProperty(String key, int defaultValue)
+    {
+        try {
+            return Integer.parseInt(FileIO.getProperty(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static double doubleProperty(String key, double defaultValue)
+    {
+        try {
+            return Double.parseDouble(FileIO.getProperty(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Classic token bucket: holds up to {@code capacity} permits and refills
+     * continuously at {@code permitsPerSecond}.
+     */
+    private static final class TokenBucket
+    {
+        private final double capacity;
+        private final double permitsPerSecond;
+        private double available;
+        private long lastRefillNanos;
+
+        TokenBucket(double capacity, double permitsPerSecond)
+        {
+            this.capacity = capacity;
+            this.permitsPerSecond = permitsPerSecond;
+            this.available = capacity;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        void acquire() throws InterruptedException
+        {
+            if (permitsPerSecond <= 0) return; // rate limiting disabled
+            while (true) {
+                long waitNanos;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    available = Math.min(capacity, available + (now - lastRefillNanos) / 1e9 * permitsPerSecond);
+                    lastRefillNanos = now;
+                    if (available >= 1) {
+                        available -= 1;
+                        return;
+                    }
+                    waitNanos = (long) ((1 - available) / permitsPerSecond * 1e9);
+                }
+                Thread.sleep(Math.max(1, waitNanos / 1_000_000L));
+            }
+        }
+    }
+}
@@ -5,14 +5,15 @@ import java.util.List;
 
 import org.json.JSONArray;
 
-import com.openai.client.OpenAIClient;
-import com.openai.client.okhttp.OpenAIOkHttpClient;
-import com.openai.models.responses.Response;
-import com.openai.models.responses.ResponseCreateParams;
-
 public class LLMEqual
 {
-    private static final String PROMPT_1 = """
+    /**
+     * Version of the prompt template below; bump it when PROMPT_1/PROMPT_2
+     * change so cached responses to the old wording are not reused.
+     */
+    private static final String PROMPT_VERSION = "llmequal-1";
+
+    static final String PROMPT_1 = """
             System Message:
             You are an expert in relational query optimization and Apache Calcite rewrite rules.
             Your job is to compare two equivalent cleaned PostgreSQL EXPLAIN (FORMAT JSON) plan trees
@@ -81,16 +82,12 @@ public class LLMEqual
             NOW PROCESS:
             """;
             
-    public static String contactLLM (String sqlAJSON, String sqlBJSON)
+    /**
+     * Round-1 prompt for one pair of plans. Package-private so
+     * {@link LLMBatch} can store batched answers under the same cache key.
+     */
+    static String buildPrompt (PromptCompactor.Parts parts)
     {
-        // Fail fast if API key is not present in the environment
-        String apiKey = System.getenv("OPENAI_API_KEY");
-        if (apiKey == null || apiKey.isBlank()) {
-            System.err.println("[LLM] OPENAI_API_KEY is not set in the environment; skipping LLM call.");
-            // Return a minimal, valid contract string to avoid crashing callers
-            return "false\nNo transformations found";
-        }
-
         // Build strict prompt including both plans and the allowed rule list
         StringBuilder sb = new StringBuilder();
         sb.append(PROMPT_1);
@@ -99,57 +96,64 @@ public class LLMEqual
         sb.append('\n');
         sb.append(PROMPT_2);
 
-        //Get database schemas
         sb.append("\n\nSCHEMA_SUMMARY:\n");
-        sb.append(FileIO.readSchemaSummary());
-
-        sb.append("\nORIGINAL_PLAN_JSON:\n").append(sqlAJSON == null ? "(null)" : sqlAJSON);
-        sb.append("\n\nTARGET_PLAN_JSON:\n").append(sqlBJSON == null ? "(null)" : sqlBJSON);
-
-        String prompt = sb.toString();
-
-        //System.out.println("Prompt sent to LLM: \n" + prompt);
-
-        // Contact the OpenAI Responses API using env configuration
-        OpenAIClient client = OpenAIOkHttpClient.fromEnv();
-        String model = LLM.getConfiguredModel();
-
-        ResponseCreateParams params = ResponseCreateParams.builder()
-            .input(prompt)
-            .model(model)
-            .build();
-
-        Response resp = client.responses().create(params);
-
-        //System.out.println("[LLM] Received response from LLM: " + resp);
+        sb.append(parts.getSchemaSummary());
+        if (parts.isCompact()) sb.append("\n\n").append(PromptCompactor.COMPACT_FORMAT_NOTE);
 
-        // Best-effort extraction of assistant text content from the response.
-        // If SDK accessors are unavailable, fall back to parsing the toString() output.
-        String raw = resp.toString();
-        String contentText = LLM.extractAssistantText(raw);
+        sb.append("\nORIGINAL_PLAN_JSON:\n").append(parts.getPlanA());
+        sb.append("\n\nTARGET_PLAN_JSON:\n").append(parts.getPlanB());
+        return sb.toString();
+    }
 
-        if (contentText == null || contentText.isBlank()) {
-            System.err.println("[LLM] Unable to extract assistant text from response; returning not equivalent.");
-            return "false\nNo transformations found";
-        }
+    /** Cache key of the round-1 prompt {@code prompt}. */
+    static String cacheKey (String prompt)
+    {
+        return LLMResponseCache.key(LLM.getConfiguredModel(), PROMPT_VERSION, prompt);
+    }
 
-        //DEBUG: Print reduced LLM output text
-        //System.out.println("LLM Assistant Text: " + contentText);
+    /**
+     * Round-1 answer of the LLM for two cleaned plan JSON strings.
+     *
+     * @return the assistant text, or null if the LLM gave no answer
+     *         (see {@link LLM#cachedComplete(String, String)})
+     */
+    public static String contactLLM (String sqlAJSON, String sqlBJSON)
+    {
+        //Get database schemas (only the referenced tables in compact mode)
+        PromptCompactor.Parts parts = PromptCompactor.prepare(sqlAJSON, sqlBJSON, FileIO.readSchemaSummary());
+        String prompt = buildPrompt(parts);
+        parts.reportSavings(prompt);
 
-        return contentText.trim();
+        return LLM.cachedComplete(PROMPT_VERSION, prompt);
     }
 
+    /** Round-2 variant of {@link #contactLLM(String, String)} with the rejected {@code previousResponse}. */
     public static String contactLLM (String sqlAJSON, String sqlBJSON, LLMResponse previousResponse)
     {
-        // Fail fast if API key is not present in the environment
-        String apiKey = System.getenv("OPENAI_API_KEY");
-        if (apiKey == null || apiKey.isBlank()) {
-            System.err.println("[LLM] OPENAI_API_KEY is not set in the environment; skipping LLM call.");
-            // Return a minimal, valid contract string to avoid crashing callers
-            return "false\nNo transformations found";
-        }
+        PromptCompactor.Parts parts = PromptCompactor.prepare(sqlAJSON, sqlBJSON, FileIO.readSchemaSummary());
+        String prompt = buildPrompt(parts) + PREVIOUS_RESPONSE_NOTE + '\n' + previousResponse.toString() + '\n';
+        parts.reportSavings(prompt);
 
-        // Build strict prompt including both plans and the allowed rule list
+        return LLM.cachedComplete(PROMPT_VERSION, prompt);
+    }
+
+    private static final String PREVIOUS_RESPONSE_NOTE = """
+                The JSON object shown below was your previous response. It was judged incorrect
+                by an external equivalence checker. Carefully reconsider SCHEMA_SUMMARY,
+                ORIGINAL_PLAN_JSON, TARGET_PLAN_JSON, and SUPPORTED_TRANSFORMATIONS, then
+                return a NEW JSON object that follows the RESPONSE SCHEMA. Do not simply repeat
+                the same 'transformations' list unless you have a strong reason to believe it is correct.
+                Previous response:
+                """;
+
+    /**
+     * Variant of {@link #contactLLM(String, String)} for diff-localized
+     * prompts: the two plans are only the differing subtrees found by
+     * {@link PlanDiff}, and {@code subtreeContext} describes where they sit in
+     * the full plans and which columns they must produce.
+     */
+    public static String contactLLMForSubtrees (String subAJSON, String subBJSON, String subtreeContext)
+    {
         StringBuilder sb = new StringBuilder();
         sb.append(PROMPT_1);
         sb.append("\nSUPPORTED_TRANSFORMATIONS:\n");
@@ -157,58 +161,58 @@ public class LLMEqual
         sb.append('\n');
         sb.append(PROMPT_2);
 
-        //Get database schemas
+        PromptCompactor.Parts parts = PromptCompactor.prepare(subAJSON, subBJSON, FileIO.readSchemaSummary());
         sb.append("\n\nSCHEMA_SUMMARY:\n");
-        sb.append(FileIO.readSchemaSummary());
-
-        sb.append("\nORIGINAL_PLAN_JSON:\n").append(sqlAJSON == null ? "(null)" : sqlAJSON);
-        sb.append("\n\nTARGET_PLAN_JSON:\n").append(sqlBJSON == null ? "(null)" : sqlBJSON);
+        sb.append(parts.getSchemaSummary());
+        if (parts.isCompact()) sb.append("\n\n").append(PromptCompactor.COMPACT_FORMAT_NOTE);
 
         sb.append("""
-                The JSON object shown below was your previous response. It was judged incorrect
-                by an external equivalence checker. Carefully reconsider SCHEMA_SUMMARY,
-                ORIGINAL_PLAN_JSON, TARGET_PLAN_JSON, and SUPPORTED_TRANSFORMATIONS, then
-                return a NEW JSON object that follows the RESPONSE SCHEMA. Do not simply repeat
-                the same 'transformations' list unless you have a strong reason to believe it is correct.
-                Previous response:
-                """);
-        sb.append('\n').append(previousResponse.toString()).append('\n');
 
-        String prompt = sb.toString();
-
-        // Contact the OpenAI Responses API using env configuration
-        OpenAIClient client = OpenAIOkHttpClient.fromEnv();
-        String model = LLM.getConfiguredModel();
+                SUBTREE_CONTEXT: The two full plans are identical except for the subtrees below.
+                ORIGINAL_PLAN_JSON and TARGET_PLAN_JSON are only those subtrees; the operators
+                above them are the same in both queries. Propose transformations that map the
+                ORIGINAL subtree to the TARGET subtree.
+                """);
+        sb.append(subtreeContext == null ? "" : subtreeContext);
 
-        ResponseCreateParams params = ResponseCreateParams.builder()
-            .input(prompt)
-            .model(model)
-            .build();
+        sb.append("\nORIGINAL_PLAN_JSON:\n").append(parts.getPlanA());
+        sb.append("\n\nTARGET_PLAN_JSON:\n").append(parts.getPlanB());
 
-        Response resp = client.responses().create(params);
+        String prompt = sb.toString();
+        parts.reportSavings(prompt);
 
-        //System.out.println("[LLM] Received response from LLM: " + resp);
+        return LLM.cachedComplete(PROMPT_VERSION, prompt);
+    }
 
-        // Best-effort extraction of assistant text content from the response.
-        // If SDK accessors are unavailable, fall back to parsing the toString() output.
-        String raw = resp.toString();
-        String contentText = LLM.extractAssistantText(raw);
+    /**
+     * Ask the LLM about the localized difference {@code diff} only. The
+     * subtrees are rendered back to cleaned PostgreSQL plans so the prompt
+     * keeps the same plan format as the full-plan prompts.
+     *
+     * @return the parsed response, or null if a subtree could not be rendered
+     *         or the LLM gave no answer
+     */
+    public static LLMResponse getLocalizedLLMResponse(PlanDiff.Result diff)
+    {
+        String subAJSON = Calcite.convertRelNodetoJSONQueryPlan(diff.getLeft());
+        String subBJSON = Calcite.convertRelNodetoJSONQueryPlan(diff.getRight());
+        if (subAJSON == null || subBJSON == null) return null;
 
-        if (contentText == null || contentText.isBlank()) {
-            System.err.println("[LLM] Unable to extract assistant text from response; returning not equivalent.");
-            return "false\nNo transformations found";
+        String raw = contactLLMForSubtrees(subAJSON, subBJSON, diff.describeContext());
+        if (raw == null) return null;
+        try {
+            return new LLMResponse(raw);
+        } catch (IllegalArgumentException iae) {
+            System.err.println("[LLM] Unexpected LLM output format; treating as not equivalent. " + iae.getMessage());
+            return new LLMResponse(false, List.of());
         }
-
-        //DEBUG: Print reduced LLM output text
-        //System.out.println("LLM Assistant Text: " + contentText);
-
-        return contentText.trim();
     }
 
     public static LLMResponse getLLMResponse(String sqlA, String sqlB)
     {
         // Build cleaned plan JSON for both inputs and contact the LLM.
-        // On plan retrieval failure, returns null so callers can skip LLM usage.
+        // Returns null if the plans cannot be retrieved or the LLM gives no
+        // answer, so callers can tell that no LLM round took place.
         String sqlAJSON;
         String sqlBJSON;
         try
@@ -223,6 +227,7 @@ public class LLMEqual
         }
 
         String raw = contactLLM(sqlAJSON, sqlBJSON);
+        if (raw == null) return null;
         try {
             return new LLMResponse(raw);
         } catch (IllegalArgumentException iae) {
@@ -234,7 +239,8 @@ public class LLMEqual
     public static LLMResponse getLLMResponse(String sqlA, String sqlB, LLMResponse previousResponse)
     {
         // Build cleaned plan JSON for both inputs and contact the LLM.
-        // On plan retrieval failure, returns null so callers can skip LLM usage.
+        // Returns null if the plans cannot be retrieved or the LLM gives no
+        // answer, so callers can tell that no LLM round took place.
         String sqlAJSON;
         String sqlBJSON;
         try
@@ -249,6 +255,7 @@ public class LLMEqual
         }
 
         String raw = contactLLM(sqlAJSON, sqlBJSON, previousResponse);
+        if (raw == null) return null;
         try {
             return new LLMResponse(raw);
         } catch (IllegalArgumentException iae) {
@@ -0,0 +1,206 @@
+package com.ac.iisc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.openai.models.responses.Response;
+import com.openai.models.responses.ResponseUsage;
+
+/**
+ * Per-call token, latency and retry accounting for the LLM stage.
+ *
+ * <p>{@link LLMClient} reports every request here: model, input and output
+ * tokens (with cached and reasoning tokens), wall-clock latency including
+ * backoff, retry count and outcome. Each call is appended as one row to a
+ * per-run CSV file and added to in-memory totals. Callers report pairs the
+ * LLM pass resolved with {@link #pairResolved()}, so {@link #getSummary()}
+ * can give tokens per LLM-resolved pair next to the run's wall-clock time;
+ * pairs settled by the local checks are counted apart
+ * ({@link #pairResolvedLocally()}) since they cost no tokens.</p>
+ *
+ * <p>Configuration keys in {@code config.properties}:</p>
+ * <ul>
+ *   <li>{@code llm_metrics_enabled} – write the CSV (default true; totals are always kept).</li>
+ *   <li>{@code llm_metrics_dir} – CSV directory (default {@code ~/.plan_equivalence/metrics}).</li>
+ * </ul>
+ */
+public final class LLMMetrics
+{
+    private static final String CSV_HEADER =
+        "timestamp,model,status,input_tokens,cached_input_tokens,output_tokens,reasoning_tokens,total_tokens,latency_ms,retries";
+
+    private static volatile LLMMetrics shared;
+
+    private final Path csvFile;
+    private BufferedWriter csv;
+    private volatile long runStartNanos = System.nanoTime();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong inputTokens = new AtomicLong();
+    private final AtomicLong cachedInputTokens = new AtomicLong();
+    private final AtomicLong outputTokens = new AtomicLong();
+    private final AtomicLong latencyMillis = new AtomicLong();
+    private final AtomicLong resolvedPairs = new AtomicLong();
+    private final AtomicLong locallyResolvedPairs = new AtomicLong();
+    private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+    /** {@code csvFile} may be null to keep totals only. */
+    public LLMMetrics(Path csvFile)
+    {
+        this.csvFile = csvFile;
+    }
+
+    /**
+     * Process-wide sink configured from {@code config.properties}; the CSV is
+     * named after the time the sink was created.
+     */
+    public static LLMMetrics getShared()
+    {
+        LLMMetrics m = shared;
+        if (m == null) {
+            synchronized (LLMMetrics.class) {
+                m = shared;
+                if (m == null) {
+                    Path file = null;
+                    if (Boolean.parseBoolean(FileIO.getProperty("llm_metrics_enabled", "true"))) {
+                        String defaultDir = Paths.get(System.getProperty("user.home"), ".plan_equivalence", "metrics").toString();
+                        String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+                        file = Paths.get(FileIO.getProperty("llm_metrics_dir", defaultDir), "llm_calls_" + stamp + ".csv");
+                    }
+                    m = new LLMMetrics(file);
+                    shared = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /** Replace the process-wide sink (used by {@link MockLLMHarness}). */
+    static void setShared(LLMMetrics metrics)
+    {
+        synchronized (LLMMetrics.class) {
+            shared = metrics;
+        }
+    }
+
+    /** Restart the wall clock used by {@link #getSummary()}. */
+    public void startRun()
+    {
+        runStartNanos = System.nanoTime();
+    }
+
+    /** Record a completed request ({@code resp} non-null) or a failed one. */
+    public void record(String model, Response resp, long latencyMs, int retryCount, Throwable failure)
+    {
+        long in = 0, cached = 0, out = 0, reasoning = 0;
+        if (resp != null && resp.usage().isPresent()) {
+            try {
+                ResponseUsage u = resp.usage().get();
+                in = u.inputTokens();
+                out = u.outputTokens();
+                cached = u.inputTokensDetails().cachedTokens();
+                reasoning = u.outputTokensDetails().reasoningTokens();
+            } catch (RuntimeException e) {
+                // Incomplete usage block (e.g. some proxies); keep what was read
+            }
+        }
+        String status = failure == null ? "ok" : "error:" + failure.getClass().getSimpleName();
+
+        calls.incrementAndGet();
+        if (failure != null) failures.incrementAndGet();
+        retries.addAndGet(retryCount);
+        inputTokens.addAndGet(in);
+        cachedInputTokens.addAndGet(cached);
+        outputTokens.addAndGet(out);
+        latencyMillis.addAndGet(latencyMs);
+        latencies.add(latencyMs);
+
+        writeRow(String.join(",", Instant.now().toString(), csvField(model), status,
+            Long.toString(in), Long.toString(cached), Long.toString(out), Long.toString(reasoning),
+            Long.toString(in + out), Long.toString(latencyMs), Integer.toString(retryCount)));
+    }
+
+    /** Count one pair as resolved by the LLM pass, for the tokens-per-resolved-pair figure. */
+    public void pairResolved()
+    {
+        resolvedPairs.incrementAndGet();
+    }
+
+    /** Count one pair as resolved without the LLM (reported, but not in tokens per resolved pair). */
+    public void pairResolvedLocally()
+    {
+        locallyResolvedPairs.incrementAndGet();
+    }
+
+    public long getCalls() { return calls.get(); }
+    public long getTotalTokens() { return inputTokens.get() + outputTokens.get(); }
+    public long getResolvedPairs() { return resolvedPairs.get(); }
+    public long getLocallyResolvedPairs() { return locallyResolvedPairs.get(); }
+
+    /** The {@code p}-th percentile (nearest rank) of recorded call latencies; 0 before the first call. */
+    public long getLatencyPercentile(int p)
+    {
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        if (sorted.length == 0) return 0;
+        int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+
+    /** Total tokens divided by LLM-resolved pairs (0 if none were resolved). */
+    public double getTokensPerResolvedPair()
+    {
+        long r = resolvedPairs.get();
+        return r == 0 ? 0 : (double) getTotalTokens() / r;
+    }
+
+    /** One-line run summary, e.g. for the end of a batch run. */
+    public String getSummary()
+    {
+        long n = calls.get();
+        long wallMs = (System.nanoTime() - runStartNanos) / 1_000_000;
+        return String.format(Locale.ROOT,
+            "LLM metrics: %d calls (%d failed, %d retries), %d input tokens (%d cached), %d output tokens, "
+                + "avg latency %d ms; %d pairs resolved by the LLM (%.0f tokens each), %d locally, wall %d ms%s",
+            n, failures.get(), retries.get(), inputTokens.get(), cachedInputTokens.get(), outputTokens.get(),
+            n == 0 ? 0 : latencyMillis.get() / n, resolvedPairs.get(), getTokensPerResolvedPair(),
+            locallyResolvedPairs.get(), wallMs,
+            csvFile == null || csv == null ? "" : " (" + csvFile + ")");
+    }
+
+    private synchronized void writeRow(String row)
+    {
+        if (csvFile == null) return;
+        try {
+            if (csv == null) {
+                Path parent = csvFile.toAbsolutePath().getParent();
+                if (parent != null) Files.createDirectories(parent);
+                csv = Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8);
+                csv.write(CSV_HEADER);
+                csv.newLine();
+            }
+            csv.write(row);
+            csv.newLine();
+            csv.flush();
+        } catch (IOException e) {
+            System.err.println("[LLMMetrics] Unable to write " + csvFile + ": " + e.getMessage());
+        }
+    }
+
+    private static String csvField(String s)
+    {
+        if (s == null) return "";
+        return s.contains(",") || s.contains("\"") ? "\"" + s.replace("\"", "\"\"") + "\"" : s;
+    }
+}
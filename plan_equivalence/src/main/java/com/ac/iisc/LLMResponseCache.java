@@ -0,0 +1,241 @@
+package com.ac.iisc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Persistent cache of LLM assistant texts, keyed by a fingerprint of the
+ * request.
+ *
+ * <p>The key is a SHA-256 over the model name, the prompt template version
+ * and the full prompt text. The prompt already embeds both plan JSONs, the
+ * previous response (for retry prompts), the schema summary and the
+ * transformation allow-list, so a change to any of them yields a new key.
+ * Each entry is one small JSON file named after its key.</p>
+ *
+ * <p>Configuration keys in {@code config.properties}:</p>
+ * <ul>
+ *   <li>{@code llm_cache_enabled} – {@code true}/{@code false} (default true).</li>
+ *   <li>{@code llm_cache_dir} – cache directory (default {@code ~/.plan_equivalence/llm_cache}).</li>
+ *   <li>{@code llm_cache_ttl_hours} – entry lifetime, 0 = never expire (default 720).</li>
+ *   <li>{@code llm_cache_max_mb} – size limit; least recently used entries are evicted (default 256).</li>
+ * </ul>
+ */
+public final class LLMResponseCache
+{
+    private static volatile LLMResponseCache shared;
+
+    private final Path dir;
+    private final boolean enabled;
+    private final long ttlMillis;
+    private final long maxBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong approxBytes = new AtomicLong(-1);
+
+    public LLMResponseCache(Path dir, boolean enabled, long ttlMillis, long maxBytes)
+    {
+        this.dir = dir;
+        this.enabled = enabled;
+        this.ttlMillis = ttlMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Process-wide cache configured from {@code config.properties}.
+     */
+    public static LLMResponseCache getShared()
+    {
+        LLMResponseCache c = shared;
+        if (c == null) {
+            synchronized (LLMResponseCache.class) {
+                c = shared;
+                if (c == null) {
+                    String defaultDir = Paths.get(System.getProperty("user.home"), ".plan_equivalence", "llm_cache").toString();
+                    c = new LLMResponseCache(
+                        Paths.get(FileIO.getProperty("llm_cache_dir", defaultDir)),
+                        Boolean.parseBoolean(FileIO.getProperty("llm_cache_enabled", "true")),
+                        (long) (doubleProperty("llm_cache_ttl_hours", 720) * 3_600_000L),
+                        (long) (doubleProperty("llm_cache_max_mb", 256) * 1024 * 1024));
+                    shared = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /** Replace the process-wide cache (used by {@link MockLLMHarness}). */
+    static void setShared(LLMResponseCache cache)
+    {
+        synchronized (LLMResponseCache.class) {
+            shared = cache;
+        }
+    }
+
+    /**
+     * Fingerprint for a request: SHA-256 over the given parts (null-safe,
+     * length-prefixed so part boundaries cannot collide).
+     */
+    public static String key(String model, String templateVersion, String prompt)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[] {model, templateVersion, prompt}) {
+                byte[] bytes = part == null ? new byte[0] : part.getBytes(StandardCharsets.UTF_8);
+                md.update((bytes.length + ":").getBytes(StandardCharsets.UTF_8));
+                md.update(bytes);
+            }
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Return the cached assistant text for {@code key}, or null on a miss or
+     * expired entry.
+     */
+    public String get(String key)
+    {
+        if (!enabled) return null;
+        Path file = dir.resolve(key + ".json");
+        try {
+            if (!Files.isRegularFile(file)) {
+                misses.incrementAndGet();
+                return null;
+            }
+            JSONObject entry = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+            long created = entry.optLong("created", 0L);
+            if (ttlMillis > 0 && System.currentTimeMillis() - created > ttlMillis) {
+                expired.incrementAndGet();
+                misses.incrementAndGet();
+                delete(file);
+                return null;
+            }
+            // Touch for least-recently-used eviction.
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return entry.optString("text", null);
+        } catch (IOException | JSONException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Store {@code text} under {@code key}; failures are logged and ignored.
+     */
+    public void put(String key, String model, String text)
+    {
+        if (!enabled || text == null) return;
+        try {
+            Files.createDirectories(dir);
+            JSONObject entry = new JSONObject();
+            entry.put("created", System.currentTimeMillis());
+            entry.put("model", model);
+            entry.put("text", text);
+            byte[] bytes = entry.toString().getBytes(StandardCharsets.UTF_8);
+            Path tmp = Files.createTempFile(dir, key, ".tmp");
+            Files.write(tmp, bytes);
+            Files.move(tmp, dir.resolve(key + ".json"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writes.incrementAndGet();
+            if (approxBytes.get() < 0) approxBytes.set(directorySize());
+            if (approxBytes.addAndGet(bytes.length) > maxBytes) evict();
+        } catch (IOException e) {
+            System.err.println("[LLMResponseCache] Unable to write cache entry: " + e.getMessage());
+        }
+    }
+
+    /** Drop least recently used entries until the cache is at 90% of its limit. */
+    private synchronized void evict()
+    {
+        List<Path> files = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.json")) {
+            for (Path p : ds) {
+                files.add(p);
+                total += Files.size(p);
+            }
+        } catch (IOException e) {
+            return;
+        }
+        files.sort(Comparator.comparingLong(LLMResponseCache::lastModified));
+        long target = maxBytes * 9 / 10;
+        for (Path p : files) {
+            if (total <= target) break;
+            try {
+                total -= Files.size(p);
+                delete(p);
+                evictions.incrementAndGet();
+            } catch (IOException ignored) { }
+        }
+        approxBytes.set(total);
+    }
+
+    private long directorySize()
+    {
+        long total = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.json")) {
+            for (Path p : ds) total += Files.size(p);
+        } catch (IOException ignored) { }
+        return total;
+    }
+
+    private static long lastModified(Path p)
+    {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static void delete(Path p)
+    {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException ignored) { }
+    }
+
+    private static double doubleProperty(String key, double defaultValue)
+    {
+        try {
+            return Double.parseDouble(FileIO.getProperty(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+
+    /** One-line hit/miss summary, e.g. for the end of a batch run. */
+    public String getStats()
+    {
+        long h = hits.get();
+        long m = misses.get();
+        double rate = h + m == 0 ? 0 : 100.0 * h / (h + m);
+        return String.format("LLM cache: %d hits, %d misses (%.1f%% hit rate), %d expired, %d written, %d evicted",
+            h, m, rate, expired.get(), writes.get(), evictions.get());
+    }
+}
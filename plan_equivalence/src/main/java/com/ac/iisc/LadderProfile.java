@@ -0,0 +1,255 @@
+package com.ac.iisc;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Learned hit rate and cost of every stage of the comparison ladder in
+ * {@link Calcite#compareQueries(String, String, List)}, per workload profile.
+ *
+ * <p>Every ladder stage is positive-only (a hit proves equivalence, a miss
+ * proves nothing), so the stages can run in any order without changing the
+ * verdict. {@link #order(List, Function)} sorts them by expected payoff per
+ * unit cost: Laplace-smoothed hit rate divided by mean time per call. A
+ * stage with no observations yet gets the median cost of the others, and
+ * ties keep the built-in order, so a fresh profile runs the ladder as
+ * written. The time of a stage includes any digest variant it is the first
+ * to need; later stages reuse that variant for free.</p>
+ *
+ * <p>Counters are kept in memory and merged into the JSON file (under a file
+ * lock, so forked workers and shards sharing it add up) every
+ * {@code ladder_profile_save_every} comparisons and at JVM exit.</p>
+ *
+ * <p>Configuration keys in {@code config.properties}:</p>
+ * <ul>
+ *   <li>{@code ladder_adaptive} – {@code true}/{@code false}; when false the built-in order is used and nothing is recorded (default true).</li>
+ *   <li>{@code ladder_profile} – workload profile name (default: file name of {@code original_sql_path} without extension).</li>
+ *   <li>{@code ladder_profile_file} – JSON store (default {@code ~/.plan_equivalence/ladder_profile.json}).</li>
+ *   <li>{@code ladder_profile_save_every} – comparisons between saves (default 100).</li>
+ * </ul>
+ */
+public final class LadderProfile
+{
+    /** Observations of one stage: calls, hits and total time. */
+    private static final class Counts
+    {
+        long calls;
+        long hits;
+        long nanos;
+
+        void add(long c, long h, long n)
+        {
+            calls += c;
+            hits += h;
+            nanos += n;
+        }
+    }
+
+    private static volatile LadderProfile shared;
+
+    private final Path file;
+    private final String profile;
+    private final boolean enabled;
+    private final int saveEvery;
+    /** Totals as of the last load/save plus everything recorded since. */
+    private final Map<String, Counts> totals = new LinkedHashMap<>();
+    /** Recorded since the last save; added to the file's counters on save. */
+    private final Map<String, Counts> pending = new LinkedHashMap<>();
+    private int comparisonsSinceSave;
+
+    public LadderProfile(Path file, String profile, boolean enabled, int saveEvery)
+    {
+        if (profile == null || profile.isBlank()) throw new IllegalArgumentException("profile is required");
+        this.file = file;
+        this.profile = profile;
+        this.enabled = enabled;
+        this.saveEvery = Math.max(1, saveEvery);
+        if (enabled) {
+            JSONObject stages = read().optJSONObject(profile);
+            if (stages != null) merge(stages, totals);
+        }
+    }
+
+    /**
+     * Process-wide profile configured from {@code config.properties}; pending
+     * counters are saved when the JVM exits.
+     */
+    public static LadderProfile getShared()
+    {
+        LadderProfile p = shared;
+        if (p == null) {
+            synchronized (LadderProfile.class) {
+                p = shared;
+                if (p == null) {
+                    String defaultFile = Paths.get(System.getProperty("user.home"), ".plan_equivalence", "ladder_profile.json").toString();
+                    int every;
+                    try {
+                        every = Integer.parseInt(FileIO.getProperty("ladder_profile_save_every", "100").trim());
+                    } catch (NumberFormatException e) {
+                        every = 100;
+                    }
+                    p = new LadderProfile(
+                        Paths.get(FileIO.getProperty("ladder_profile_file", defaultFile)),
+                        FileIO.getProperty("ladder_profile", defaultProfile()),
+                        Boolean.parseBoolean(FileIO.getProperty("ladder_adaptive", "true")),
+                        every);
+                    if (p.enabled) Runtime.getRuntime().addShutdownHook(new Thread(p::save, "ladder-profile-save"));
+                    shared = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    public String getProfile()
+    {
+        return profile;
+    }
+
+    /**
+     * {@code stages} sorted by expected payoff per unit cost, best first;
+     * ties keep the given order. Returns {@code stages} unchanged when
+     * adaptive ordering is disabled.
+     */
+    public synchronized <T> List<T> order(List<T> stages, Function<T, String> name)
+    {
+        if (!enabled) return stages;
+        double[] meanCost = new double[stages.size()];
+        List<Double> observed = new ArrayList<>();
+        for (int i = 0; i < stages.size(); i++) {
+            Counts c = totals.get(name.apply(stages.get(i)));
+            meanCost[i] = c == null || c.calls == 0 ? Double.NaN : (double) c.nanos / c.calls;
+            if (!Double.isNaN(meanCost[i])) observed.add(meanCost[i]);
+        }
+        if (observed.isEmpty()) return stages;
+        observed.sort(null);
+        double prior = Math.max(1.0, observed.get(observed.size() / 2));
+
+        double[] score = new double[stages.size()];
+        for (int i = 0; i < stages.size(); i++) {
+            Counts c = totals.get(name.apply(stages.get(i)));
+            long calls = c == null ? 0 : c.calls;
+            long hits = c == null ? 0 : c.hits;
+            double cost = Double.isNaN(meanCost[i]) ? prior : Math.max(1.0, meanCost[i]);
+            score[i] = ((hits + 1.0) / (calls + 2.0)) / cost;
+        }
+        Integer[] idx = new Integer[stages.size()];
+        Arrays.setAll(idx, i -> i);
+        Arrays.sort(idx, Comparator.comparingDouble((Integer i) -> -score[i]).thenComparingInt(i -> i));
+        List<T> out = new ArrayList<>(stages.size());
+        for (int i : idx) out.add(stages.get(i));
+        return out;
+    }
+
+    /** Record one call of {@code stage}. */
+    public synchronized void record(String stage, boolean hit, long nanos)
+    {
+        if (!enabled) return;
+        totals.computeIfAbsent(stage, k -> new Counts()).add(1, hit ? 1 : 0, nanos);
+        pending.computeIfAbsent(stage, k -> new Counts()).add(1, hit ? 1 : 0, nanos);
+    }
+
+    /** Mark the end of one comparison; saves every {@code ladder_profile_save_every} comparisons. */
+    public synchronized void comparisonDone()
+    {
+        if (enabled && ++comparisonsSinceSave >= saveEvery) save();
+    }
+
+    /** One line per stage: calls, hit rate and mean time. */
+    public synchronized String getStats()
+    {
+        StringBuilder sb = new StringBuilder("Ladder profile '" + profile + "':");
+        for (Map.Entry<String, Counts> e : totals.entrySet()) {
+            Counts c = e.getValue();
+            if (c.calls == 0) continue;
+            sb.append(String.format("%n  %-22s calls %6d  hit rate %5.1f%%  mean %8.3f ms",
+                e.getKey(), c.calls, 100.0 * c.hits / c.calls, c.nanos / 1e6 / c.calls));
+        }
+        return sb.toString();
+    }
+
+    /** Add the pending counters to the file's and reload the totals from the merged result. */
+    public synchronized void save()
+    {
+        comparisonsSinceSave = 0;
+        if (!enabled || pending.isEmpty()) return;
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            try (FileChannel channel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // Held until the channel is closed
+                channel.lock();
+                JSONObject root = read();
+                JSONObject stages = root.optJSONObject(profile);
+                if (stages == null) {
+                    stages = new JSONObject();
+                    root.put(profile, stages);
+                }
+                for (Map.Entry<String, Counts> e : pending.entrySet()) {
+                    JSONObject s = stages.optJSONObject(e.getKey());
+                    if (s == null) s = new JSONObject();
+                    Counts c = e.getValue();
+                    stages.put(e.getKey(), s
+                        .put("calls", s.optLong("calls") + c.calls)
+                        .put("hits", s.optLong("hits") + c.hits)
+                        .put("nanos", s.optLong("nanos") + c.nanos));
+                }
+                Path tmp = Files.createTempFile(parent, "ladder_profile", ".tmp");
+                Files.writeString(tmp, root.toString(2), StandardCharsets.UTF_8);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                pending.clear();
+                totals.clear();
+                merge(stages, totals);
+            }
+        } catch (IOException e) {
+            System.err.println("[LadderProfile] Unable to write profile: " + e.getMessage());
+        }
+    }
+
+    private JSONObject read()
+    {
+        if (!Files.isRegularFile(file)) return new JSONObject();
+        try {
+            return new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            System.err.println("[LadderProfile] Ignoring unreadable profile " + file + ": " + e.getMessage());
+            return new JSONObject();
+        }
+    }
+
+    private static void merge(JSONObject stages, Map<String, Counts> into)
+    {
+        for (String stage : stages.keySet()) {
+            JSONObject s = stages.optJSONObject(stage);
+            if (s == null) continue;
+            into.computeIfAbsent(stage, k -> new Counts()).add(s.optLong("calls"), s.optLong("hits"), s.optLong("nanos"));
+        }
+    }
+
+    /** File name of the original SQL collection without its extension, e.g. {@code tpch_new_original}. */
+    private static String defaultProfile()
+    {
+        String path = FileIO.getOriginalSqlPath();
+        String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        return name.isBlank() ? "default" : name;
+    }
+}
@@ -0,0 +1,117 @@
+package com.ac.iisc;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drives the LLM stage of {@link Test} against a {@link MockLLMServer} so its
+ * concurrency, caching and retry behaviour can be profiled offline.
+ *
+ * <p>The query IDs go through the same LLM pass as in {@code Test}
+ * ({@code Test.runLLMPass}): the batch-mode prefetch when
+ * {@code llm_batch_mode} is on, then {@code Test.checkWithLLM} for every pair,
+ * i.e. the localized round 0, rounds 1 and 2 for A→B and then B→A, the
+ * intermediate-plan rounds, and verification of every proposal through
+ * {@link TransformationVerifier}. Verdicts are not recorded in the run
+ * manifest. Like {@code Test}, this needs PostgreSQL for the plans; only the
+ * LLM is mocked.</p>
+ *
+ * <pre>
+ * OPENAI_API_KEY=mock java com.ac.iisc.MockLLMHarness [--ids TPCHN1,TPCHN2 | --pairs 20]
+ *     [--concurrency 4] [--rpm 0] [--retries 3] [--retry-base-ms 200] [--cache]
+ *     [--latency-ms 800] [--jitter-ms 400] [--rate-limit-rate 0.05] [--error-rate 0.02]
+ *     [--outputs ../outputs] [--base-url http://127.0.0.1:8089/v1] [--metrics-csv calls.csv]
+ * </pre>
+ */
+public final class MockLLMHarness
+{
+    private MockLLMHarness() { }
+
+    public static void main(String[] argv) throws Exception
+    {
+        CliArgs args = new CliArgs(argv);
+        String apiKey = System.getenv("OPENAI_API_KEY");
+        if (apiKey == null || apiKey.isBlank()) {
+            System.err.println("[MockLLMHarness] Set OPENAI_API_KEY to any non-empty value (e.g. 'mock').");
+            System.exit(2);
+        }
+
+        MockLLMServer server = null;
+        String baseUrl = args.get("base-url", null);
+        if (baseUrl == null) {
+            server = MockLLMServer.fromArgs(args);
+            server.start();
+            baseUrl = server.getBaseUrl();
+        }
+
+        try {
+            run(args, baseUrl, server);
+        } finally {
+            if (server != null) server.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void run(CliArgs args, String baseUrl, MockLLMServer server) throws Exception
+    {
+        int concurrency = args.getInt("concurrency", 4);
+        LLMClient.setShared(new LLMClient(baseUrl, concurrency, args.getDouble("rpm", 0),
+            args.getInt("retries", 3), args.getLong("retry-base-ms", 200), Duration.ofSeconds(120)));
+        LLMResponseCache.setShared(args.has("cache")
+            ? new LLMResponseCache(Files.createTempDirectory("mock_llm_cache"), true, 0, Long.MAX_VALUE)
+            : new LLMResponseCache(Paths.get("."), false, 0, 0));
+
+        List<String> ids = args.has("ids")
+            ? Arrays.stream(args.get("ids", "").split(",")).map(String::trim).toList()
+            : FileIO.listQueryIds(FileIO.SqlSource.ORIGINAL).stream().limit(args.getInt("pairs", 20)).toList();
+        if (!probePlans(ids)) {
+            System.err.println("[MockLLMHarness] PostgreSQL is unavailable; the LLM pass needs the query plans.");
+            return;
+        }
+
+        System.out.println("[MockLLMHarness] " + ids.size() + " pairs against " + baseUrl + ", concurrency " + concurrency);
+
+        // One untimed request so SDK and connection start-up do not skew the first calls
+        try {
+            LLMClient.getShared().complete("warm-up");
+        } catch (RuntimeException e) {
+            System.err.println("[MockLLMHarness] Warm-up request failed: " + e.getMessage());
+        }
+        LLMMetrics metrics = new LLMMetrics(args.has("metrics-csv") ? Paths.get(args.get("metrics-csv", "")) : null);
+        LLMMetrics.setShared(metrics);
+
+        metrics.startRun();
+        long start = System.nanoTime();
+        int resolved = Test.runLLMPass(ids, concurrency, null, Map.of());
+        long wallMs = (System.nanoTime() - start) / 1_000_000;
+
+        long calls = metrics.getCalls();
+        System.out.println("-----------------------------------------------------");
+        System.out.println(String.format("Pairs: %d (%d resolved)  LLM calls: %d  wall: %d ms  throughput: %.2f calls/s",
+            ids.size(), resolved, calls, wallMs, wallMs == 0 ? 0.0 : calls * 1000.0 / wallMs));
+        if (calls > 0) {
+            System.out.println(String.format("Call latency ms: p50 %d  p95 %d  max %d",
+                metrics.getLatencyPercentile(50), metrics.getLatencyPercentile(95), metrics.getLatencyPercentile(100)));
+        }
+        System.out.println(String.format("Tokens per pair: %.0f",
+            ids.isEmpty() ? 0.0 : (double) metrics.getTotalTokens() / ids.size()));
+        if (server != null) System.out.println(server.getStats());
+        System.out.println(LLMResponseCache.getShared().getStats());
+        System.out.println(metrics.getSummary());
+    }
+
+    private static boolean probePlans(List<String> ids)
+    {
+        if (ids.isEmpty()) return false;
+        try {
+            return GetQueryPlans.getCleanedQueryPlanJSONasString(FileIO.readOriginalSqlQuery(ids.get(0))) != null;
+        } catch (SQLException | java.io.IOException | RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.ac.iisc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the OpenAI Responses API ({@code POST /v1/responses}),
+ * for benchmarking the LLM stage without an API key or network access.
+ *
+ * <p>Answers are replayed from recorded runs: {@link #loadRecordedResponses(Path)}
+ * turns the {@code LLM Equivalence ...} / {@code LLM Transformations ...}
+ * lines of {@code outputs/*.txt} into JSON contract objects. A prompt is
+ * mapped to a recorded answer by its hash, so the same prompt always gets the
+ * same answer. Batch prompts from {@link LLMBatch} get one answer per id.</p>
+ *
+ * <p>Latency is {@code latencyMs} plus uniform jitter in
+ * {@code [0, jitterMs]}; a fraction of requests can be failed with HTTP 429
+ * or 500 to exercise the retry path of {@link LLMClient}.</p>
+ *
+ * <p>Standalone use:</p>
+ * <pre>
+ * java com.ac.iisc.MockLLMServer [--port 8089] [--outputs ../outputs]
+ *     [--latency-ms 800] [--jitter-ms 400] [--rate-limit-rate 0.05] [--error-rate 0.02]
+ * </pre>
+ * <p>then set {@code llm_base_url=http://127.0.0.1:8089/v1} (and any
+ * non-empty {@code OPENAI_API_KEY}).</p>
+ */
+public final class MockLLMServer
+{
+    private static final Pattern EQUIVALENCE_LINE = Pattern.compile("^LLM Equivalence[^:]*:\\s*(true|false)\\s*$");
+    private static final Pattern TRANSFORMATIONS_LINE = Pattern.compile("^LLM Transformations[^:]*:\\s*\\[(.*)\\]\\s*$");
+    private static final Pattern BATCH_ID = Pattern.compile("(?m)^=== id: (.+?) ===$");
+
+    private final List<String> recorded;
+    private final long latencyMs;
+    private final long jitterMs;
+    private final double rateLimitRate;
+    private final double errorRate;
+    private final Random random;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public MockLLMServer(int port, List<String> recorded, long latencyMs, long jitterMs,
+                         double rateLimitRate, double errorRate, long seed) throws IOException
+    {
+        if (recorded == null || recorded.isEmpty()) {
+            throw new IllegalArgumentException("At least one recorded response is required");
+        }
+        this.recorded = List.copyOf(recorded);
+        this.latencyMs = Math.max(0, latencyMs);
+        this.jitterMs = Math.max(0, jitterMs);
+        this.rateLimitRate = rateLimitRate;
+        this.errorRate = errorRate;
+        this.random = new Random(seed);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "mock-llm");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    public void start() { server.start(); }
+
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** Base URL to pass as {@code llm_base_url}, e.g. {@code http://127.0.0.1:8089/v1}. */
+    public String getBaseUrl()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1";
+    }
+
+    public String getStats()
+    {
+        return String.format("Mock LLM server: %d requests, %d served, %d rate-limited (429), %d failed (500)",
+            requests.get(), served.get(), rateLimited.get(), failed.get());
+    }
+
+    /**
+     * Extract recorded answers from the text logs in {@code outputsDir}. Each
+     * {@code LLM Equivalence ...: true|false} line starts an answer; a
+     * following {@code LLM Transformations ...: [..]} line supplies its rules.
+     */
+    public static List<String> loadRecordedResponses(Path outputsDir) throws IOException
+    {
+        List<String> out = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(outputsDir, "*.txt")) {
+            List<Path> files = new ArrayList<>();
+            ds.forEach(files::add);
+            files.sort(null);
+            for (Path file : files) {
+                JSONObject current = null;
+                for (String line : readText(file).split("\\R")) {
+                    String l = line.trim();
+                    Matcher eq = EQUIVALENCE_LINE.matcher(l);
+                    if (eq.matches()) {
+                        if (current != null) out.add(current.toString());
+                        current = contract(eq.group(1), new JSONArray(), file.getFileName().toString());
+                        continue;
+                    }
+                    Matcher tr = TRANSFORMATIONS_LINE.matcher(l);
+                    if (tr.matches() && current != null && current.getJSONArray("transformations").isEmpty()) {
+                        for (String rule : tr.group(1).split(",")) {
+                            if (!rule.isBlank()) current.getJSONArray("transformations").put(rule.trim());
+                        }
+                    }
+                }
+                if (current != null) out.add(current.toString());
+            }
+        }
+        return out;
+    }
+
+    /** Run logs redirected on Windows are often UTF-16; anything else is read as lenient UTF-8. */
+    private static String readText(Path file) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length >= 2 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xFE) {
+            return new String(bytes, 2, bytes.length - 2, StandardCharsets.UTF_16LE);
+        }
+        if (bytes.length >= 2 && (bytes[0] & 0xFF) == 0xFE && (bytes[1] & 0xFF) == 0xFF) {
+            return new String(bytes, 2, bytes.length - 2, StandardCharsets.UTF_16BE);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static JSONObject contract(String equivalent, JSONArray transformations, String source)
+    {
+        JSONObject o = new JSONObject();
+        o.put("reasoning", "Replayed from " + source);
+        o.put("equivalent", equivalent);
+        o.put("transformations", transformations);
+        o.put("preconditions", new JSONArray());
+        return o;
+    }
+
+    private void handle(HttpExchange ex) throws IOException
+    {
+        try (ex) {
+            requests.incrementAndGet();
+            String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (!"POST".equals(ex.getRequestMethod()) || !ex.getRequestURI().getPath().endsWith("/responses")) {
+                send(ex, 404, error("Not found: " + ex.getRequestURI().getPath(), "invalid_request_error"));
+                return;
+            }
+
+            double roll;
+            long delay;
+            synchronized (random) {
+                roll = random.nextDouble();
+                delay = latencyMs + (jitterMs == 0 ? 0 : (long) (random.nextDouble() * (jitterMs + 1)));
+            }
+            Thread.sleep(delay);
+
+            if (roll < rateLimitRate) {
+                rateLimited.incrementAndGet();
+                send(ex, 429, error("Rate limit reached (injected)", "rate_limit_error"));
+                return;
+            }
+            if (roll < rateLimitRate + errorRate) {
+                failed.incrementAndGet();
+                send(ex, 500, error("Internal error (injected)", "server_error"));
+                return;
+            }
+
+            String prompt;
+            String model;
+            try {
+                JSONObject req = new JSONObject(body);
+                prompt = String.valueOf(req.opt("input"));
+                model = req.optString("model", "mock");
+            } catch (JSONException e) {
+                send(ex, 400, error("Request body is not JSON", "invalid_request_error"));
+                return;
+            }
+            String text = answer(prompt);
+            served.incrementAndGet();
+            send(ex, 200, response(model, prompt, text));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Replayed answer for {@code prompt}; batch prompts get a {@code results} array. */
+    String answer(String prompt)
+    {
+        Matcher ids = BATCH_ID.matcher(prompt);
+        if (!prompt.contains("BATCH MODE") || !ids.find()) return pick(prompt);
+        JSONArray results = new JSONArray();
+        do {
+            String id = ids.group(1);
+            JSONObject item = new JSONObject(pick(prompt + "\u0000" + id));
+            item.put("id", id);
+            results.put(item);
+        } while (ids.find());
+        return new JSONObject().put("results", results).toString();
+    }
+
+    private String pick(String key)
+    {
+        return recorded.get(Math.floorMod(key.hashCode(), recorded.size()));
+    }
+
+    /** Minimal Responses API object with one assistant message and estimated usage. */
+    private static String response(String model, String prompt, String text)
+    {
+        JSONObject content = new JSONObject()
+            .put("type", "output_text").put("text", text).put("annotations", new JSONArray());
+        JSONObject message = new JSONObject()
+            .put("type", "message").put("id", "msg_mock").put("role", "assistant").put("status", "completed")
+            .put("content", new JSONArray().put(content));
+        int in = PromptCompactor.estimateTokens(prompt);
+        int out = PromptCompactor.estimateTokens(text);
+        JSONObject usage = new JSONObject()
+            .put("input_tokens", in)
+            .put("input_tokens_details", new JSONObject().put("cached_tokens", 0))
+            .put("output_tokens", out)
+            .put("output_tokens_details", new JSONObject().put("reasoning_tokens", 0))
+            .put("total_tokens", in + out);
+        return new JSONObject()
+            .put("id", "resp_mock").put("object", "response").put("created_at", System.currentTimeMillis() / 1000)
+            .put("model", model).put("output", new JSONArray().put(message))
+            .put("parallel_tool_calls", false).put("tool_choice", "auto").put("tools", new JSONArray())
+            .put("status", "completed").put("usage", usage)
+            .toString();
+    }
+
+    private static String error(String message, String type)
+    {
+        return new JSONObject().put("error", new JSONObject().put("message", message).put("type", type)).toString();
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException
+    {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().add("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /** Options shared by {@link #main(String[])} and {@link MockLLMHarness}. */
+    static MockLLMServer fromArgs(CliArgs args) throws IOException
+    {
+        Path outputs = Paths.get(args.get("outputs", "../outputs"));
+        List<String> recorded = loadRecordedResponses(outputs);
+        System.out.println("[MockLLMServer] Loaded " + recorded.size() + " recorded responses from " + outputs.toAbsolutePath().normalize());
+        return new MockLLMServer(
+            args.getInt("port", 0),
+            recorded,
+            args.getLong("latency-ms", 800),
+            args.getLong("jitter-ms", 400),
+            args.getDouble("rate-limit-rate", 0.0),
+            args.getDouble("error-rate", 0.0),
+            args.getLong("seed", 42));
+    }
+
+    public static void main(String[] argv) throws IOException
+    {
+        CliArgs args = new CliArgs(argv);
+        if (!args.has("port")) args = new CliArgs(argv, "--port", "8089");
+        MockLLMServer server = fromArgs(args);
+        server.start();
+        System.out.println("[MockLLMServer] Listening on " + server.getBaseUrl() + " (Ctrl+C to stop)");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(server.getStats())));
+    }
+}
@@ -0,0 +1,88 @@
+package com.ac.iisc;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.calcite.rel.RelNode;
+
+/**
+ * A {@link RelNode} together with the normalization phases already applied
+ * to it.
+ *
+ * <p>{@link Calcite#normalize(NormalizedPlan)} runs sub-query removal,
+ * decorrelation and the cleanup program, but only the phases this plan does
+ * not record yet, so a plan normalized once for the comparison ladder is not
+ * normalized again when it is rendered to SQL
+ * ({@link Calcite#relNodeToSql(NormalizedPlan)}) or sent to the EXPLAIN
+ * fallback. A phase counts as applied once it has been attempted: the phases
+ * are best-effort and a failed phase leaves the plan as it was, so running it
+ * again would fail the same way.</p>
+ *
+ * <p>Instances are immutable. Any rewrite outside {@link Calcite#normalize}
+ * (e.g. LLM-proposed rules) must start again from {@link #of(RelNode)}.</p>
+ */
+public final class NormalizedPlan
+{
+    /** Normalization phases, in the order {@link Calcite#normalize} applies them. */
+    public enum Phase
+    {
+        /** RexSubQuery → Correlate/Join rewrite. */
+        SUBQUERY_REMOVAL,
+        /** Correlate → Join + Aggregate via the decorrelator. */
+        DECORRELATION,
+        /** Join/Aggregate/Project cleanup program. */
+        CLEANUP
+    }
+
+    private final RelNode rel;
+    private final Set<Phase> applied;
+
+    private NormalizedPlan(RelNode rel, Set<Phase> applied)
+    {
+        this.rel = rel;
+        this.applied = applied;
+    }
+
+    /** A plan with no normalization phase applied yet. */
+    public static NormalizedPlan of(RelNode rel)
+    {
+        if (rel == null) throw new IllegalArgumentException("rel must not be null");
+        return new NormalizedPlan(rel, Collections.unmodifiableSet(EnumSet.noneOf(Phase.class)));
+    }
+
+    /** This plan after {@code phase}, now represented by {@code next}. */
+    NormalizedPlan with(Phase phase, RelNode next)
+    {
+        EnumSet<Phase> phases = applied.isEmpty() ? EnumSet.noneOf(Phase.class) : EnumSet.copyOf(applied);
+        phases.add(phase);
+        return new NormalizedPlan(next, Collections.unmodifiableSet(phases));
+    }
+
+    public RelNode getRel()
+    {
+        return rel;
+    }
+
+    public boolean has(Phase phase)
+    {
+        return applied.contains(phase);
+    }
+
+    /** True once every phase has been applied. */
+    public boolean isFullyNormalized()
+    {
+        return applied.size() == Phase.values().length;
+    }
+
+    public Set<Phase> getAppliedPhases()
+    {
+        return applied;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "NormalizedPlan" + applied;
+    }
+}
@@ -0,0 +1,160 @@
+package com.ac.iisc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Longest-first scheduling of comparison pairs.
+ *
+ * <p>A corpus run's makespan is dominated by the few pairs that reach the
+ * EXPLAIN or LLM stages. {@link #order(List, RunManifest)} estimates every
+ * pair's cost before it runs and sorts the pairs most expensive first;
+ * {@link #run(List, int, Consumer)} then hands them out in that order to the
+ * threads of a work-stealing pool, so each free thread takes the most
+ * expensive pair left and cheap pairs fill the tail of the run.</p>
+ *
+ * <p>The estimate is the pair's last recorded time from the
+ * {@link RunManifest} when there is one. Otherwise it is a structural score
+ * from the SQL text (length, joins, sub-queries, set operations), converted
+ * to milliseconds with the median time-per-score ratio of the pairs that do
+ * have a recorded time.</p>
+ *
+ * <p>Configuration key in {@code config.properties}: {@code run_parallelism}
+ * – pairs checked concurrently by {@link Test} (0 = available processors,
+ * default 0).</p>
+ */
+public final class PairScheduler
+{
+    /** A pair with its estimated cost (ms, or structural units if no pair has a recorded time). */
+    public record Task(String id, long cost, boolean measured) { }
+
+    private static final Pattern JOIN = Pattern.compile("\\bjoin\\b");
+    private static final Pattern SELECT = Pattern.compile("\\bselect\\b");
+    private static final Pattern SET_OP = Pattern.compile("\\b(union|intersect|except)\\b");
+
+    private PairScheduler() { }
+
+    /** Pairs checked concurrently, from {@code run_parallelism}. */
+    public static int configuredParallelism()
+    {
+        int p;
+        try {
+            p = Integer.parseInt(FileIO.getProperty("run_parallelism", "0").trim());
+        } catch (NumberFormatException e) {
+            p = 0;
+        }
+        return p > 0 ? p : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Structural cost score of a pair from its SQL text: length plus weighted
+     * counts of joins, sub-queries and set operations on both sides.
+     */
+    public static long structuralCost(String sqlA, String sqlB)
+    {
+        return sideCost(sqlA) + sideCost(sqlB);
+    }
+
+    private static long sideCost(String sql)
+    {
+        if (sql == null) return 0;
+        String s = sql.toLowerCase(Locale.ROOT);
+        long subqueries = Math.max(0, count(SELECT, s) - 1);
+        return s.length() / 40 + 25L * count(JOIN, s) + 100L * subqueries + 60L * count(SET_OP, s);
+    }
+
+    private static long count(Pattern p, String s)
+    {
+        long n = 0;
+        Matcher m = p.matcher(s);
+        while (m.find()) n++;
+        return n;
+    }
+
+    /**
+     * Estimate every pair's cost and sort most expensive first (ties by ID).
+     * Pairs whose SQL cannot be read get cost 0.
+     *
+     * @param manifest source of recorded times (may be null)
+     */
+    public static List<Task> order(List<String> ids, RunManifest manifest)
+    {
+        int n = ids.size();
+        long[] structural = new long[n];
+        long[] measured = new long[n];
+        List<Double> ratios = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            measured[i] = -1;
+            try {
+                String sqlA = FileIO.readOriginalSqlQuery(ids.get(i));
+                String sqlB = FileIO.readRewrittenSqlQuery(ids.get(i));
+                structural[i] = structuralCost(sqlA, sqlB);
+                if (manifest != null) measured[i] = manifest.historicalMillis(ids.get(i), sqlA, sqlB);
+            } catch (IOException | RuntimeException e) {
+                structural[i] = 0;
+            }
+            if (measured[i] > 0 && structural[i] > 0) ratios.add((double) measured[i] / structural[i]);
+        }
+        ratios.sort(null);
+        double msPerUnit = ratios.isEmpty() ? 1.0 : ratios.get(ratios.size() / 2);
+
+        List<Task> tasks = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            boolean known = measured[i] >= 0;
+            tasks.add(new Task(ids.get(i), known ? measured[i] : Math.round(structural[i] * msPerUnit), known));
+        }
+        tasks.sort(Comparator.comparingLong(Task::cost).reversed().thenComparing(Task::id));
+        return tasks;
+    }
+
+    /**
+     * Run {@code work} for every task, in list order, on {@code parallelism}
+     * threads of a work-stealing pool (inline when 1). Failures of one pair
+     * are logged and do not stop the others. Returns when all tasks are done.
+     */
+    public static void run(List<Task> tasks, int parallelism, Consumer<String> work)
+    {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+        Queue<Task> pending = new ConcurrentLinkedQueue<>(tasks);
+        Runnable drain = () -> {
+            Task t;
+            while ((t = pending.poll()) != null) {
+                try {
+                    work.accept(t.id());
+                } catch (RuntimeException e) {
+                    System.err.println("[PairScheduler] " + t.id() + " failed: " + e.getMessage());
+                }
+            }
+        };
+        int threads = Math.min(parallelism, tasks.size());
+        if (threads <= 1) {
+            drain.run();
+            return;
+        }
+        ExecutorService pool = Executors.newWorkStealingPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) workers.add(pool.submit(drain));
+            for (Future<?> f : workers) {
+                try {
+                    f.get();
+                } catch (Exception e) {
+                    System.err.println("[PairScheduler] Worker failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
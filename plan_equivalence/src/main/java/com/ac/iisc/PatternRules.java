@@ -0,0 +1,255 @@
+package com.ac.iisc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+import org.apache.calcite.rel.RelNode;
+
+/**
+ * Registry of named {@link PlanPattern} rules, compiled into an index so that
+ * matching a plan costs one walk plus the rules that can possibly apply at
+ * each node, not every registered rule at every node.
+ *
+ * <p>The index is keyed first by the concrete operator class of a node (each
+ * class is resolved against the rules' root types once and cached), then by
+ * an anchor table: the first table a rule requires, either in the whole plan
+ * ({@link Builder#rule(String, PlanPattern, Set, UnaryOperator)}) or in the
+ * matched subtree ({@link PlanPattern#scans(String, int)}). Rules whose anchor
+ * the plan does not scan are never looked at.</p>
+ *
+ * <p>A rule may carry a digest rewrite, the string-level normalization that
+ * applies once its shape is present (see {@link Calcite}'s TPC-DS rules); a
+ * rule without one only recognizes the shape.</p>
+ */
+public final class PatternRules
+{
+    /**
+     * One rule: a shape, the tables the plan must scan for it to apply, and an
+     * optional digest rewrite (identity when null).
+     */
+    public record Rule(String name, PlanPattern pattern, Set<String> planTables, UnaryOperator<String> digestRewrite)
+    {
+        public String rewriteDigest(String digest)
+        {
+            return digestRewrite == null ? digest : digestRewrite.apply(digest);
+        }
+
+        /** Plan and subtree tables together; all must be scanned by the plan. */
+        Set<String> requiredTables()
+        {
+            Set<String> t = new LinkedHashSet<>(planTables);
+            t.addAll(pattern.getScannedTables());
+            return t;
+        }
+    }
+
+    /** Matches of all rules in one plan, by rule name. */
+    public static final class Matches
+    {
+        private final Map<String, List<PlanPattern.Match>> byRule;
+        private final Map<String, Set<RelNode>> roots = new LinkedHashMap<>();
+
+        private Matches(Map<String, List<PlanPattern.Match>> byRule)
+        {
+            this.byRule = byRule;
+            for (Map.Entry<String, List<PlanPattern.Match>> e : byRule.entrySet()) {
+                Set<RelNode> r = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (PlanPattern.Match m : e.getValue()) r.add(m.root());
+                roots.put(e.getKey(), r);
+            }
+        }
+
+        public boolean has(String rule)
+        {
+            return byRule.containsKey(rule);
+        }
+
+        public List<PlanPattern.Match> get(String rule)
+        {
+            return byRule.getOrDefault(rule, List.of());
+        }
+
+        /** True if {@code rule} matched with {@code rel} (by identity) as its root. */
+        public boolean matchedAt(String rule, RelNode rel)
+        {
+            Set<RelNode> r = roots.get(rule);
+            return r != null && r.contains(rel);
+        }
+
+        public Set<String> getRuleNames()
+        {
+            return byRule.keySet();
+        }
+
+        @Override
+        public String toString()
+        {
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            byRule.forEach((k, v) -> counts.put(k, v.size()));
+            return "Matches" + counts;
+        }
+    }
+
+    private static final String NO_ANCHOR = "";
+
+    private final List<Rule> rules;
+    private final Map<String, Rule> byName;
+    private final Map<String, Set<String>> required = new LinkedHashMap<>();
+    /** Concrete node class -> anchor table -> rules whose root type accepts that class. */
+    private final Map<Class<?>, Map<String, List<Rule>>> index = new ConcurrentHashMap<>();
+
+    private PatternRules(List<Rule> rules)
+    {
+        this.rules = List.copyOf(rules);
+        Map<String, Rule> names = new LinkedHashMap<>();
+        for (Rule r : this.rules) {
+            names.put(r.name(), r);
+            required.put(r.name(), r.requiredTables());
+        }
+        this.byName = Collections.unmodifiableMap(names);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public List<Rule> getRules()
+    {
+        return rules;
+    }
+
+    /** The rule named {@code name}; {@link IllegalArgumentException} if there is none. */
+    public Rule get(String name)
+    {
+        Rule r = byName.get(name);
+        if (r == null) throw new IllegalArgumentException("no pattern rule named " + name);
+        return r;
+    }
+
+    /** Match every rule against {@code plan}, whose scanned tables are {@code planTables} (lower-cased). */
+    public Matches match(RelNode plan, Set<String> planTables)
+    {
+        Map<String, List<PlanPattern.Match>> out = new LinkedHashMap<>();
+        if (plan == null) return new Matches(out);
+        PlanPattern.Context ctx = new PlanPattern.Context(plan);
+        Set<RelNode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<RelNode> stack = new ArrayDeque<>();
+        stack.push(plan);
+        while (!stack.isEmpty()) {
+            RelNode node = stack.pop();
+            if (!seen.add(node)) continue;
+            for (Rule r : candidates(node, planTables)) {
+                PlanPattern.Match m = r.pattern().match(node, ctx);
+                if (m != null) out.computeIfAbsent(r.name(), k -> new ArrayList<>()).add(m);
+            }
+            for (RelNode in : node.getInputs()) {
+                if (in != null) stack.push(in);
+            }
+        }
+        return new Matches(out);
+    }
+
+    /** {@link #match(RelNode, Set)} with the tables taken from {@link PlanFeatures}. */
+    public Matches match(RelNode plan)
+    {
+        return match(plan, plan == null ? Set.of() : PlanFeatures.of(plan).getTables());
+    }
+
+    private List<Rule> candidates(RelNode node, Set<String> planTables)
+    {
+        Map<String, List<Rule>> byAnchor = index.computeIfAbsent(node.getClass(), this::compile);
+        if (byAnchor.isEmpty()) return List.of();
+        List<Rule> out = new ArrayList<>(byAnchor.getOrDefault(NO_ANCHOR, List.of()));
+        int anchored = byAnchor.size() - (byAnchor.containsKey(NO_ANCHOR) ? 1 : 0);
+        if (anchored > 0) {
+            if (anchored <= planTables.size()) {
+                for (Map.Entry<String, List<Rule>> e : byAnchor.entrySet()) {
+                    if (!e.getKey().equals(NO_ANCHOR) && planTables.contains(e.getKey())) out.addAll(e.getValue());
+                }
+            } else {
+                for (String t : planTables) {
+                    List<Rule> rs = byAnchor.get(t);
+                    if (rs != null) out.addAll(rs);
+                }
+            }
+        }
+        out.removeIf(r -> !planTables.containsAll(required.get(r.name())));
+        return out;
+    }
+
+    private Map<String, List<Rule>> compile(Class<?> nodeClass)
+    {
+        Map<String, List<Rule>> byAnchor = new LinkedHashMap<>();
+        for (Rule r : rules) {
+            boolean accepts = false;
+            for (Class<? extends RelNode> t : r.pattern().getRootTypes()) {
+                if (t.isAssignableFrom(nodeClass)) {
+                    accepts = true;
+                    break;
+                }
+            }
+            if (!accepts) continue;
+            Set<String> tables = required.get(r.name());
+            String anchor = tables.isEmpty() ? NO_ANCHOR : tables.iterator().next();
+            byAnchor.computeIfAbsent(anchor, k -> new ArrayList<>()).add(r);
+        }
+        return byAnchor;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("PatternRules:");
+        for (Rule r : rules) {
+            sb.append(String.format("%n  %-28s %s", r.name(), r.pattern()));
+            if (!r.planTables().isEmpty()) sb.append(" in plans scanning ").append(r.planTables());
+        }
+        return sb.toString();
+    }
+
+    /** Collects rules in registration order; names must be unique. */
+    public static final class Builder
+    {
+        private final Map<String, Rule> rules = new LinkedHashMap<>();
+
+        private Builder() { }
+
+        /** A rule that only recognizes {@code pattern}. */
+        public Builder rule(String name, PlanPattern pattern)
+        {
+            return rule(name, pattern, Set.of(), null);
+        }
+
+        /**
+         * A rule for {@code pattern} in plans scanning all of {@code planTables},
+         * with an optional digest rewrite.
+         */
+        public Builder rule(String name, PlanPattern pattern, Set<String> planTables, UnaryOperator<String> digestRewrite)
+        {
+            if (name == null || name.isBlank()) throw new IllegalArgumentException("rule name is required");
+            if (pattern == null) throw new IllegalArgumentException("rule " + name + " has no pattern");
+            if (rules.containsKey(name)) throw new IllegalArgumentException("duplicate pattern rule " + name);
+            Set<String> tables = new LinkedHashSet<>();
+            for (String t : planTables) tables.add(t.toLowerCase(Locale.ROOT));
+            rules.put(name, new Rule(name, pattern, Collections.unmodifiableSet(tables), digestRewrite));
+            return this;
+        }
+
+        public PatternRules build()
+        {
+            return new PatternRules(new ArrayList<>(rules.values()));
+        }
+    }
+}
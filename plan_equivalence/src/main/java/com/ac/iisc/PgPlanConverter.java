@@ -0,0 +1,1749 @@
+package com.ac.iisc;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.calcite.avatica.util.TimeUnit;
+import org.apache.calcite.avatica.util.TimeUnitRange;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.CorrelationId;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexBuilder;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexSubQuery;
+import org.apache.calcite.rex.RexUtil;
+import org.apache.calcite.sql.SqlAggFunction;
+import org.apache.calcite.sql.SqlFunction;
+import org.apache.calcite.sql.SqlFunctionCategory;
+import org.apache.calcite.sql.SqlIdentifier;
+import org.apache.calcite.sql.SqlIntervalQualifier;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.SqlSyntax;
+import org.apache.calcite.sql.fun.SqlLibraryOperators;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.sql.parser.SqlParserPos;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.sql.validate.SqlNameMatchers;
+import org.apache.calcite.tools.FrameworkConfig;
+import org.apache.calcite.tools.RelBuilder;
+import org.apache.calcite.util.DateString;
+import org.apache.calcite.util.TimestampString;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Converts (cleaned) PostgreSQL {@code EXPLAIN (FORMAT JSON)} plans into
+ * Calcite {@link RelNode} trees so that plans captured earlier can be fed
+ * through the same canonical comparison machinery as SQL text, without
+ * re-EXPLAINing anything.
+ *
+ * <p>Supported node families:</p>
+ * <ul>
+ *   <li>Scans (Seq/Index/Index Only/Bitmap Heap) including their
+ *       {@code Filter}/{@code Index Cond}/{@code Recheck Cond} predicates.</li>
+ *   <li>Joins (Hash/Merge/Nested Loop) with {@code Hash Cond},
+ *       {@code Merge Cond} and {@code Join Filter}; parameterised inner
+ *       index conditions of a Nested Loop are lifted into the join.</li>
+ *   <li>Aggregate (Plain/Sorted/Hashed, partial/finalize pairs), Group and
+ *       Unique, Sort/Incremental Sort, Append/Merge Append,
+ *       SetOp (INTERSECT/EXCEPT), Subquery Scan, CTE Scan and Result.</li>
+ *   <li>SubPlans and InitPlans, which become {@link RexSubQuery} expressions
+ *       (correlated references to the enclosing node become correlation
+ *       variables).</li>
+ * </ul>
+ *
+ * <p>Plans must be captured with {@code EXPLAIN (VERBOSE, FORMAT JSON)}:
+ * every node's {@code Output} list is projected, and aggregate calls are
+ * taken from the outputs and predicates that reference them. A converted
+ * plan is complete or the conversion fails; nodes without {@code Output},
+ * aggregates whose calls cannot be recovered and Limit nodes (EXPLAIN does
+ * not print LIMIT/OFFSET values) raise {@link IllegalArgumentException},
+ * like any other construct that cannot be mapped.</p>
+ *
+ * <p>Converters (each with one {@link RelBuilder}) are kept for the
+ * {@value #MAX_CONVERTERS} most recently used {@link FrameworkConfig}s,
+ * matched by identity; conversions on the same converter are
+ * serialised.</p>
+ */
+public final class PgPlanConverter {
+
+    private static final int MAX_CONVERTERS = 8;
+
+    /** Recently used converters, most recent first. */
+    private static final List<PgPlanConverter> CONVERTERS = new ArrayList<>();
+
+    private static final Pattern INIT_PLAN_NAME =
+        Pattern.compile("^(InitPlan \\d+)(?: \\(returns (.*)\\))?$");
+
+    private static final Set<String> AGGREGATE_FUNCTIONS = Set.of(
+        "sum", "avg", "count", "min", "max", "stddev", "stddev_samp", "stddev_pop",
+        "variance", "var_samp", "var_pop", "bool_and", "bool_or", "every");
+
+    private final RelBuilder builder;
+    private final RexBuilder rexBuilder;
+    private final RelDataTypeFactory typeFactory;
+    private final FrameworkConfig config;
+
+    private PgPlanConverter(FrameworkConfig config) {
+        this.config = config;
+        this.builder = RelBuilder.create(config);
+        this.rexBuilder = builder.getRexBuilder();
+        this.typeFactory = builder.getTypeFactory();
+    }
+
+    /**
+     * Return the converter bound to {@code config} (the same instance, not an
+     * equal one), creating it if it is not among the recently used ones.
+     */
+    public static PgPlanConverter forConfig(FrameworkConfig config) {
+        if (config == null) throw new IllegalArgumentException("config must be non-null");
+        synchronized (CONVERTERS) {
+            for (int i = 0; i < CONVERTERS.size(); i++) {
+                PgPlanConverter converter = CONVERTERS.get(i);
+                if (converter.config != config) continue;
+                if (i > 0) CONVERTERS.add(0, CONVERTERS.remove(i));
+                return converter;
+            }
+            PgPlanConverter converter = new PgPlanConverter(config);
+            CONVERTERS.add(0, converter);
+            if (CONVERTERS.size() > MAX_CONVERTERS) CONVERTERS.remove(CONVERTERS.size() - 1);
+            return converter;
+        }
+    }
+
+    /**
+     * Convert a JSON plan string. Accepts the raw EXPLAIN array, an object
+     * with a top-level {@code "Plan"} key, or a cleaned plan root as produced
+     * by {@link GetQueryPlans#getCleanedQueryPlanJSONasString(String)}.
+     */
+    public RelNode convert(String jsonPlan) {
+        if (jsonPlan == null || jsonPlan.isBlank()) {
+            throw new IllegalArgumentException("jsonPlan must be non-null and non-blank");
+        }
+        String trimmed = jsonPlan.trim();
+        JSONObject root = trimmed.startsWith("[")
+            ? new JSONArray(trimmed).getJSONObject(0)
+            : new JSONObject(trimmed);
+        return convert(root);
+    }
+
+    /**
+     * Convert an already-parsed JSON plan (see {@link #convert(String)}).
+     */
+    public synchronized RelNode convert(JSONObject root) {
+        JSONObject plan = root.has("Plan") ? root.getJSONObject("Plan") : root;
+        builder.clear();
+        Context ctx = new Context();
+        registerSubplans(plan, ctx);
+        Frame frame = convertNode(plan, ctx, List.of());
+        if (!frame.deferred.isEmpty()) {
+            throw new IllegalArgumentException("Unresolved outer references in plan: " + frame.deferred);
+        }
+        return frame.rel;
+    }
+
+    // ---------------------------------------------------------------------
+    // Plan nodes
+    // ---------------------------------------------------------------------
+
+    /** Output columns of a converted plan node plus bookkeeping for its parent. */
+    private static final class Frame {
+        final RelNode rel;
+        final Scope scope;
+        /** Conjuncts that reference columns of an enclosing Nested Loop's outer side. */
+        final List<Expr> deferred;
+
+        Frame(RelNode rel, Scope scope, List<Expr> deferred) {
+            this.rel = rel;
+            this.scope = scope;
+            this.deferred = deferred;
+        }
+    }
+
+    /** Column naming of a row type, used to resolve plan expressions. */
+    private static final class Scope {
+        final RelDataType rowType;
+        final List<String[]> fields; // {alias, name}
+        final Map<String, Integer> exprFields;
+
+        Scope(RelDataType rowType, List<String[]> fields, Map<String, Integer> exprFields) {
+            this.rowType = rowType;
+            this.fields = fields;
+            this.exprFields = exprFields;
+        }
+
+        static Scope of(RelNode rel, String alias) {
+            List<String[]> fields = new ArrayList<>();
+            for (String name : rel.getRowType().getFieldNames()) {
+                fields.add(new String[] {alias, name.toLowerCase(Locale.ROOT)});
+            }
+            return new Scope(rel.getRowType(), fields, new HashMap<>());
+        }
+
+        Scope realias(RelNode rel, String alias) {
+            List<String[]> out = new ArrayList<>();
+            for (String[] f : fields) out.add(new String[] {alias, f[1]});
+            return new Scope(rel.getRowType(), out, new HashMap<>(exprFields));
+        }
+
+        Scope withRel(RelNode rel) {
+            return new Scope(rel.getRowType(), fields, exprFields);
+        }
+
+        static Scope concat(RelDataType rowType, Scope left, Scope right) {
+            List<String[]> fields = new ArrayList<>(left.fields);
+            fields.addAll(right.fields);
+            Map<String, Integer> expr = new HashMap<>(left.exprFields);
+            int offset = left.fields.size();
+            right.exprFields.forEach((k, v) -> expr.putIfAbsent(k, v + offset));
+            return new Scope(rowType, fields, expr);
+        }
+
+        int lookup(String qualifier, String name) {
+            String n = name.toLowerCase(Locale.ROOT);
+            for (int i = 0; i < fields.size(); i++) {
+                String[] f = fields.get(i);
+                if (!f[1].equals(n)) continue;
+                if (qualifier == null || qualifier.equalsIgnoreCase(f[0])) return i;
+            }
+            return -1;
+        }
+    }
+
+    /** Per-conversion state: subplan index, CTE cache and correlation stack. */
+    private static final class Context {
+        final Map<String, JSONObject> subplans = new HashMap<>();
+        final Map<String, String[]> params = new HashMap<>(); // $N -> {initplan, column}
+        final Map<String, Frame> ctes = new HashMap<>();
+        final List<Correlation> correlations = new ArrayList<>();
+        Set<CorrelationId> usedCorrelations = new LinkedHashSet<>();
+    }
+
+    private static final class Correlation {
+        final Scope scope;
+        final CorrelationId id;
+        boolean used;
+
+        Correlation(Scope scope, CorrelationId id) {
+            this.scope = scope;
+            this.id = id;
+        }
+    }
+
+    /** Thrown while resolving an expression whose column is not visible yet. */
+    private static final class UnresolvedReference extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnresolvedReference(String column) {
+            super(column, null, false, false);
+        }
+    }
+
+    private static void registerSubplans(JSONObject node, Context ctx) {
+        JSONArray plans = node.optJSONArray("Plans");
+        if (plans == null) return;
+        for (int i = 0; i < plans.length(); i++) {
+            JSONObject child = plans.getJSONObject(i);
+            String name = child.optString("Subplan Name", null);
+            if (name != null) {
+                Matcher m = INIT_PLAN_NAME.matcher(name);
+                if (m.matches()) {
+                    ctx.subplans.put(m.group(1), child);
+                    if (m.group(2) != null) {
+                        String[] params = m.group(2).split(",");
+                        for (int p = 0; p < params.length; p++) {
+                            ctx.params.put(params[p].trim(), new String[] {m.group(1), String.valueOf(p + 1)});
+                        }
+                    }
+                } else {
+                    ctx.subplans.put(name, child);
+                }
+            }
+            registerSubplans(child, ctx);
+        }
+    }
+
+    private static List<JSONObject> structuralChildren(JSONObject node) {
+        List<JSONObject> out = new ArrayList<>();
+        JSONArray plans = node.optJSONArray("Plans");
+        if (plans == null) return out;
+        for (int i = 0; i < plans.length(); i++) {
+            JSONObject child = plans.getJSONObject(i);
+            if (!child.has("Subplan Name")) out.add(child);
+        }
+        return out;
+    }
+
+    private static JSONObject onlyChild(JSONObject node) {
+        List<JSONObject> children = structuralChildren(node);
+        if (children.size() != 1) {
+            throw new IllegalArgumentException(node.optString("Node Type") + " node must have exactly one child plan");
+        }
+        return children.get(0);
+    }
+
+    /**
+     * Convert one plan node. {@code demand} holds expressions of ancestor
+     * nodes, which is where aggregate calls of a descendant Aggregate are
+     * discovered.
+     */
+    private Frame convertNode(JSONObject node, Context ctx, List<Expr> demand) {
+        String type = node.optString("Node Type", "");
+        List<Expr> ownExprs = ownExpressions(node, ctx);
+        List<Expr> childDemand = new ArrayList<>(demand);
+        childDemand.addAll(ownExprs);
+
+        Frame frame = switch (type) {
+            case "Seq Scan", "Index Scan", "Index Only Scan", "Bitmap Heap Scan", "Tid Scan", "Sample Scan" ->
+                convertScan(node, ctx);
+            case "Hash Join", "Merge Join", "Nested Loop" -> convertJoin(node, ctx, childDemand);
+            case "Aggregate", "Group" -> convertAggregate(node, ctx, childDemand);
+            case "Sort", "Incremental Sort" -> convertSort(node, ctx, childDemand);
+            case "Limit" -> throw new IllegalArgumentException("Limit is not supported: EXPLAIN omits the LIMIT/OFFSET values");
+            case "Unique" -> convertUnique(node, ctx, childDemand);
+            case "Append", "Merge Append" -> convertAppend(node, ctx, childDemand);
+            case "SetOp" -> convertSetOp(node, ctx, childDemand);
+            case "Subquery Scan" -> convertSubqueryScan(node, ctx, childDemand);
+            case "CTE Scan" -> convertCteScan(node, ctx);
+            case "Result" -> convertResult(node, ctx, childDemand);
+            case "Hash", "Materialize", "Memoize", "Gather", "Gather Merge", "LockRows" ->
+                convertNode(onlyChild(node), ctx, childDemand);
+            default -> throw new IllegalArgumentException("Unsupported plan node type: " + type);
+        };
+        return applyOutput(node, frame, ctx);
+    }
+
+    /** Parse the expressions a node evaluates, used as demand for descendants. */
+    private List<Expr> ownExpressions(JSONObject node, Context ctx) {
+        List<Expr> out = new ArrayList<>();
+        for (String key : List.of("Filter", "Join Filter", "Hash Cond", "Merge Cond", "One-Time Filter")) {
+            String cond = node.optString(key, null);
+            if (cond != null) out.add(parse(cond, ctx));
+        }
+        for (String key : List.of("Sort Key", "Output")) {
+            JSONArray arr = node.optJSONArray(key);
+            if (arr == null || key.equals("Output") && isPartial(node, arr)) continue;
+            for (int i = 0; i < arr.length(); i++) out.add(parseSortKey(arr.getString(i), ctx).expr);
+        }
+        return out;
+    }
+
+    private Frame convertScan(JSONObject node, Context ctx) {
+        String table = node.optString("Relation Name", null);
+        if (table == null || table.isBlank()) {
+            throw new IllegalArgumentException("JSON plan scan node is missing 'Relation Name': " + node);
+        }
+        String alias = node.optString("Alias", table);
+        builder.scan(table);
+        RelNode scan = builder.build();
+        Frame frame = new Frame(scan, Scope.of(scan, alias), List.of());
+
+        // Bitmap heap scans repeat their index conditions as "Recheck Cond".
+        String indexKey = "Bitmap Heap Scan".equals(node.optString("Node Type")) ? "Recheck Cond" : "Index Cond";
+        List<Expr> conjuncts = new ArrayList<>();
+        for (String key : List.of(indexKey, "Filter")) {
+            String cond = node.optString(key, null);
+            if (cond != null) conjuncts.addAll(conjuncts(parse(cond, ctx)));
+        }
+        return filter(frame, conjuncts, ctx, true);
+    }
+
+    private Frame convertJoin(JSONObject node, Context ctx, List<Expr> demand) {
+        List<JSONObject> children = structuralChildren(node);
+        if (children.size() != 2) {
+            throw new IllegalArgumentException("Join node must have two child plans: " + node.optString("Node Type"));
+        }
+        String joinTypeStr = node.optString("Join Type", "Inner");
+        boolean swap = joinTypeStr.equals("Right Semi") || joinTypeStr.equals("Right Anti");
+        JoinRelType joinType = switch (joinTypeStr) {
+            case "Left" -> JoinRelType.LEFT;
+            case "Right" -> JoinRelType.RIGHT;
+            case "Full" -> JoinRelType.FULL;
+            case "Semi", "Right Semi" -> JoinRelType.SEMI;
+            case "Anti", "Right Anti" -> JoinRelType.ANTI;
+            default -> JoinRelType.INNER;
+        };
+
+        Frame left = convertNode(children.get(swap ? 1 : 0), ctx, demand);
+        Frame right = convertNode(children.get(swap ? 0 : 1), ctx, demand);
+
+        RelDataType joinRow = typeFactory.createJoinType(left.rel.getRowType(), right.rel.getRowType());
+        Scope combined = Scope.concat(joinRow, left.scope, right.scope);
+
+        List<Expr> conds = new ArrayList<>();
+        for (String key : List.of("Hash Cond", "Merge Cond", "Join Filter")) {
+            String cond = node.optString(key, null);
+            if (cond != null) conds.addAll(conjuncts(parse(cond, ctx)));
+        }
+        conds.addAll(left.deferred);
+        conds.addAll(right.deferred);
+
+        List<RexNode> resolved = new ArrayList<>();
+        List<Expr> deferred = new ArrayList<>();
+        Set<CorrelationId> used = withCorrelationCollector(ctx, () -> {
+            for (Expr e : conds) {
+                try {
+                    resolved.add(resolve(e, combined, ctx, true));
+                } catch (UnresolvedReference ur) {
+                    deferred.add(e);
+                }
+            }
+        });
+
+        builder.push(left.rel).push(right.rel);
+        builder.join(joinType, RexUtil.composeConjunction(rexBuilder, resolved), used);
+        RelNode join = builder.build();
+        Scope scope = joinType.projectsRight() ? combined.withRel(join) : left.scope.withRel(join);
+        Frame frame = new Frame(join, scope, deferred);
+        return filterFromKey(node, "Filter", frame, ctx);
+    }
+
+    private Frame convertAggregate(JSONObject node, Context ctx, List<Expr> demand) {
+        Frame child = convertNode(onlyChild(node), ctx, demand);
+        if ("Partial".equals(node.optString("Partial Mode"))) {
+            // The matching "Finalize" aggregate above rebuilds the grouping.
+            return child;
+        }
+        if (node.has("Grouping Sets")) {
+            throw new IllegalArgumentException("Grouping sets are not supported");
+        }
+
+        List<Expr> keyExprs = new ArrayList<>();
+        JSONArray keys = node.optJSONArray("Group Key");
+        if (keys != null) {
+            for (int i = 0; i < keys.length(); i++) keyExprs.add(parse(keys.getString(i), ctx));
+        }
+
+        Map<String, Expr> calls = new LinkedHashMap<>();
+        for (Expr e : demand) collectAggregateCalls(e, calls);
+
+        List<RexNode> keyRex = new ArrayList<>();
+        List<RelBuilder.AggCall> aggCalls = new ArrayList<>();
+        Set<CorrelationId> used = withCorrelationCollector(ctx, () -> {
+            for (Expr k : keyExprs) keyRex.add(resolve(k, child.scope, ctx, false));
+            for (Expr c : calls.values()) aggCalls.add(toAggCall((Call) c, child.scope, ctx));
+        });
+        if (!used.isEmpty()) {
+            throw new IllegalArgumentException("Correlated subqueries inside aggregate keys are not supported");
+        }
+
+        if (keyRex.isEmpty() && aggCalls.isEmpty()) {
+            throw new IllegalArgumentException("Aggregate calls of a plain aggregate cannot be recovered from the plan");
+        }
+        builder.push(child.rel).aggregate(builder.groupKey(keyRex), aggCalls);
+        RelNode agg = builder.build();
+
+        List<String[]> fields = new ArrayList<>();
+        Map<String, Integer> exprFields = new HashMap<>();
+        for (int i = 0; i < keyExprs.size(); i++) {
+            Expr k = keyExprs.get(i);
+            if (k instanceof Col col) {
+                int idx = child.scope.lookup(col.qualifier, col.name);
+                fields.add(idx >= 0 ? child.scope.fields.get(idx) : new String[] {null, col.name});
+            } else {
+                fields.add(new String[] {null, "$k" + i});
+                exprFields.put(k.render(), i);
+            }
+        }
+        int i = keyExprs.size();
+        for (String rendered : calls.keySet()) {
+            fields.add(new String[] {null, "$a" + i});
+            exprFields.put(rendered, i++);
+        }
+        Frame frame = new Frame(agg, new Scope(agg.getRowType(), fields, exprFields), child.deferred);
+        return filterFromKey(node, "Filter", frame, ctx);
+    }
+
+    private RelBuilder.AggCall toAggCall(Call call, Scope scope, Context ctx) {
+        SqlAggFunction fn = switch (call.name) {
+            case "sum" -> SqlStdOperatorTable.SUM;
+            case "avg" -> SqlStdOperatorTable.AVG;
+            case "count" -> SqlStdOperatorTable.COUNT;
+            case "min" -> SqlStdOperatorTable.MIN;
+            case "max" -> SqlStdOperatorTable.MAX;
+            case "stddev", "stddev_samp" -> SqlStdOperatorTable.STDDEV_SAMP;
+            case "stddev_pop" -> SqlStdOperatorTable.STDDEV_POP;
+            case "variance", "var_samp" -> SqlStdOperatorTable.VAR_SAMP;
+            case "var_pop" -> SqlStdOperatorTable.VAR_POP;
+            case "bool_and", "every" -> SqlLibraryOperators.BOOL_AND;
+            case "bool_or" -> SqlLibraryOperators.BOOL_OR;
+            default -> throw new IllegalArgumentException("Unsupported aggregate function: " + call.name);
+        };
+        List<RexNode> args = new ArrayList<>();
+        if (!call.star) {
+            for (Expr a : call.args) args.add(resolve(a, scope, ctx, false));
+        }
+        return builder.aggregateCall(fn, args).distinct(call.distinct);
+    }
+
+    private static void collectAggregateCalls(Expr e, Map<String, Expr> out) {
+        if (e instanceof Call c && AGGREGATE_FUNCTIONS.contains(c.name)) {
+            out.putIfAbsent(c.render(), c);
+            return;
+        }
+        for (Expr child : e.children()) collectAggregateCalls(child, out);
+    }
+
+    private Frame convertSort(JSONObject node, Context ctx, List<Expr> demand) {
+        Frame child = convertNode(onlyChild(node), ctx, demand);
+        JSONArray keys = node.optJSONArray("Sort Key");
+        List<RexNode> sortRex = new ArrayList<>();
+        if (keys != null) {
+            for (int i = 0; i < keys.length(); i++) {
+                SortKey key = parseSortKey(keys.getString(i), ctx);
+                RexNode rex = resolve(key.expr, child.scope, ctx, false);
+                if (key.descending) rex = builder.desc(rex);
+                if (key.nullsFirst != null) rex = key.nullsFirst ? builder.nullsFirst(rex) : builder.nullsLast(rex);
+                sortRex.add(rex);
+            }
+        }
+        builder.push(child.rel).sort(sortRex);
+        RelNode sort = builder.build();
+        return new Frame(sort, child.scope.withRel(sort), child.deferred);
+    }
+
+    private Frame convertUnique(JSONObject node, Context ctx, List<Expr> demand) {
+        Frame child = convertNode(onlyChild(node), ctx, demand);
+        builder.push(child.rel).distinct();
+        RelNode distinct = builder.build();
+        return new Frame(distinct, child.scope.withRel(distinct), child.deferred);
+    }
+
+    private Frame convertAppend(JSONObject node, Context ctx, List<Expr> demand) {
+        List<JSONObject> children = structuralChildren(node);
+        if (children.isEmpty()) throw new IllegalArgumentException("Append node without child plans");
+        List<Frame> branches = new ArrayList<>();
+        for (JSONObject child : children) branches.add(convertNode(child, ctx, demand));
+        if (branches.size() == 1) return branches.get(0);
+        pushBranches(branches);
+        builder.union(true, branches.size());
+        RelNode union = builder.build();
+        return new Frame(union, branches.get(0).scope.withRel(union), List.of());
+    }
+
+    private Frame convertSetOp(JSONObject node, Context ctx, List<Expr> demand) {
+        JSONObject append = onlyChild(node);
+        while (!"Append".equals(append.optString("Node Type"))) {
+            append = onlyChild(append);
+        }
+        List<Frame> branches = new ArrayList<>();
+        for (JSONObject child : structuralChildren(append)) branches.add(convertNode(child, ctx, demand));
+        pushBranches(branches);
+        String command = node.optString("Command", "");
+        boolean all = command.endsWith(" All");
+        if (command.startsWith("Intersect")) {
+            builder.intersect(all, branches.size());
+        } else if (command.startsWith("Except")) {
+            builder.minus(all, branches.size());
+        } else {
+            throw new IllegalArgumentException("Unsupported SetOp command: " + command);
+        }
+        RelNode setOp = builder.build();
+        return new Frame(setOp, branches.get(0).scope.withRel(setOp), List.of());
+    }
+
+    private void pushBranches(List<Frame> branches) {
+        int arity = branches.get(0).rel.getRowType().getFieldCount();
+        for (Frame f : branches) {
+            if (f.rel.getRowType().getFieldCount() != arity || !f.deferred.isEmpty()) {
+                throw new IllegalArgumentException(
+                    "Set operation branches have different column counts; capture the plan with VERBOSE");
+            }
+            builder.push(f.rel);
+        }
+    }
+
+    private Frame convertSubqueryScan(JSONObject node, Context ctx, List<Expr> demand) {
+        Frame child = convertNode(onlyChild(node), ctx, demand);
+        String alias = node.optString("Alias", null);
+        Frame frame = new Frame(child.rel, child.scope.realias(child.rel, alias), child.deferred);
+        return filterFromKey(node, "Filter", frame, ctx);
+    }
+
+    private Frame convertCteScan(JSONObject node, Context ctx) {
+        String name = node.optString("CTE Name", null);
+        Frame body = ctx.ctes.get(name);
+        if (body == null) {
+            JSONObject def = ctx.subplans.get("CTE " + name);
+            if (def == null) throw new IllegalArgumentException("CTE definition not found: " + name);
+            body = convertNode(def, ctx, List.of());
+            ctx.ctes.put(name, body);
+        }
+        String alias = node.optString("Alias", name);
+        Frame frame = new Frame(body.rel, body.scope.realias(body.rel, alias), List.of());
+        return filterFromKey(node, "Filter", frame, ctx);
+    }
+
+    private Frame convertResult(JSONObject node, Context ctx, List<Expr> demand) {
+        List<JSONObject> children = structuralChildren(node);
+        Frame frame;
+        if (children.isEmpty()) {
+            builder.values(new String[] {"dummy"}, 0);
+            RelNode values = builder.build();
+            frame = new Frame(values, Scope.of(values, null), List.of());
+        } else {
+            frame = convertNode(children.get(0), ctx, demand);
+        }
+        frame = filterFromKey(node, "One-Time Filter", frame, ctx);
+        return filterFromKey(node, "Filter", frame, ctx);
+    }
+
+    /** Project the VERBOSE {@code Output} list of {@code node}. */
+    private Frame applyOutput(JSONObject node, Frame frame, Context ctx) {
+        JSONArray output = node.optJSONArray("Output");
+        if (output == null) {
+            throw new IllegalArgumentException(node.optString("Node Type") + " node has no 'Output' list; capture the plan with VERBOSE");
+        }
+        if (isPartial(node, output)) return frame;
+        List<RexNode> exprs = new ArrayList<>();
+        List<String[]> fields = new ArrayList<>();
+        Map<String, Integer> exprFields = new HashMap<>();
+        Set<CorrelationId> used = withCorrelationCollector(ctx, () -> {
+            for (int i = 0; i < output.length(); i++) {
+                Expr e = parse(output.getString(i), ctx);
+                exprs.add(resolve(e, frame.scope, ctx, false));
+                if (e instanceof Col col) {
+                    int idx = frame.scope.lookup(col.qualifier, col.name);
+                    fields.add(idx >= 0 ? frame.scope.fields.get(idx) : new String[] {col.qualifier, col.name});
+                } else {
+                    fields.add(new String[] {null, "$o" + i});
+                    exprFields.put(e.render(), i);
+                }
+            }
+        });
+        builder.push(frame.rel).project(exprs, List.of(), true, used);
+        RelNode project = builder.build();
+        return new Frame(project, new Scope(project.getRowType(), fields, exprFields), frame.deferred);
+    }
+
+    /**
+     * True for a partial aggregate and the nodes that pass its partial states
+     * up to the Finalize aggregate; their rows are still the aggregate's input
+     * (see {@link #convertAggregate}).
+     */
+    private static boolean isPartial(JSONObject node, JSONArray output) {
+        if ("Partial".equals(node.optString("Partial Mode"))) return true;
+        for (int i = 0; i < output.length(); i++) {
+            String o = output.getString(i);
+            if (o.startsWith("PARTIAL ") || o.startsWith("(PARTIAL ")) return true;
+        }
+        return false;
+    }
+
+    private Frame filterFromKey(JSONObject node, String key, Frame frame, Context ctx) {
+        String cond = node.optString(key, null);
+        if (cond == null) return frame;
+        return filter(frame, conjuncts(parse(cond, ctx)), ctx, false);
+    }
+
+    /**
+     * Apply {@code conjuncts} on top of {@code frame}. When {@code allowDefer}
+     * is set, conjuncts that reference columns outside the frame (Nested Loop
+     * parameters) are handed to the enclosing join instead.
+     */
+    private Frame filter(Frame frame, List<Expr> conjuncts, Context ctx, boolean allowDefer) {
+        if (conjuncts.isEmpty()) return frame;
+        List<RexNode> resolved = new ArrayList<>();
+        List<Expr> deferred = new ArrayList<>(frame.deferred);
+        Set<CorrelationId> used = withCorrelationCollector(ctx, () -> {
+            for (Expr e : conjuncts) {
+                try {
+                    resolved.add(resolve(e, frame.scope, ctx, true));
+                } catch (UnresolvedReference ur) {
+                    if (!allowDefer) throw new IllegalArgumentException("Unknown column reference: " + ur.getMessage());
+                    deferred.add(e);
+                }
+            }
+        });
+        if (resolved.isEmpty()) return new Frame(frame.rel, frame.scope, deferred);
+        builder.push(frame.rel).filter(used, resolved);
+        RelNode filter = builder.build();
+        return new Frame(filter, frame.scope.withRel(filter), deferred);
+    }
+
+    /** Run {@code body} and return the correlation ids its subqueries captured. */
+    private static Set<CorrelationId> withCorrelationCollector(Context ctx, Runnable body) {
+        Set<CorrelationId> saved = ctx.usedCorrelations;
+        ctx.usedCorrelations = new LinkedHashSet<>();
+        try {
+            body.run();
+            return ctx.usedCorrelations;
+        } finally {
+            ctx.usedCorrelations = saved;
+        }
+    }
+
+    private static List<Expr> conjuncts(Expr e) {
+        List<Expr> out = new ArrayList<>();
+        if (e instanceof Op op && op.op.equals("and")) {
+            for (Expr a : op.args) out.addAll(conjuncts(a));
+        } else {
+            out.add(e);
+        }
+        return out;
+    }
+
+    // ---------------------------------------------------------------------
+    // Expression resolution
+    // ---------------------------------------------------------------------
+
+    private RexNode resolve(Expr e, Scope scope, Context ctx, boolean predicate) {
+        if (!(e instanceof Col)) {
+            Integer idx = scope.exprFields.get(e.render());
+            if (idx != null) return inputRef(scope, idx);
+        }
+        if (e instanceof Col col) return resolveColumn(col, scope, ctx);
+        if (e instanceof Lit lit) return literal(lit.text, lit.kind == LitKind.STRING ? null : lit.kind.name());
+        if (e instanceof Cast cast) return resolveCast(cast, scope, ctx);
+        if (e instanceof Op op) return resolveOp(op, scope, ctx, predicate);
+        if (e instanceof Quantified q) return resolveQuantified(q, scope, ctx);
+        if (e instanceof SubLinkTest t) return resolveSubLinkTest(t, scope, ctx);
+        if (e instanceof SubPlanRef ref) return resolveSubPlan(ref, scope, ctx, predicate);
+        if (e instanceof Case c) return resolveCase(c, scope, ctx);
+        if (e instanceof Call call) return resolveCall(call, scope, ctx);
+        throw new IllegalArgumentException("Unsupported expression: " + e.render());
+    }
+
+    private RexNode inputRef(Scope scope, int idx) {
+        return rexBuilder.makeInputRef(scope.rowType.getFieldList().get(idx).getType(), idx);
+    }
+
+    private RexNode resolveColumn(Col col, Scope scope, Context ctx) {
+        int idx = scope.lookup(col.qualifier, col.name);
+        if (idx >= 0) return inputRef(scope, idx);
+        for (int i = ctx.correlations.size() - 1; i >= 0; i--) {
+            Correlation c = ctx.correlations.get(i);
+            int outer = c.scope.lookup(col.qualifier, col.name);
+            if (outer >= 0) {
+                c.used = true;
+                return rexBuilder.makeFieldAccess(rexBuilder.makeCorrel(c.scope.rowType, c.id), outer);
+            }
+        }
+        throw new UnresolvedReference(col.render(true));
+    }
+
+    private RexNode resolveCast(Cast cast, Scope scope, Context ctx) {
+        if (cast.type.endsWith("[]")) {
+            throw new IllegalArgumentException("Array values are only supported as ANY/ALL operands: " + cast.render());
+        }
+        if (cast.expr instanceof Lit lit && lit.kind != LitKind.NULL) {
+            return literal(lit.text, cast.type);
+        }
+        RexNode inner = resolve(cast.expr, scope, ctx, false);
+        RelDataType target = sqlType(cast.type);
+        if (target == null || target.getSqlTypeName() == inner.getType().getSqlTypeName()) return inner;
+        return rexBuilder.makeCast(typeFactory.createTypeWithNullability(target, inner.getType().isNullable()), inner);
+    }
+
+    private RexNode resolveOp(Op op, Scope scope, Context ctx, boolean predicate) {
+        boolean boolArgs = op.op.equals("and") || op.op.equals("or") || op.op.equals("not");
+        List<RexNode> args = new ArrayList<>();
+        for (Expr a : op.args) args.add(resolve(a, scope, ctx, boolArgs && predicate));
+        SqlOperator operator = switch (op.op) {
+            case "and" -> SqlStdOperatorTable.AND;
+            case "or" -> SqlStdOperatorTable.OR;
+            case "not" -> SqlStdOperatorTable.NOT;
+            case "=" -> SqlStdOperatorTable.EQUALS;
+            case "<>", "!=" -> SqlStdOperatorTable.NOT_EQUALS;
+            case "<" -> SqlStdOperatorTable.LESS_THAN;
+            case "<=" -> SqlStdOperatorTable.LESS_THAN_OR_EQUAL;
+            case ">" -> SqlStdOperatorTable.GREATER_THAN;
+            case ">=" -> SqlStdOperatorTable.GREATER_THAN_OR_EQUAL;
+            case "+" -> SqlStdOperatorTable.PLUS;
+            case "-" -> SqlStdOperatorTable.MINUS;
+            case "*" -> SqlStdOperatorTable.MULTIPLY;
+            case "/" -> SqlStdOperatorTable.DIVIDE;
+            case "%" -> SqlStdOperatorTable.MOD;
+            case "||" -> SqlStdOperatorTable.CONCAT;
+            case "~~" -> SqlStdOperatorTable.LIKE;
+            case "!~~" -> SqlStdOperatorTable.NOT_LIKE;
+            case "~~*" -> SqlLibraryOperators.ILIKE;
+            case "!~~*" -> SqlLibraryOperators.NOT_ILIKE;
+            case "neg" -> SqlStdOperatorTable.UNARY_MINUS;
+            case "is null" -> SqlStdOperatorTable.IS_NULL;
+            case "is not null" -> SqlStdOperatorTable.IS_NOT_NULL;
+            case "is true" -> SqlStdOperatorTable.IS_TRUE;
+            case "is false" -> SqlStdOperatorTable.IS_FALSE;
+            default -> throw new IllegalArgumentException("Unsupported operator: " + op.op);
+        };
+        return rexBuilder.makeCall(operator, args);
+    }
+
+    /** {@code x op ANY ('{...}'::type[])} → disjunction (conjunction for ALL). */
+    private RexNode resolveQuantified(Quantified q, Scope scope, Context ctx) {
+        List<Expr> elements = new ArrayList<>();
+        if (q.array instanceof Cast cast && cast.expr instanceof Lit lit && cast.type.endsWith("[]")) {
+            String elemType = cast.type.substring(0, cast.type.length() - 2);
+            for (String v : splitArrayLiteral(lit.text)) {
+                elements.add(v == null ? new Lit("NULL", LitKind.NULL) : new Cast(new Lit(v, LitKind.STRING), elemType));
+            }
+        } else if (q.array instanceof Call arr && arr.name.equals("array")) {
+            elements.addAll(arr.args);
+        } else {
+            throw new IllegalArgumentException("Unsupported ANY/ALL operand: " + q.array.render());
+        }
+        List<RexNode> terms = new ArrayList<>();
+        for (Expr el : elements) {
+            terms.add(resolve(new Op(q.op, List.of(q.left, el)), scope, ctx, false));
+        }
+        return q.all ? RexUtil.composeConjunction(rexBuilder, terms) : RexUtil.composeDisjunction(rexBuilder, terms);
+    }
+
+    /** {@code ANY (x = (SubPlan 1).col1)} as printed by newer PostgreSQL releases. */
+    private RexNode resolveSubLinkTest(SubLinkTest t, Scope scope, Context ctx) {
+        if (!(t.test instanceof Op op) || op.args.size() != 2 || !(op.args.get(1) instanceof SubPlanRef ref)) {
+            throw new IllegalArgumentException("Unsupported sublink test: " + t.render());
+        }
+        RexNode left = resolve(op.args.get(0), scope, ctx, false);
+        RelNode sub = convertSubPlan(ref, scope, ctx);
+        ImmutableList<RexNode> lhs = ImmutableList.of(left);
+        if (!t.all && op.op.equals("=")) return RexSubQuery.in(sub, lhs);
+        if (t.all && op.op.equals("<>")) return rexBuilder.makeCall(SqlStdOperatorTable.NOT, RexSubQuery.in(sub, lhs));
+        SqlKind kind = switch (op.op) {
+            case "=" -> SqlKind.EQUALS;
+            case "<>" -> SqlKind.NOT_EQUALS;
+            case "<" -> SqlKind.LESS_THAN;
+            case "<=" -> SqlKind.LESS_THAN_OR_EQUAL;
+            case ">" -> SqlKind.GREATER_THAN;
+            case ">=" -> SqlKind.GREATER_THAN_OR_EQUAL;
+            default -> throw new IllegalArgumentException("Unsupported sublink operator: " + op.op);
+        };
+        if (t.all) return rexBuilder.makeCall(SqlStdOperatorTable.NOT,
+            RexSubQuery.some(sub, lhs, SqlStdOperatorTable.some(kind.negateNullSafe())));
+        return RexSubQuery.some(sub, lhs, SqlStdOperatorTable.some(kind));
+    }
+
+    private RexNode resolveSubPlan(SubPlanRef ref, Scope scope, Context ctx, boolean predicate) {
+        RelNode sub = convertSubPlan(ref, scope, ctx);
+        int arity = sub.getRowType().getFieldCount();
+        if (ref.column > 0) {
+            if (arity == 1) return RexSubQuery.scalar(sub);
+            builder.push(sub).project(builder.field(ref.column - 1));
+            return RexSubQuery.scalar(builder.build());
+        }
+        // Boolean-valued SubPlans are EXISTS tests (the IN test expression of a
+        // hashed SubPlan is not printed, so it is approximated the same way).
+        if (predicate || ref.hashed) return RexSubQuery.exists(sub);
+        if (arity != 1) {
+            throw new IllegalArgumentException(ref.name + " returns " + arity
+                + " columns; capture the plan with VERBOSE to recover its output");
+        }
+        return RexSubQuery.scalar(sub);
+    }
+
+    private RelNode convertSubPlan(SubPlanRef ref, Scope scope, Context ctx) {
+        JSONObject def = ctx.subplans.get(ref.name);
+        if (def == null) throw new IllegalArgumentException("Subplan not found: " + ref.name);
+        Correlation corr = new Correlation(scope, builder.getCluster().createCorrel());
+        ctx.correlations.add(corr);
+        Frame frame;
+        try {
+            frame = convertNode(def, ctx, List.of());
+        } finally {
+            ctx.correlations.remove(ctx.correlations.size() - 1);
+        }
+        if (!frame.deferred.isEmpty()) {
+            throw new IllegalArgumentException("Unresolved references in " + ref.name + ": " + frame.deferred);
+        }
+        if (corr.used) ctx.usedCorrelations.add(corr.id);
+        return frame.rel;
+    }
+
+    private RexNode resolveCase(Case c, Scope scope, Context ctx) {
+        List<RexNode> args = new ArrayList<>();
+        for (int i = 0; i < c.whens.size(); i++) {
+            Expr when = c.operand == null ? c.whens.get(i) : new Op("=", List.of(c.operand, c.whens.get(i)));
+            args.add(resolve(when, scope, ctx, false));
+            args.add(resolve(c.thens.get(i), scope, ctx, false));
+        }
+        args.add(c.elseExpr == null
+            ? rexBuilder.makeNullLiteral(args.get(1).getType())
+            : resolve(c.elseExpr, scope, ctx, false));
+        return rexBuilder.makeCall(SqlStdOperatorTable.CASE, args);
+    }
+
+    private RexNode resolveCall(Call call, Scope scope, Context ctx) {
+        if (AGGREGATE_FUNCTIONS.contains(call.name)) {
+            throw new IllegalArgumentException("Aggregate " + call.render() + " is not produced by any input");
+        }
+        if (call.name.equals("extract") || call.name.equals("date_part")) {
+            String unit = call.args.get(0) instanceof Lit l ? l.text
+                : call.args.get(0) instanceof Cast c && c.expr instanceof Lit l2 ? l2.text
+                : ((Col) call.args.get(0)).name;
+            TimeUnitRange range = TimeUnitRange.valueOf(unit.toUpperCase(Locale.ROOT));
+            return rexBuilder.makeCall(SqlStdOperatorTable.EXTRACT,
+                rexBuilder.makeFlag(range), resolve(call.args.get(1), scope, ctx, false));
+        }
+        List<RexNode> args = new ArrayList<>();
+        for (Expr a : call.args) args.add(resolve(a, scope, ctx, false));
+        SqlOperator fn = switch (call.name) {
+            case "substring", "substr" -> SqlStdOperatorTable.SUBSTRING;
+            case "upper" -> SqlStdOperatorTable.UPPER;
+            case "lower" -> SqlStdOperatorTable.LOWER;
+            case "abs" -> SqlStdOperatorTable.ABS;
+            case "round" -> SqlStdOperatorTable.ROUND;
+            case "coalesce" -> SqlStdOperatorTable.COALESCE;
+            case "nullif" -> SqlStdOperatorTable.NULLIF;
+            case "length", "char_length" -> SqlStdOperatorTable.CHAR_LENGTH;
+            case "least" -> SqlLibraryOperators.LEAST;
+            case "greatest" -> SqlLibraryOperators.GREATEST;
+            default -> lookupFunction(call.name);
+        };
+        return rexBuilder.makeCall(fn, args);
+    }
+
+    private SqlOperator lookupFunction(String name) {
+        List<SqlOperator> found = new ArrayList<>();
+        config.getOperatorTable().lookupOperatorOverloads(
+            new SqlIdentifier(name.toUpperCase(Locale.ROOT), SqlParserPos.ZERO),
+            SqlFunctionCategory.USER_DEFINED_FUNCTION, SqlSyntax.FUNCTION, found, SqlNameMatchers.liberal());
+        for (SqlOperator op : found) {
+            if (op instanceof SqlFunction) return op;
+        }
+        throw new IllegalArgumentException("Unsupported function: " + name);
+    }
+
+    /** Build a literal of PostgreSQL type {@code pgType} ({@code null} = untyped string). */
+    private RexNode literal(String text, String pgType) {
+        if (pgType == null) return rexBuilder.makeLiteral(text);
+        switch (pgType) {
+            case "NULL":
+                return rexBuilder.makeNullLiteral(typeFactory.createSqlType(SqlTypeName.NULL));
+            case "TRUE":
+            case "FALSE":
+                return rexBuilder.makeLiteral(Boolean.parseBoolean(pgType));
+            case "NUMBER":
+                return text.contains("e") || text.contains("E")
+                    ? rexBuilder.makeApproxLiteral(new BigDecimal(text))
+                    : rexBuilder.makeExactLiteral(new BigDecimal(text));
+            default:
+                break;
+        }
+        if (pgType.equals("interval")) return intervalLiteral(text);
+        RelDataType type = sqlType(pgType);
+        if (type == null) return rexBuilder.makeLiteral(text);
+        try {
+            return switch (type.getSqlTypeName()) {
+                case INTEGER, BIGINT, SMALLINT, DECIMAL -> rexBuilder.makeExactLiteral(new BigDecimal(text.trim()));
+                case REAL, DOUBLE -> rexBuilder.makeApproxLiteral(new BigDecimal(text.trim()));
+                case BOOLEAN -> rexBuilder.makeLiteral(text.trim().startsWith("t"));
+                case DATE -> rexBuilder.makeDateLiteral(new DateString(text.trim()));
+                case TIMESTAMP -> rexBuilder.makeTimestampLiteral(new TimestampString(text.trim()), 0);
+                default -> rexBuilder.makeLiteral(text);
+            };
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Cannot parse literal '" + text + "' as " + pgType, ex);
+        }
+    }
+
+    /** Single-unit intervals such as {@code '90 days'} or {@code '3 mons'}. */
+    private RexNode intervalLiteral(String text) {
+        String[] parts = text.trim().split("\\s+");
+        if (parts.length != 2) throw new IllegalArgumentException("Unsupported interval literal: " + text);
+        BigDecimal n = new BigDecimal(parts[0]);
+        String unit = parts[1].toLowerCase(Locale.ROOT);
+        TimeUnit tu;
+        BigDecimal value;
+        if (unit.startsWith("year")) {
+            tu = TimeUnit.YEAR;
+            value = n.multiply(BigDecimal.valueOf(12));
+        } else if (unit.startsWith("mon")) {
+            tu = TimeUnit.MONTH;
+            value = n;
+        } else if (unit.startsWith("day")) {
+            tu = TimeUnit.DAY;
+            value = n.multiply(BigDecimal.valueOf(86_400_000L));
+        } else {
+            throw new IllegalArgumentException("Unsupported interval unit: " + text);
+        }
+        return rexBuilder.makeIntervalLiteral(value, new SqlIntervalQualifier(tu, null, SqlParserPos.ZERO));
+    }
+
+    /** Map a PostgreSQL type name to a Calcite type; {@code null} when there is no close match. */
+    private RelDataType sqlType(String pgType) {
+        String t = pgType.toLowerCase(Locale.ROOT).replaceAll("\\(.*\\)", "").trim();
+        SqlTypeName name = switch (t) {
+            case "integer", "int", "int4" -> SqlTypeName.INTEGER;
+            case "bigint", "int8" -> SqlTypeName.BIGINT;
+            case "smallint", "int2" -> SqlTypeName.SMALLINT;
+            case "numeric", "decimal" -> SqlTypeName.DECIMAL;
+            case "real", "float4" -> SqlTypeName.REAL;
+            case "double precision", "float8" -> SqlTypeName.DOUBLE;
+            case "text", "character varying", "varchar", "name" -> SqlTypeName.VARCHAR;
+            case "bpchar", "character", "char" -> SqlTypeName.CHAR;
+            case "date" -> SqlTypeName.DATE;
+            case "timestamp without time zone", "timestamp" -> SqlTypeName.TIMESTAMP;
+            case "boolean", "bool" -> SqlTypeName.BOOLEAN;
+            default -> null;
+        };
+        return name == null ? null : typeFactory.createSqlType(name);
+    }
+
+    /** Split a PostgreSQL array literal body such as {@code {a,"b c",NULL}}. */
+    private static List<String> splitArrayLiteral(String text) {
+        String body = text.trim();
+        if (!body.startsWith("{") || !body.endsWith("}")) {
+            throw new IllegalArgumentException("Malformed array literal: " + text);
+        }
+        body = body.substring(1, body.length() - 1);
+        List<String> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (quoted) {
+                if (c == '\\' && i + 1 < body.length()) cur.append(body.charAt(++i));
+                else if (c == '"') quoted = false;
+                else cur.append(c);
+            } else if (c == '"') {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                out.add(!wasQuoted && cur.toString().equals("NULL") ? null : cur.toString());
+                cur.setLength(0);
+                wasQuoted = false;
+            } else {
+                cur.append(c);
+            }
+        }
+        if (!body.isEmpty()) out.add(!wasQuoted && cur.toString().equals("NULL") ? null : cur.toString());
+        return out;
+    }
+
+    // ---------------------------------------------------------------------
+    // Expression syntax (as printed by ruleutils.c)
+    // ---------------------------------------------------------------------
+
+    private enum LitKind { STRING, NUMBER, TRUE, FALSE, NULL }
+
+    /** Parsed plan expression. {@link #render()} is qualifier-insensitive. */
+    private abstract static class Expr {
+        abstract String render();
+
+        List<Expr> children() {
+            return List.of();
+        }
+
+        @Override
+        public String toString() {
+            return render();
+        }
+    }
+
+    private static final class Col extends Expr {
+        final String qualifier;
+        final String name;
+
+        Col(String qualifier, String name) {
+            this.qualifier = qualifier;
+            this.name = name.toLowerCase(Locale.ROOT);
+        }
+
+        String render(boolean qualified) {
+            return qualified && qualifier != null ? qualifier + "." + name : name;
+        }
+
+        @Override
+        String render() {
+            return name;
+        }
+    }
+
+    private static final class Lit extends Expr {
+        final String text;
+        final LitKind kind;
+
+        Lit(String text, LitKind kind) {
+            this.text = text;
+            this.kind = kind;
+        }
+
+        @Override
+        String render() {
+            return kind == LitKind.STRING ? "'" + text.replace("'", "''") + "'" : text;
+        }
+    }
+
+    private static final class Cast extends Expr {
+        final Expr expr;
+        final String type;
+
+        Cast(Expr expr, String type) {
+            this.expr = expr;
+            this.type = type;
+        }
+
+        @Override
+        String render() {
+            return "(" + expr.render() + ")::" + type;
+        }
+
+        @Override
+        List<Expr> children() {
+            return List.of(expr);
+        }
+    }
+
+    private static final class Op extends Expr {
+        final String op;
+        final List<Expr> args;
+
+        Op(String op, List<Expr> args) {
+            this.op = op;
+            this.args = args;
+        }
+
+        @Override
+        String render() {
+            if (args.size() == 1) return op + "(" + args.get(0).render() + ")";
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < args.size(); i++) {
+                if (i > 0) sb.append(' ').append(op).append(' ');
+                sb.append(args.get(i).render());
+            }
+            return sb.append(')').toString();
+        }
+
+        @Override
+        List<Expr> children() {
+            return args;
+        }
+    }
+
+    private static final class Call extends Expr {
+        final String name;
+        final List<Expr> args;
+        final boolean distinct;
+        final boolean star;
+
+        Call(String name, List<Expr> args, boolean distinct, boolean star) {
+            this.name = name.toLowerCase(Locale.ROOT);
+            this.args = args;
+            this.distinct = distinct;
+            this.star = star;
+        }
+
+        @Override
+        String render() {
+            StringBuilder sb = new StringBuilder(name).append('(');
+            if (distinct) sb.append("DISTINCT ");
+            if (star) sb.append('*');
+            for (int i = 0; i < args.size(); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(args.get(i).render());
+            }
+            return sb.append(')').toString();
+        }
+
+        @Override
+        List<Expr> children() {
+            return args;
+        }
+    }
+
+    private static final class Quantified extends Expr {
+        final Expr left;
+        final String op;
+        final boolean all;
+        final Expr array;
+
+        Quantified(Expr left, String op, boolean all, Expr array) {
+            this.left = left;
+            this.op = op;
+            this.all = all;
+            this.array = array;
+        }
+
+        @Override
+        String render() {
+            return "(" + left.render() + " " + op + (all ? " ALL (" : " ANY (") + array.render() + "))";
+        }
+
+        @Override
+        List<Expr> children() {
+            return List.of(left, array);
+        }
+    }
+
+    private static final class SubLinkTest extends Expr {
+        final boolean all;
+        final Expr test;
+
+        SubLinkTest(boolean all, Expr test) {
+            this.all = all;
+            this.test = test;
+        }
+
+        @Override
+        String render() {
+            return (all ? "ALL " : "ANY ") + test.render();
+        }
+
+        @Override
+        List<Expr> children() {
+            return List.of(test);
+        }
+    }
+
+    private static final class SubPlanRef extends Expr {
+        final String name;
+        final int column; // 1-based output column, 0 when used as a whole
+        final boolean hashed;
+
+        SubPlanRef(String name, int column, boolean hashed) {
+            this.name = name;
+            this.column = column;
+            this.hashed = hashed;
+        }
+
+        @Override
+        String render() {
+            return "(" + (hashed ? "hashed " : "") + name + ")" + (column > 0 ? ".col" + column : "");
+        }
+    }
+
+    private static final class Case extends Expr {
+        final Expr operand;
+        final List<Expr> whens;
+        final List<Expr> thens;
+        final Expr elseExpr;
+
+        Case(Expr operand, List<Expr> whens, List<Expr> thens, Expr elseExpr) {
+            this.operand = operand;
+            this.whens = whens;
+            this.thens = thens;
+            this.elseExpr = elseExpr;
+        }
+
+        @Override
+        String render() {
+            StringBuilder sb = new StringBuilder("CASE");
+            if (operand != null) sb.append(' ').append(operand.render());
+            for (int i = 0; i < whens.size(); i++) {
+                sb.append(" WHEN ").append(whens.get(i).render()).append(" THEN ").append(thens.get(i).render());
+            }
+            if (elseExpr != null) sb.append(" ELSE ").append(elseExpr.render());
+            return sb.append(" END").toString();
+        }
+
+        @Override
+        List<Expr> children() {
+            List<Expr> out = new ArrayList<>();
+            if (operand != null) out.add(operand);
+            out.addAll(whens);
+            out.addAll(thens);
+            if (elseExpr != null) out.add(elseExpr);
+            return out;
+        }
+    }
+
+    private static final class SortKey {
+        final Expr expr;
+        final boolean descending;
+        final Boolean nullsFirst;
+
+        SortKey(Expr expr, boolean descending, Boolean nullsFirst) {
+            this.expr = expr;
+            this.descending = descending;
+            this.nullsFirst = nullsFirst;
+        }
+    }
+
+    private static Expr parse(String text, Context ctx) {
+        return new ExprParser(text, ctx).parseFully();
+    }
+
+    private static SortKey parseSortKey(String text, Context ctx) {
+        String t = text.trim();
+        Boolean nullsFirst = null;
+        if (t.endsWith(" NULLS FIRST")) {
+            nullsFirst = true;
+            t = t.substring(0, t.length() - 12);
+        } else if (t.endsWith(" NULLS LAST")) {
+            nullsFirst = false;
+            t = t.substring(0, t.length() - 11);
+        }
+        boolean desc = false;
+        if (t.endsWith(" DESC")) {
+            desc = true;
+            t = t.substring(0, t.length() - 5);
+        } else if (t.endsWith(" ASC")) {
+            t = t.substring(0, t.length() - 4);
+        }
+        return new SortKey(parse(t, ctx), desc, nullsFirst);
+    }
+
+    /** Recursive-descent parser for PostgreSQL's deparsed plan expressions. */
+    private static final class ExprParser {
+        private static final Set<String> TYPE_WORDS = Set.of("without", "with", "time", "zone", "precision", "varying");
+        private static final List<String> OPERATORS = List.of(
+            "!~~*", "!~~", "~~*", "~~", "::", "<>", "!=", "<=", ">=", "||",
+            "(", ")", ",", ".", "[", "]", "+", "-", "*", "/", "%", "=", "<", ">", ":");
+
+        private final String src;
+        private final Context ctx;
+        private final List<String[]> tokens = new ArrayList<>(); // {kind, text}
+        private int pos;
+
+        ExprParser(String src, Context ctx) {
+            this.src = src;
+            this.ctx = ctx;
+            tokenize();
+        }
+
+        Expr parseFully() {
+            Expr e = parseOr();
+            if (!peekKind("EOF")) throw error("unexpected token '" + peekText() + "'");
+            return e;
+        }
+
+        private IllegalArgumentException error(String msg) {
+            return new IllegalArgumentException("Cannot parse plan expression (" + msg + "): " + src);
+        }
+
+        private void tokenize() {
+            int i = 0;
+            int n = src.length();
+            outer:
+            while (i < n) {
+                char c = src.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'' || c == '"') {
+                    StringBuilder sb = new StringBuilder();
+                    int j = i + 1;
+                    while (true) {
+                        if (j >= n) throw error("unterminated quote");
+                        char d = src.charAt(j);
+                        if (d == c) {
+                            if (j + 1 < n && src.charAt(j + 1) == c) {
+                                sb.append(c);
+                                j += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        sb.append(d);
+                        j++;
+                    }
+                    tokens.add(new String[] {c == '\'' ? "STRING" : "QIDENT", sb.toString()});
+                    i = j + 1;
+                } else if (Character.isDigit(c)) {
+                    int j = i;
+                    while (j < n && (Character.isDigit(src.charAt(j)) || src.charAt(j) == '.')) j++;
+                    if (j < n && (src.charAt(j) == 'e' || src.charAt(j) == 'E')) {
+                        j++;
+                        if (j < n && (src.charAt(j) == '+' || src.charAt(j) == '-')) j++;
+                        while (j < n && Character.isDigit(src.charAt(j))) j++;
+                    }
+                    tokens.add(new String[] {"NUMBER", src.substring(i, j)});
+                    i = j;
+                } else if (c == '$' && i + 1 < n && Character.isDigit(src.charAt(i + 1))) {
+                    int j = i + 1;
+                    while (j < n && Character.isDigit(src.charAt(j))) j++;
+                    tokens.add(new String[] {"PARAM", src.substring(i, j)});
+                    i = j;
+                } else if (Character.isLetter(c) || c == '_') {
+                    int j = i;
+                    while (j < n && (Character.isLetterOrDigit(src.charAt(j)) || src.charAt(j) == '_' || src.charAt(j) == '$')) j++;
+                    tokens.add(new String[] {"IDENT", src.substring(i, j)});
+                    i = j;
+                } else {
+                    for (String op : OPERATORS) {
+                        if (src.startsWith(op, i)) {
+                            tokens.add(new String[] {"OP", op});
+                            i += op.length();
+                            continue outer;
+                        }
+                    }
+                    throw error("unexpected character '" + c + "'");
+                }
+            }
+            tokens.add(new String[] {"EOF", ""});
+        }
+
+        private boolean peekKind(String kind) {
+            return tokens.get(pos)[0].equals(kind);
+        }
+
+        private String peekText() {
+            return tokens.get(pos)[1];
+        }
+
+        private boolean peekOp(String op) {
+            return peekKind("OP") && peekText().equals(op);
+        }
+
+        private boolean peekWord(String word) {
+            return peekWordAt(pos, word);
+        }
+
+        private boolean peekWordAt(int at, String word) {
+            String[] t = tokens.get(Math.min(at, tokens.size() - 1));
+            return t[0].equals("IDENT") && t[1].equalsIgnoreCase(word);
+        }
+
+        private String next() {
+            return tokens.get(pos++)[1];
+        }
+
+        private void expectOp(String op) {
+            if (!peekOp(op)) throw error("expected '" + op + "' but found '" + peekText() + "'");
+            pos++;
+        }
+
+        private void expectWord(String word) {
+            if (!peekWord(word)) throw error("expected " + word + " but found '" + peekText() + "'");
+            pos++;
+        }
+
+        private Expr parseOr() {
+            Expr left = parseAnd();
+            if (!peekWord("OR")) return left;
+            List<Expr> args = new ArrayList<>(List.of(left));
+            while (peekWord("OR")) {
+                pos++;
+                args.add(parseAnd());
+            }
+            return new Op("or", args);
+        }
+
+        private Expr parseAnd() {
+            Expr left = parseNot();
+            if (!peekWord("AND")) return left;
+            List<Expr> args = new ArrayList<>(List.of(left));
+            while (peekWord("AND")) {
+                pos++;
+                args.add(parseNot());
+            }
+            return new Op("and", args);
+        }
+
+        private Expr parseNot() {
+            if (peekWord("NOT")) {
+                pos++;
+                return new Op("not", List.of(parseNot()));
+            }
+            return parseComparison();
+        }
+
+        private Expr parseComparison() {
+            Expr left = parseConcat();
+            while (true) {
+                if (peekWord("IS")) {
+                    pos++;
+                    boolean not = false;
+                    if (peekWord("NOT")) {
+                        pos++;
+                        not = true;
+                    }
+                    String what = next().toLowerCase(Locale.ROOT);
+                    if (what.equals("null")) {
+                        left = new Op(not ? "is not null" : "is null", List.of(left));
+                    } else if (what.equals("true") || what.equals("false")) {
+                        Expr test = new Op("is " + what, List.of(left));
+                        left = not ? new Op("not", List.of(test)) : test;
+                    } else {
+                        throw error("unsupported IS " + what);
+                    }
+                    continue;
+                }
+                if (peekKind("OP") && isComparison(peekText())) {
+                    String op = next();
+                    if ((peekWord("ANY") || peekWord("ALL") || peekWord("SOME")) && tokens.get(pos + 1)[1].equals("(")) {
+                        boolean all = next().equalsIgnoreCase("ALL");
+                        expectOp("(");
+                        Expr array = parseOr();
+                        expectOp(")");
+                        left = new Quantified(left, op, all, array);
+                    } else {
+                        left = new Op(op, List.of(left, parseConcat()));
+                    }
+                    continue;
+                }
+                return left;
+            }
+        }
+
+        private static boolean isComparison(String op) {
+            return switch (op) {
+                case "=", "<>", "!=", "<", "<=", ">", ">=", "~~", "!~~", "~~*", "!~~*" -> true;
+                default -> false;
+            };
+        }
+
+        private Expr parseConcat() {
+            Expr left = parseAdditive();
+            while (peekOp("||")) {
+                pos++;
+                left = new Op("||", List.of(left, parseAdditive()));
+            }
+            return left;
+        }
+
+        private Expr parseAdditive() {
+            Expr left = parseMultiplicative();
+            while (peekOp("+") || peekOp("-")) {
+                String op = next();
+                left = new Op(op, List.of(left, parseMultiplicative()));
+            }
+            return left;
+        }
+
+        private Expr parseMultiplicative() {
+            Expr left = parseUnary();
+            while (peekOp("*") || peekOp("/") || peekOp("%")) {
+                String op = next();
+                left = new Op(op, List.of(left, parseUnary()));
+            }
+            return left;
+        }
+
+        private Expr parseUnary() {
+            if (peekOp("-")) {
+                pos++;
+                Expr operand = parseUnary();
+                if (operand instanceof Lit lit && lit.kind == LitKind.NUMBER) {
+                    return new Lit("-" + lit.text, LitKind.NUMBER);
+                }
+                return new Op("neg", List.of(operand));
+            }
+            return parsePostfix();
+        }
+
+        private Expr parsePostfix() {
+            Expr e = parsePrimary();
+            while (peekOp("::")) {
+                pos++;
+                e = new Cast(e, parseTypeName());
+            }
+            return e;
+        }
+
+        private String parseTypeName() {
+            StringBuilder sb = new StringBuilder();
+            if (peekKind("QIDENT")) {
+                sb.append(next());
+            } else {
+                sb.append(next().toLowerCase(Locale.ROOT));
+                while (peekKind("IDENT") && TYPE_WORDS.contains(peekText().toLowerCase(Locale.ROOT))) {
+                    sb.append(' ').append(next().toLowerCase(Locale.ROOT));
+                }
+            }
+            if (peekOp("(")) {
+                sb.append(next());
+                while (!peekOp(")")) {
+                    if (peekKind("EOF")) throw error("unterminated type modifier");
+                    sb.append(next());
+                }
+                sb.append(next());
+            }
+            if (peekOp("[")) {
+                pos++;
+                expectOp("]");
+                sb.append("[]");
+            }
+            return sb.toString();
+        }
+
+        private Expr parsePrimary() {
+            String[] t = tokens.get(pos);
+            switch (t[0]) {
+                case "NUMBER":
+                    pos++;
+                    return new Lit(t[1], LitKind.NUMBER);
+                case "STRING":
+                    pos++;
+                    return new Lit(t[1], LitKind.STRING);
+                case "PARAM": {
+                    pos++;
+                    String[] target = ctx.params.get(t[1]);
+                    if (target == null) throw error("unknown parameter " + t[1]);
+                    return new SubPlanRef(target[0], Integer.parseInt(target[1]), false);
+                }
+                case "QIDENT":
+                    return parseColumnOrCall();
+                case "IDENT":
+                    return parseWord();
+                case "OP":
+                    if (t[1].equals("(")) return parseParenthesized();
+                    throw error("unexpected '" + t[1] + "'");
+                default:
+                    throw error("unexpected end of expression");
+            }
+        }
+
+        private Expr parseParenthesized() {
+            expectOp("(");
+            if (peekWord("SubPlan") || peekWord("hashed") || peekWord("InitPlan") || peekWord("alternatives")) {
+                return parseSubPlanReference();
+            }
+            Expr e = parseOr();
+            if (peekOp(",")) throw error("row expressions are not supported");
+            expectOp(")");
+            return e;
+        }
+
+        /** {@code (SubPlan 1)}, {@code (hashed SubPlan 2)}, {@code (InitPlan 1).col1}, {@code (alternatives: ...)}. */
+        private Expr parseSubPlanReference() {
+            boolean hashed = false;
+            if (peekWord("alternatives")) {
+                pos++;
+                expectOp(":");
+            }
+            if (peekWord("hashed")) {
+                pos++;
+                hashed = true;
+            }
+            String kind = next();
+            String name = kind + " " + next();
+            while (!peekOp(")")) {
+                if (peekKind("EOF")) throw error("unterminated subplan reference");
+                pos++; // skip "or hashed SubPlan N" of an alternatives list
+            }
+            expectOp(")");
+            int column = 0;
+            if (peekOp(".") && tokens.get(pos + 1)[1].toLowerCase(Locale.ROOT).startsWith("col")) {
+                pos++;
+                column = Integer.parseInt(next().substring(3));
+            }
+            return new SubPlanRef(name, column, hashed);
+        }
+
+        private Expr parseWord() {
+            String word = peekText();
+            String lower = word.toLowerCase(Locale.ROOT);
+            switch (lower) {
+                case "true":
+                    pos++;
+                    return new Lit("TRUE", LitKind.TRUE);
+                case "false":
+                    pos++;
+                    return new Lit("FALSE", LitKind.FALSE);
+                case "null":
+                    pos++;
+                    return new Lit("NULL", LitKind.NULL);
+                case "case":
+                    return parseCase();
+                case "array":
+                    if (tokens.get(pos + 1)[1].equals("[")) {
+                        pos += 2;
+                        List<Expr> elems = new ArrayList<>();
+                        if (!peekOp("]")) elems = parseList("]");
+                        expectOp("]");
+                        return new Call("array", elems, false, false);
+                    }
+                    break;
+                case "any":
+                case "all":
+                    if (tokens.get(pos + 1)[1].equals("(")) {
+                        pos += 2;
+                        Expr test = parseOr();
+                        expectOp(")");
+                        return new SubLinkTest(lower.equals("all"), test);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return parseColumnOrCall();
+        }
+
+        private Expr parseCase() {
+            expectWord("CASE");
+            Expr operand = peekWord("WHEN") ? null : parseOr();
+            List<Expr> whens = new ArrayList<>();
+            List<Expr> thens = new ArrayList<>();
+            while (peekWord("WHEN")) {
+                pos++;
+                whens.add(parseOr());
+                expectWord("THEN");
+                thens.add(parseOr());
+            }
+            Expr elseExpr = null;
+            if (peekWord("ELSE")) {
+                pos++;
+                elseExpr = parseOr();
+            }
+            expectWord("END");
+            return new Case(operand, whens, thens, elseExpr);
+        }
+
+        private Expr parseColumnOrCall() {
+            String first = next();
+            if (peekOp("(")) {
+                pos++;
+                return parseCallArgs(first);
+            }
+            if (peekOp(".") && (tokens.get(pos + 1)[0].equals("IDENT") || tokens.get(pos + 1)[0].equals("QIDENT"))) {
+                pos++;
+                return new Col(first, next());
+            }
+            return new Col(null, first);
+        }
+
+        private Expr parseCallArgs(String name) {
+            String lower = name.toLowerCase(Locale.ROOT);
+            if (peekOp(")")) {
+                pos++;
+                return new Call(lower, List.of(), false, false);
+            }
+            if (peekOp("*")) {
+                pos++;
+                expectOp(")");
+                return new Call(lower, List.of(), false, true);
+            }
+            boolean distinct = false;
+            if (peekWord("DISTINCT")) {
+                pos++;
+                distinct = true;
+            }
+            List<Expr> args = new ArrayList<>();
+            if (lower.equals("extract")) {
+                args.add(new Lit(next(), LitKind.STRING));
+                expectWord("FROM");
+                args.add(parseOr());
+            } else {
+                args.add(parseOr());
+                // SQL-standard spellings: SUBSTRING(x FROM a FOR b), TRIM(...), etc.
+                while (peekWord("FROM") || peekWord("FOR")) {
+                    pos++;
+                    args.add(parseOr());
+                }
+                if (peekOp(",")) {
+                    pos++;
+                    args.addAll(parseList(")"));
+                }
+            }
+            expectOp(")");
+            if (peekWord("FILTER") || peekWord("OVER")) throw error("aggregate FILTER/window clauses are not supported");
+            return new Call(lower, args, distinct, false);
+        }
+
+        private List<Expr> parseList(String close) {
+            List<Expr> out = new ArrayList<>();
+            out.add(parseOr());
+            while (peekOp(",")) {
+                pos++;
+                out.add(parseOr());
+            }
+            if (!peekOp(close)) throw error("expected '" + close + "'");
+            return out;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.ac.iisc;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.externalize.RelWriterImpl;
+import org.apache.calcite.rel.metadata.RelColumnOrigin;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.sql.SqlExplainLevel;
+import org.apache.calcite.util.Pair;
+
+/**
+ * Localizes the difference between two Calcite plans.
+ *
+ * <p>{@link #localize(RelNode, RelNode)} walks both trees top-down. While the
+ * current nodes have the same operator and the same local attributes
+ * (conditions, projections, keys — everything except inputs), and all but
+ * one pair of inputs are exactly identical ({@link PlanIdentity}, which
+ * unlike the canonical digest does not reorder join factors, so identical
+ * siblings also produce their columns in the same order) with equal row
+ * types, it descends into that single differing pair. The result is the
+ * smallest pair of subtrees that still contains every difference.</p>
+ *
+ * <p>Descent stops where the two subtrees' row types differ, so that proving
+ * the subtrees equivalent is enough to prove the whole plans equivalent:
+ * everything above them is identical and consumes identical columns.</p>
+ */
+public final class PlanDiff
+{
+    private PlanDiff() { }
+
+    /** The smallest differing subtrees of two plans. */
+    public static final class Result
+    {
+        private final RelNode left;
+        private final RelNode right;
+        private final String path;
+        private final int depth;
+
+        Result(RelNode left, RelNode right, String path, int depth)
+        {
+            this.left = left;
+            this.right = right;
+            this.path = path;
+            this.depth = depth;
+        }
+
+        public RelNode getLeft() { return left; }
+        public RelNode getRight() { return right; }
+
+        /** Operator path from the root, e.g. {@code LogicalProject > LogicalJoin[1]}. */
+        public String getPath() { return path; }
+
+        /** True when the difference could not be narrowed below the plan roots. */
+        public boolean isRoot() { return depth == 0; }
+
+        /**
+         * Context for a localized prompt: location of the subtrees, their
+         * output columns, and the base-table columns those outputs come from.
+         */
+        public String describeContext()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Location in both full plans: ").append(path).append('\n');
+            sb.append("Output columns (must be preserved): ");
+            List<RelDataTypeField> fields = left.getRowType().getFieldList();
+            for (int i = 0; i < fields.size(); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(fields.get(i).getName()).append(' ').append(fields.get(i).getType().getFullTypeString());
+            }
+            sb.append('\n');
+            sb.append("ORIGINAL subtree tables/columns: ").append(referencedColumns(left)).append('\n');
+            sb.append("TARGET subtree tables/columns: ").append(referencedColumns(right)).append('\n');
+            return sb.toString();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "PlanDiff at " + path + "\nLEFT:\n" + RelOptUtil.toString(left) + "RIGHT:\n" + RelOptUtil.toString(right);
+        }
+    }
+
+    /**
+     * Find the smallest pair of differing subtrees.
+     *
+     * @return the localized pair, or null if the plans are identical
+     */
+    public static Result localize(RelNode left, RelNode right)
+    {
+        if (left == null || right == null) return null;
+        PlanIdentity.Hashes hl = PlanIdentity.hash(left);
+        PlanIdentity.Hashes hr = PlanIdentity.hash(right);
+        if (PlanIdentity.deepEquals(hl, hr)) return null;
+
+        RelNode a = left;
+        RelNode b = right;
+        StringBuilder path = new StringBuilder(a.getRelTypeName());
+        int depth = 0;
+        while (true) {
+            int input = singleDifferingInput(a, hl, b, hr);
+            if (input < 0) break;
+            RelNode nextA = a.getInput(input);
+            RelNode nextB = b.getInput(input);
+            if (!RelOptUtil.areRowTypesEqual(nextA.getRowType(), nextB.getRowType(), false)) break;
+            a = nextA;
+            b = nextB;
+            path.append(" > ").append(a.getRelTypeName()).append('[').append(input).append(']');
+            depth++;
+        }
+        return new Result(a, b, path.toString(), depth);
+    }
+
+    /**
+     * If {@code a} and {@code b} agree locally and differ in exactly one input
+     * (at the same position on both sides), return that position; else -1.
+     * Every other input pair must be structurally identical and have equal
+     * row types.
+     */
+    private static int singleDifferingInput(RelNode a, PlanIdentity.Hashes ha, RelNode b, PlanIdentity.Hashes hb)
+    {
+        List<RelNode> ia = a.getInputs();
+        List<RelNode> ib = b.getInputs();
+        if (ia.size() != ib.size() || ia.isEmpty()) return -1;
+        if (!localDigest(a).equals(localDigest(b))) return -1;
+        int differing = -1;
+        for (int i = 0; i < ia.size(); i++) {
+            RelNode x = ia.get(i);
+            RelNode y = ib.get(i);
+            if (PlanIdentity.deepEquals(ha, x, hb, y)
+                && RelOptUtil.areRowTypesEqual(x.getRowType(), y.getRowType(), false)) continue;
+            if (differing >= 0) return -1;
+            differing = i;
+        }
+        return differing;
+    }
+
+    /** Operator name plus its non-input explain terms (conditions, expressions, keys). */
+    static String localDigest(RelNode rel)
+    {
+        StringBuilder sb = new StringBuilder(rel.getRelTypeName());
+        RelWriterImpl writer = new RelWriterImpl(new PrintWriter(new StringWriter()), SqlExplainLevel.DIGEST_ATTRIBUTES, false) {
+            @Override
+            protected void explain_(RelNode r, List<Pair<String, Object>> values) {
+                for (Pair<String, Object> p : values) {
+                    if (p.right instanceof RelNode) continue;
+                    sb.append(", ").append(p.left).append('=').append(p.right);
+                }
+            }
+        };
+        rel.explain(writer);
+        return sb.toString();
+    }
+
+    /** Tables scanned in {@code rel} and the base columns its outputs originate from. */
+    private static String referencedColumns(RelNode rel)
+    {
+        Set<String> tables = new LinkedHashSet<>();
+        collectTables(rel, tables);
+        List<String> origins = new ArrayList<>();
+        try {
+            RelMetadataQuery mq = rel.getCluster().getMetadataQuery();
+            for (int i = 0; i < rel.getRowType().getFieldCount(); i++) {
+                Set<RelColumnOrigin> set = mq.getColumnOrigins(rel, i);
+                if (set == null || set.size() != 1) continue;
+                RelColumnOrigin o = set.iterator().next();
+                List<String> name = o.getOriginTable().getQualifiedName();
+                String col = o.getOriginTable().getRowType().getFieldNames().get(o.getOriginColumnOrdinal());
+                origins.add(name.get(name.size() - 1) + "." + col + (o.isDerived() ? " (derived)" : ""));
+            }
+        } catch (RuntimeException ignored) {
+            // Metadata is best-effort context only.
+        }
+        return "tables " + tables + (origins.isEmpty() ? "" : "; output origins " + origins);
+    }
+
+    private static void collectTables(RelNode rel, Set<String> out)
+    {
+        if (rel instanceof TableScan ts) {
+            List<String> name = ts.getTable().getQualifiedName();
+            out.add(name.get(name.size() - 1));
+        }
+        for (RelNode in : rel.getInputs()) collectTables(in, out);
+    }
+}
@@ -0,0 +1,192 @@
+package com.ac.iisc;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.core.Correlate;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.core.Union;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexShuttle;
+import org.apache.calcite.sql.SqlKind;
+
+/**
+ * Cheap summary of a plan, computed in one pass: scanned tables, operator
+ * counts, join types, correlates, unions and the kinds of expression calls.
+ *
+ * <p>Several layers of the comparison ladder (OR, UNION and INNER-factor
+ * ordering) re-scan a digest looking for a shape that most pairs cannot have.
+ * {@link Calcite} asks the summary first and skips a layer whose precondition
+ * fails on both plans; the TPC-DS special cases are recognized by
+ * {@link PatternRules} instead. The checks are necessary conditions only: a
+ * layer that passes may still not match.</p>
+ */
+public final class PlanFeatures
+{
+    private final Set<String> tables;
+    private final Map<String, Integer> tableScans;
+    private final Map<String, Integer> operators;
+    private final Map<JoinRelType, Integer> joins;
+    private final int correlates;
+    private final int unions;
+    private final int orCalls;
+    private final boolean orToken;
+
+    private PlanFeatures(Map<String, Integer> tableScans, Map<String, Integer> operators, Map<JoinRelType, Integer> joins,
+                         int correlates, int unions, int orCalls, boolean orToken)
+    {
+        this.tableScans = Collections.unmodifiableMap(tableScans);
+        this.tables = this.tableScans.keySet();
+        this.operators = Collections.unmodifiableMap(operators);
+        this.joins = Collections.unmodifiableMap(joins);
+        this.correlates = correlates;
+        this.unions = unions;
+        this.orCalls = orCalls;
+        this.orToken = orToken;
+    }
+
+    /** Summarize {@code rel}; every node is visited once, even if shared. */
+    public static PlanFeatures of(RelNode rel)
+    {
+        Map<String, Integer> tableScans = new HashMap<>();
+        Map<String, Integer> operators = new HashMap<>();
+        Map<JoinRelType, Integer> joins = new HashMap<>();
+        int correlates = 0;
+        int unions = 0;
+        Set<String> callKinds = new HashSet<>();
+        int[] orCalls = new int[1];
+        RexShuttle calls = new RexShuttle() {
+            @Override
+            public RexNode visitCall(RexCall call)
+            {
+                SqlKind kind = call.getOperator().getKind();
+                if (kind == SqlKind.OR) orCalls[0]++;
+                callKinds.add(kind.name());
+                callKinds.add(call.getOperator().getName().toUpperCase(Locale.ROOT));
+                return super.visitCall(call);
+            }
+        };
+
+        Set<RelNode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<RelNode> stack = new ArrayDeque<>();
+        if (rel != null) stack.push(rel);
+        while (!stack.isEmpty()) {
+            RelNode node = stack.pop();
+            if (!seen.add(node)) continue;
+            operators.merge(node.getRelTypeName(), 1, Integer::sum);
+            if (node instanceof TableScan ts) {
+                List<String> qn = ts.getTable() == null ? null : ts.getTable().getQualifiedName();
+                if (qn != null && !qn.isEmpty() && qn.get(qn.size() - 1) != null) {
+                    tableScans.merge(qn.get(qn.size() - 1).trim().toLowerCase(Locale.ROOT), 1, Integer::sum);
+                }
+            } else if (node instanceof Join j) {
+                joins.merge(j.getJoinType(), 1, Integer::sum);
+            } else if (node instanceof Correlate) {
+                correlates++;
+            } else if (node instanceof Union) {
+                unions++;
+            } else if (node instanceof Aggregate a) {
+                for (AggregateCall c : a.getAggCallList()) callKinds.add(c.getAggregation().getKind().name());
+            }
+            // Visits every expression of the node (conditions, projections, sort bounds)
+            node.accept(calls);
+            for (RelNode in : node.getInputs()) {
+                if (in != null) stack.push(in);
+            }
+        }
+
+        boolean orToken = false;
+        for (String k : callKinds) {
+            if (k.endsWith("OR")) {
+                orToken = true;
+                break;
+            }
+        }
+        return new PlanFeatures(tableScans, operators, joins, correlates, unions, orCalls[0], orToken);
+    }
+
+    /** Lower-cased names of the scanned tables. */
+    public Set<String> getTables()
+    {
+        return tables;
+    }
+
+    public boolean scans(String table)
+    {
+        return tables.contains(table.toLowerCase(Locale.ROOT));
+    }
+
+    /** Number of scans of {@code table} (a table scanned twice counts twice). */
+    public int scanCount(String table)
+    {
+        return tableScans.getOrDefault(table.toLowerCase(Locale.ROOT), 0);
+    }
+
+    /** Node counts by {@link RelNode#getRelTypeName()}, e.g. {@code LogicalJoin}. */
+    public Map<String, Integer> getOperatorCounts()
+    {
+        return operators;
+    }
+
+    public int joinCount(JoinRelType type)
+    {
+        return joins.getOrDefault(type, 0);
+    }
+
+    /**
+     * True if the canonical digest can contain an INNER join: an INNER join,
+     * or a SEMI join (which the digest renders as an INNER join against the
+     * distinct right keys).
+     */
+    public boolean hasInnerLikeJoin()
+    {
+        return joinCount(JoinRelType.INNER) > 0 || joinCount(JoinRelType.SEMI) > 0;
+    }
+
+    public boolean hasCorrelate()
+    {
+        return correlates > 0;
+    }
+
+    public boolean hasUnion()
+    {
+        return unions > 0;
+    }
+
+    /** Number of OR calls in the plan's expressions. */
+    public int getOrCallCount()
+    {
+        return orCalls;
+    }
+
+    /**
+     * True if some call renders as {@code ...OR(} in a digest: OR itself, but
+     * also FLOOR, BIT_OR and the like, which the digest-level OR normalization
+     * matches as well.
+     */
+    public boolean hasOrToken()
+    {
+        return orToken;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PlanFeatures{tables=" + tables + ", joins=" + joins + ", correlates=" + correlates
+            + ", unions=" + unions + ", orCalls=" + orCalls + "}";
+    }
+}
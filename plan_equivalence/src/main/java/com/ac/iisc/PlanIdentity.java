@@ -0,0 +1,188 @@
+package com.ac.iisc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.sql.SqlExplainLevel;
+import org.apache.calcite.util.Pair;
+
+/**
+ * Structural identity of two plans without rendering them to strings: the
+ * {@code deepEquals}/{@code deepHashCode} of Calcite's {@code RelNode}, but
+ * iterative (deep plans cannot overflow the stack) and with every node's hash
+ * cached in a {@link Hashes} table.
+ *
+ * <p>A node's own part is its class and the attributes it reports at
+ * {@link SqlExplainLevel#DIGEST_ATTRIBUTES} (the same terms the digest string
+ * of {@code RelOptUtil.toString} prints), minus its inputs, which are compared
+ * position by position. Two plans are identical if the root hashes agree and a
+ * walk of both trees finds equal attributes everywhere; the walk stops at the
+ * first node pair whose cached hashes or attributes differ.</p>
+ *
+ * <p>Identity implies equivalence, so this is a positive-only check: attribute
+ * values without a value-based {@code equals} simply make the plans differ
+ * here and leave the decision to the string digests.</p>
+ */
+public final class PlanIdentity
+{
+    private PlanIdentity() { }
+
+    /** Class, explain attributes and deep hash of one node. */
+    private record Shape(Class<?> type, List<Pair<String, Object>> attributes, int hash) { }
+
+    /** Deep hash codes of every node of one plan, computed once. */
+    public static final class Hashes
+    {
+        private final RelNode root;
+        private final Map<RelNode, Shape> shapes;
+
+        private Hashes(RelNode root, Map<RelNode, Shape> shapes)
+        {
+            this.root = root;
+            this.shapes = shapes;
+        }
+
+        public RelNode getRoot()
+        {
+            return root;
+        }
+
+        /** Deep hash of the whole plan. */
+        public int deepHashCode()
+        {
+            return deepHashCode(root);
+        }
+
+        /** Deep hash of the subtree at {@code rel}; 0 for a node outside this plan. */
+        public int deepHashCode(RelNode rel)
+        {
+            Shape s = shapes.get(rel);
+            return s == null ? 0 : s.hash();
+        }
+    }
+
+    /** Hash every node of {@code root} bottom-up; shared subtrees are hashed once. */
+    public static Hashes hash(RelNode root)
+    {
+        if (root == null) throw new IllegalArgumentException("root must not be null");
+        Map<RelNode, Shape> shapes = new IdentityHashMap<>();
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[] { root, 0 });
+        while (!stack.isEmpty()) {
+            Object[] frame = stack.peek();
+            RelNode n = (RelNode) frame[0];
+            int next = (Integer) frame[1];
+            if (next < n.getInputs().size()) {
+                frame[1] = next + 1;
+                RelNode in = n.getInput(next);
+                if (in != null && !shapes.containsKey(in)) stack.push(new Object[] { in, 0 });
+                continue;
+            }
+            stack.pop();
+            if (shapes.containsKey(n)) continue;
+            List<Pair<String, Object>> attributes = attributes(n);
+            int h = n.getClass().getName().hashCode();
+            h = 31 * h + attributes.hashCode();
+            for (RelNode in : n.getInputs()) {
+                Shape s = in == null ? null : shapes.get(in);
+                h = 31 * h + (s == null ? 0 : s.hash());
+            }
+            shapes.put(n, new Shape(n.getClass(), attributes, h));
+        }
+        return new Hashes(root, shapes);
+    }
+
+    /** True if both plans are structurally identical. */
+    public static boolean deepEquals(RelNode a, RelNode b)
+    {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        return deepEquals(hash(a), hash(b));
+    }
+
+    /**
+     * True if the plans behind {@code a} and {@code b} are structurally
+     * identical; compares the cached hashes first and stops at the first
+     * differing node pair.
+     */
+    public static boolean deepEquals(Hashes a, Hashes b)
+    {
+        return deepEquals(a, a.root, b, b.root);
+    }
+
+    /**
+     * True if the subtree at {@code x} (a node of the plan behind {@code a})
+     * is structurally identical to the subtree at {@code y} (of {@code b}).
+     */
+    public static boolean deepEquals(Hashes a, RelNode x, Hashes b, RelNode y)
+    {
+        if (x == y) return true;
+        if (x == null || y == null) return false;
+        if (a.deepHashCode(x) != b.deepHashCode(y)) return false;
+        Map<RelNode, RelNode> matched = new IdentityHashMap<>();
+        Deque<RelNode[]> stack = new ArrayDeque<>();
+        stack.push(new RelNode[] { x, y });
+        while (!stack.isEmpty()) {
+            RelNode[] pair = stack.pop();
+            RelNode u = pair[0];
+            RelNode v = pair[1];
+            if (u == v || matched.get(u) == v) continue;
+            if (u == null || v == null) return false;
+            Shape su = a.shapes.get(u);
+            Shape sv = b.shapes.get(v);
+            if (su == null || sv == null || su.hash() != sv.hash() || su.type() != sv.type()) return false;
+            if (!su.attributes().equals(sv.attributes())) return false;
+            List<RelNode> iu = u.getInputs();
+            List<RelNode> iv = v.getInputs();
+            if (iu.size() != iv.size()) return false;
+            matched.put(u, v);
+            for (int i = iu.size() - 1; i >= 0; i--) stack.push(new RelNode[] { iu.get(i), iv.get(i) });
+        }
+        return true;
+    }
+
+    /** Explain terms of {@code rel} at digest level, without its inputs. */
+    private static List<Pair<String, Object>> attributes(RelNode rel)
+    {
+        List<Pair<String, Object>> out = new ArrayList<>();
+        rel.explain(new RelWriter() {
+            @Override
+            public void explain(RelNode node, List<Pair<String, Object>> valueList)
+            {
+                for (Pair<String, Object> p : valueList) item(p.left, p.right);
+            }
+
+            @Override
+            public SqlExplainLevel getDetailLevel()
+            {
+                return SqlExplainLevel.DIGEST_ATTRIBUTES;
+            }
+
+            @Override
+            public RelWriter item(String term, Object value)
+            {
+                if (!(value instanceof RelNode)) out.add(Pair.of(term, value));
+                return this;
+            }
+
+            @Override
+            public RelWriter done(RelNode node)
+            {
+                return this;
+            }
+        });
+        return out;
+    }
+
+    /** Null-safe hash of {@code rel}'s subtree. */
+    public static int deepHashCode(RelNode rel)
+    {
+        return rel == null ? 0 : hash(rel).deepHashCode();
+    }
+}
@@ -0,0 +1,428 @@
+package com.ac.iisc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Correlate;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexShuttle;
+import org.apache.calcite.sql.SqlKind;
+
+/**
+ * Declarative pattern over the shape of a {@link RelNode} tree.
+ *
+ * <p>A pattern names the operator types it can match at its root and adds
+ * constraints: join type, inputs matching sub-patterns, a descendant matching
+ * a sub-pattern, a call kind in the node's or the subtree's expressions, a
+ * minimum number of scans of a table in the subtree, or a free-form predicate.
+ * {@link #as(String)} binds the matched node to a name in the {@link Match}.
+ * Patterns are immutable; every method returns a new pattern.</p>
+ *
+ * <pre>{@code
+ * PlanPattern.op(LogicalCorrelate.class).joinType(JoinRelType.LEFT)
+ *     .input(0, PlanPattern.any().scans("item", 1).as("outer"))
+ *     .input(1, PlanPattern.any().scans("item", 1).as("inner"))
+ * }</pre>
+ *
+ * <p>Subtree facts (scan counts, call kinds, descendant matches) are computed
+ * bottom-up once per plan in a {@link Context} and shared by all patterns
+ * matched against that plan, so matching every node of a long join chain
+ * stays linear. The root types and scanned tables are what
+ * {@link PatternRules} indexes patterns by.</p>
+ */
+public final class PlanPattern
+{
+    /** Bindings of one successful match; {@code root} is the node the pattern matched at. */
+    public record Match(RelNode root, Map<String, RelNode> bindings)
+    {
+        public RelNode get(String name)
+        {
+            return bindings.get(name);
+        }
+    }
+
+    private final List<Class<? extends RelNode>> roots;
+    private final Set<JoinRelType> joinTypes;
+    private final Map<Integer, PlanPattern> inputs;
+    private final List<PlanPattern> descendants;
+    private final Set<SqlKind> localCalls;
+    private final Set<SqlKind> subtreeCalls;
+    private final Map<String, Integer> scans;
+    private final List<Predicate<RelNode>> predicates;
+    private final String binding;
+
+    private PlanPattern(List<Class<? extends RelNode>> roots, Set<JoinRelType> joinTypes, Map<Integer, PlanPattern> inputs,
+                        List<PlanPattern> descendants, Set<SqlKind> localCalls, Set<SqlKind> subtreeCalls,
+                        Map<String, Integer> scans, List<Predicate<RelNode>> predicates, String binding)
+    {
+        this.roots = roots;
+        this.joinTypes = joinTypes;
+        this.inputs = inputs;
+        this.descendants = descendants;
+        this.localCalls = localCalls;
+        this.subtreeCalls = subtreeCalls;
+        this.scans = scans;
+        this.predicates = predicates;
+        this.binding = binding;
+    }
+
+    /** Matches a node of any of the given types (or a subclass). */
+    @SafeVarargs
+    public static PlanPattern op(Class<? extends RelNode>... types)
+    {
+        if (types.length == 0) throw new IllegalArgumentException("at least one operator type is required");
+        // Copied element by element: the varargs array itself never escapes
+        List<Class<? extends RelNode>> rootTypes = new ArrayList<>(types.length);
+        for (Class<? extends RelNode> t : types) {
+            if (t == null) throw new IllegalArgumentException("operator types must not be null");
+            rootTypes.add(t);
+        }
+        return new PlanPattern(List.copyOf(rootTypes), Set.of(), Map.of(), List.of(), Set.of(), Set.of(), Map.of(), List.of(), null);
+    }
+
+    /** Matches any node. */
+    public static PlanPattern any()
+    {
+        return op(RelNode.class);
+    }
+
+    /** The node is a {@link Join} or {@link Correlate} of one of these types. */
+    public PlanPattern joinType(JoinRelType... types)
+    {
+        Set<JoinRelType> t = EnumSet.noneOf(JoinRelType.class);
+        t.addAll(List.of(types));
+        return copy(Collections.unmodifiableSet(t), inputs, descendants, localCalls, subtreeCalls, scans, predicates, binding);
+    }
+
+    /** Input {@code i} matches {@code child}. */
+    public PlanPattern input(int i, PlanPattern child)
+    {
+        Map<Integer, PlanPattern> in = new LinkedHashMap<>(inputs);
+        in.put(i, child);
+        return copy(joinTypes, Collections.unmodifiableMap(in), descendants, localCalls, subtreeCalls, scans, predicates, binding);
+    }
+
+    /** Some node strictly below this one matches {@code p}. */
+    public PlanPattern descendant(PlanPattern p)
+    {
+        return copy(joinTypes, inputs, append(descendants, p), localCalls, subtreeCalls, scans, predicates, binding);
+    }
+
+    /** One of this node's own expressions contains a call of {@code kind}. */
+    public PlanPattern call(SqlKind kind)
+    {
+        return copy(joinTypes, inputs, descendants, add(localCalls, kind), subtreeCalls, scans, predicates, binding);
+    }
+
+    /** An expression of this node or a node below it contains a call of {@code kind}. */
+    public PlanPattern subtreeCall(SqlKind kind)
+    {
+        return copy(joinTypes, inputs, descendants, localCalls, add(subtreeCalls, kind), scans, predicates, binding);
+    }
+
+    /** The subtree scans {@code table} at least {@code atLeast} times (a shared scan counts once per path). */
+    public PlanPattern scans(String table, int atLeast)
+    {
+        Map<String, Integer> s = new LinkedHashMap<>(scans);
+        s.put(table.toLowerCase(Locale.ROOT), atLeast);
+        return copy(joinTypes, inputs, descendants, localCalls, subtreeCalls, Collections.unmodifiableMap(s), predicates, binding);
+    }
+
+    /** Free-form condition on the node. */
+    public PlanPattern where(Predicate<RelNode> predicate)
+    {
+        return copy(joinTypes, inputs, descendants, localCalls, subtreeCalls, scans, append(predicates, predicate), binding);
+    }
+
+    /** Bind the matched node to {@code name}. */
+    public PlanPattern as(String name)
+    {
+        return copy(joinTypes, inputs, descendants, localCalls, subtreeCalls, scans, predicates, name);
+    }
+
+    /** Operator types this pattern can match at its root. */
+    public List<Class<? extends RelNode>> getRootTypes()
+    {
+        return roots;
+    }
+
+    /** Tables the matched subtree must scan (lower-cased). */
+    public Set<String> getScannedTables()
+    {
+        return scans.keySet();
+    }
+
+    /** Match against {@code rel} alone (subtree facts are computed for {@code rel}'s tree). */
+    public Match match(RelNode rel)
+    {
+        return match(rel, new Context(rel));
+    }
+
+    /** Match at {@code rel}, reusing the subtree facts of {@code ctx}; null if it does not match. */
+    public Match match(RelNode rel, Context ctx)
+    {
+        Map<String, RelNode> bindings = new HashMap<>();
+        if (!matches(rel, ctx, bindings)) return null;
+        return new Match(rel, Collections.unmodifiableMap(bindings));
+    }
+
+    private boolean matches(RelNode rel, Context ctx, Map<String, RelNode> bindings)
+    {
+        if (rel == null || !isRootType(rel)) return false;
+        if (!joinTypes.isEmpty()) {
+            JoinRelType t = rel instanceof Join j ? j.getJoinType() : rel instanceof Correlate c ? c.getJoinType() : null;
+            if (t == null || !joinTypes.contains(t)) return false;
+        }
+        for (Map.Entry<String, Integer> s : scans.entrySet()) {
+            if (ctx.scanCount(rel, s.getKey()) < s.getValue()) return false;
+        }
+        for (SqlKind k : localCalls) {
+            if (!ctx.localCalls(rel).contains(k)) return false;
+        }
+        for (SqlKind k : subtreeCalls) {
+            if (!ctx.subtreeCalls(rel).contains(k)) return false;
+        }
+        for (Predicate<RelNode> p : predicates) {
+            if (!p.test(rel)) return false;
+        }
+        for (Map.Entry<Integer, PlanPattern> in : inputs.entrySet()) {
+            if (in.getKey() >= rel.getInputs().size()) return false;
+            if (!in.getValue().matches(rel.getInput(in.getKey()), ctx, bindings)) return false;
+        }
+        for (PlanPattern d : descendants) {
+            if (!matchDescendant(rel, d, ctx, bindings)) return false;
+        }
+        if (binding != null) bindings.put(binding, rel);
+        return true;
+    }
+
+    private boolean isRootType(RelNode rel)
+    {
+        for (Class<? extends RelNode> t : roots) {
+            if (t.isInstance(rel)) return true;
+        }
+        return false;
+    }
+
+    /** First descendant (pre-order) matching {@code d}; the memoized subtree check rejects most nodes cheaply. */
+    private static boolean matchDescendant(RelNode rel, PlanPattern d, Context ctx, Map<String, RelNode> bindings)
+    {
+        Deque<RelNode> stack = new ArrayDeque<>();
+        for (int i = rel.getInputs().size() - 1; i >= 0; i--) stack.push(rel.getInput(i));
+        while (!stack.isEmpty()) {
+            RelNode n = stack.pop();
+            if (n == null || !ctx.existsBelowOrAt(n, d)) continue;
+            Map<String, RelNode> local = new HashMap<>();
+            if (d.matches(n, ctx, local)) {
+                bindings.putAll(local);
+                return true;
+            }
+            for (int i = n.getInputs().size() - 1; i >= 0; i--) stack.push(n.getInput(i));
+        }
+        return false;
+    }
+
+    private PlanPattern copy(Set<JoinRelType> joinTypes, Map<Integer, PlanPattern> inputs, List<PlanPattern> descendants,
+                             Set<SqlKind> localCalls, Set<SqlKind> subtreeCalls, Map<String, Integer> scans,
+                             List<Predicate<RelNode>> predicates, String binding)
+    {
+        return new PlanPattern(roots, joinTypes, inputs, descendants, localCalls, subtreeCalls, scans, predicates, binding);
+    }
+
+    private static <T> List<T> append(List<T> list, T item)
+    {
+        List<T> out = new ArrayList<>(list);
+        out.add(item);
+        return List.copyOf(out);
+    }
+
+    private static Set<SqlKind> add(Set<SqlKind> set, SqlKind kind)
+    {
+        Set<SqlKind> out = EnumSet.noneOf(SqlKind.class);
+        out.addAll(set);
+        out.add(kind);
+        return Collections.unmodifiableSet(out);
+    }
+
+    /**
+     * Per-plan memo of subtree facts. Each fact is computed bottom-up for the
+     * whole plan (explicit stack, every node once) the first time any pattern
+     * asks for it.
+     */
+    public static final class Context
+    {
+        private final RelNode root;
+        private final Map<RelNode, Set<SqlKind>> localCalls = new IdentityHashMap<>();
+        private Map<RelNode, Set<SqlKind>> subtreeCalls;
+        private final Map<String, Map<RelNode, Integer>> scanCounts = new HashMap<>();
+        private final Map<PlanPattern, Map<RelNode, Boolean>> exists = new IdentityHashMap<>();
+
+        public Context(RelNode root)
+        {
+            this.root = root;
+        }
+
+        Set<SqlKind> localCalls(RelNode rel)
+        {
+            Set<SqlKind> kinds = localCalls.get(rel);
+            if (kinds == null) {
+                Set<SqlKind> found = EnumSet.noneOf(SqlKind.class);
+                rel.accept(new RexShuttle() {
+                    @Override
+                    public RexNode visitCall(RexCall call)
+                    {
+                        found.add(call.getKind());
+                        return super.visitCall(call);
+                    }
+                });
+                kinds = found;
+                localCalls.put(rel, kinds);
+            }
+            return kinds;
+        }
+
+        Set<SqlKind> subtreeCalls(RelNode rel)
+        {
+            if (subtreeCalls == null) {
+                subtreeCalls = new IdentityHashMap<>();
+                for (RelNode n : postOrder(rel)) {
+                    Set<SqlKind> kinds = EnumSet.noneOf(SqlKind.class);
+                    kinds.addAll(localCalls(n));
+                    for (RelNode in : n.getInputs()) {
+                        if (in != null) kinds.addAll(subtreeCalls.get(in));
+                    }
+                    subtreeCalls.put(n, kinds);
+                }
+            }
+            Set<SqlKind> kinds = subtreeCalls.get(rel);
+            return kinds != null ? kinds : Set.of();
+        }
+
+        int scanCount(RelNode rel, String table)
+        {
+            Map<RelNode, Integer> counts = scanCounts.get(table);
+            if (counts == null) {
+                counts = new IdentityHashMap<>();
+                for (RelNode n : postOrder(rel)) {
+                    int c = n instanceof TableScan ts && isTable(ts, table) ? 1 : 0;
+                    for (RelNode in : n.getInputs()) {
+                        if (in != null) c += counts.get(in);
+                    }
+                    counts.put(n, c);
+                }
+                scanCounts.put(table, counts);
+            }
+            Integer c = counts.get(rel);
+            return c != null ? c : 0;
+        }
+
+        /** True if {@code rel} or a node below it matches {@code p}. */
+        boolean existsBelowOrAt(RelNode rel, PlanPattern p)
+        {
+            Map<RelNode, Boolean> memo = exists.get(p);
+            if (memo == null) {
+                memo = new IdentityHashMap<>();
+                for (RelNode n : postOrder(rel)) {
+                    boolean below = false;
+                    for (RelNode in : n.getInputs()) {
+                        if (in != null && memo.get(in)) {
+                            below = true;
+                            break;
+                        }
+                    }
+                    memo.put(n, below || p.matches(n, this, new HashMap<>()));
+                }
+                exists.put(p, memo);
+            }
+            Boolean b = memo.get(rel);
+            return b != null && b;
+        }
+
+        /**
+         * Nodes of the plan (or of {@code fallback}'s tree if it is not part of
+         * the plan) with inputs before parents; shared nodes appear once.
+         */
+        private List<RelNode> postOrder(RelNode fallback)
+        {
+            RelNode start = root != null ? root : fallback;
+            List<RelNode> out = postOrderFrom(start);
+            if (fallback != null && start != fallback && !containsIdentity(out, fallback)) out.addAll(postOrderFrom(fallback));
+            return out;
+        }
+
+        private static boolean containsIdentity(List<RelNode> nodes, RelNode rel)
+        {
+            for (RelNode n : nodes) {
+                if (n == rel) return true;
+            }
+            return false;
+        }
+
+        private static List<RelNode> postOrderFrom(RelNode start)
+        {
+            List<RelNode> out = new ArrayList<>();
+            Set<RelNode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<Object[]> stack = new ArrayDeque<>();
+            stack.push(new Object[] { start, 0 });
+            seen.add(start);
+            while (!stack.isEmpty()) {
+                Object[] frame = stack.peek();
+                RelNode n = (RelNode) frame[0];
+                int next = (Integer) frame[1];
+                if (next < n.getInputs().size()) {
+                    frame[1] = next + 1;
+                    RelNode in = n.getInput(next);
+                    if (in != null && seen.add(in)) stack.push(new Object[] { in, 0 });
+                    continue;
+                }
+                stack.pop();
+                out.add(n);
+            }
+            return out;
+        }
+
+        private static boolean isTable(TableScan ts, String table)
+        {
+            List<String> qn = ts.getTable() == null ? null : ts.getTable().getQualifiedName();
+            return qn != null && !qn.isEmpty() && qn.get(qn.size() - 1) != null
+                && qn.get(qn.size() - 1).trim().toLowerCase(Locale.ROOT).equals(table);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        List<String> names = new ArrayList<>();
+        for (Class<? extends RelNode> t : roots) names.add(t.getSimpleName());
+        sb.append(String.join("|", names));
+        if (!joinTypes.isEmpty()) sb.append(joinTypes);
+        Set<String> parts = new LinkedHashSet<>();
+        scans.forEach((t, n) -> parts.add("scans " + t + ">=" + n));
+        if (!localCalls.isEmpty()) parts.add("calls " + localCalls);
+        if (!subtreeCalls.isEmpty()) parts.add("subtree calls " + subtreeCalls);
+        inputs.forEach((i, p) -> parts.add("$" + i + "=" + p));
+        for (PlanPattern d : descendants) parts.add("..." + d);
+        if (!predicates.isEmpty()) parts.add(predicates.size() + " predicate(s)");
+        if (!parts.isEmpty()) sb.append('(').append(String.join(", ", parts)).append(')');
+        if (binding != null) sb.append(" as ").append(binding);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,364 @@
+package com.ac.iisc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Structural, order-canonical comparison of cleaned PostgreSQL EXPLAIN (FORMAT JSON) plans.
+ *
+ * The EXPLAIN fallback in {@link Calcite} used to compare the pretty-printed
+ * {@code toString(4)} text of two cleaned plans. That comparison depends on the
+ * key iteration order of {@link JSONObject} and treats commuted join inputs as
+ * different plans. This class instead builds a small canonical tree:
+ * <ul>
+ *   <li>Scalar properties of each node are kept in a key-sorted map.</li>
+ *   <li>The {@code Plans} children of commutative joins (INNER Hash Join / Merge Join /
+ *       Nested Loop) are put in canonical order, the {@code Hash} build wrapper under an
+ *       INNER hash join is made transparent, and simple equality join conditions are
+ *       made side-insensitive.</li>
+ *   <li>Every subtree carries a 64-bit structural hash computed bottom-up.</li>
+ * </ul>
+ *
+ * Two plans are compared by root hash first (mismatch short-circuits to "different"),
+ * and only confirmed with a full structural walk when the hashes agree. On mismatch,
+ * {@link #compare(JSONObject, JSONObject)} descends along the first differing child
+ * hashes to report the smallest differing subtree.
+ *
+ * Notes:
+ * - Only INNER joins are treated as commutative; outer/semi/anti joins keep child order.
+ * - Non-{@code Plans} arrays (e.g., {@code Sort Key}, {@code Group Key}) keep their order
+ *   because it can be semantically relevant.
+ */
+public final class PlanTreeComparator {
+
+    private PlanTreeComparator() {}
+
+    /** Executor join node types whose INNER variant is commutative. */
+    private static final Set<String> JOIN_NODE_TYPES = Set.of("Hash Join", "Merge Join", "Nested Loop");
+
+    /** Join condition keys whose simple equalities can be made side-insensitive. */
+    private static final Set<String> JOIN_CONDITION_KEYS = Set.of("Hash Cond", "Merge Cond", "Join Filter");
+
+    /** Outcome of a plan comparison, including the localized mismatch (if any). */
+    public static final class Result {
+        private final boolean equivalent;
+        private final String mismatchPath;
+        private final String leftSubtree;
+        private final String rightSubtree;
+
+        Result(boolean equivalent, String mismatchPath, String leftSubtree, String rightSubtree) {
+            this.equivalent = equivalent;
+            this.mismatchPath = mismatchPath;
+            this.leftSubtree = leftSubtree;
+            this.rightSubtree = rightSubtree;
+        }
+
+        /** True if both plans have the same canonical tree. */
+        public boolean isEquivalent() { return equivalent; }
+
+        /** Path (node types from the root, with child positions) to the smallest differing subtree, or null. */
+        public String getMismatchPath() { return mismatchPath; }
+
+        /** Canonical rendering of the differing subtree on the left side, or null. */
+        public String getLeftSubtree() { return leftSubtree; }
+
+        /** Canonical rendering of the differing subtree on the right side, or null. */
+        public String getRightSubtree() { return rightSubtree; }
+
+        @Override
+        public String toString() {
+            if (equivalent) return "equivalent";
+            return "different at " + mismatchPath + "\n  left:  " + leftSubtree + "\n  right: " + rightSubtree;
+        }
+    }
+
+    /** Canonical plan node with sorted scalar properties, ordered children and a subtree hash. */
+    static final class Node {
+        final String nodeType;
+        final TreeMap<String, String> props;
+        final List<Node> children;
+        final long hash;
+
+        Node(String nodeType, TreeMap<String, String> props, List<Node> children) {
+            this.nodeType = nodeType;
+            this.props = props;
+            this.children = children;
+            this.hash = computeHash(props, children);
+        }
+
+        private static long computeHash(Map<String, String> props, List<Node> children) {
+            long h = 0xcbf29ce484222325L;
+            for (Map.Entry<String, String> e : props.entrySet()) {
+                h = mix(h, e.getKey().hashCode());
+                h = mix(h, e.getValue().hashCode());
+            }
+            h = mix(h, children.size());
+            for (Node c : children) {
+                h = mix(h, c.hash);
+            }
+            return h;
+        }
+
+        private static long mix(long h, long v) {
+            h ^= v;
+            h *= 0x100000001b3L;
+            return h ^ (h >>> 29);
+        }
+
+        /** Deep structural equality; only invoked once hashes are known to agree. */
+        boolean deepEquals(Node other) {
+            if (this == other) return true;
+            if (hash != other.hash) return false;
+            if (!props.equals(other.props)) return false;
+            if (children.size() != other.children.size()) return false;
+            for (int i = 0; i < children.size(); i++) {
+                if (!children.get(i).deepEquals(other.children.get(i))) return false;
+            }
+            return true;
+        }
+
+        /** Compact, deterministic rendering used for tie-breaking and mismatch reports. */
+        String render() {
+            StringBuilder sb = new StringBuilder();
+            render(sb);
+            return sb.toString();
+        }
+
+        private void render(StringBuilder sb) {
+            sb.append(props);
+            if (!children.isEmpty()) {
+                sb.append('[');
+                for (int i = 0; i < children.size(); i++) {
+                    if (i > 0) sb.append('|');
+                    children.get(i).render(sb);
+                }
+                sb.append(']');
+            }
+        }
+    }
+
+    /**
+     * Compare two cleaned EXPLAIN JSON plan strings (as produced by
+     * {@link GetQueryPlans#getCleanedQueryPlanJSONasString(String)}).
+     *
+     * @return true if both are non-null, parse as JSON objects and have the same canonical tree
+     */
+    public static boolean equivalent(String planA, String planB) {
+        if (planA == null || planB == null) return false;
+        try {
+            return compare(new JSONObject(planA), new JSONObject(planB)).isEquivalent();
+        } catch (org.json.JSONException e) {
+            System.err.println("[PlanTreeComparator.equivalent] Unable to parse plan JSON: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Compare two cleaned plan trees and localize the smallest differing subtree.
+     */
+    public static Result compare(JSONObject planA, JSONObject planB) {
+        if (planA == null || planB == null) {
+            return new Result(false, "(root)", planA == null ? "null" : "(plan)", planB == null ? "null" : "(plan)");
+        }
+        Node a = canonicalize(planA);
+        Node b = canonicalize(planB);
+        if (a.hash == b.hash && a.deepEquals(b)) {
+            return new Result(true, null, null, null);
+        }
+        return localizeMismatch(a, b);
+    }
+
+    /** Hex form of the canonical root hash of a plan (useful as a cache or log key). */
+    public static String canonicalHash(JSONObject plan) {
+        return plan == null ? "null" : Long.toHexString(canonicalize(plan).hash);
+    }
+
+    /** Build the canonical tree for a cleaned plan node. */
+    static Node canonicalize(JSONObject plan) {
+        String nodeType = plan.optString("Node Type", "");
+        boolean commutativeJoin = JOIN_NODE_TYPES.contains(nodeType)
+                && "inner".equalsIgnoreCase(plan.optString("Join Type", ""));
+
+        TreeMap<String, String> props = new TreeMap<>();
+        List<Node> children = new ArrayList<>();
+        for (String key : plan.keySet()) {
+            Object val = plan.get(key);
+            if ("Plans".equals(key) && val instanceof JSONArray arr) {
+                for (int i = 0; i < arr.length(); i++) {
+                    Object child = arr.get(i);
+                    if (!(child instanceof JSONObject childObj)) continue;
+                    // Under a commutative hash join, the inner input is wrapped in a Hash build
+                    // node; which side is built is a planner choice, not a semantic one.
+                    if (commutativeJoin && "Hash".equals(childObj.optString("Node Type", ""))) {
+                        JSONArray inner = childObj.optJSONArray("Plans");
+                        if (inner != null && inner.length() == 1 && inner.get(0) instanceof JSONObject innerObj) {
+                            childObj = innerObj;
+                        }
+                    }
+                    children.add(canonicalize(childObj));
+                }
+                continue;
+            }
+            String v = canonicalValue(val);
+            if (commutativeJoin && JOIN_CONDITION_KEYS.contains(key)) {
+                // Hash/Merge conditions are rendered outer-side first; make them side-insensitive
+                // and store them under one key since the executor choice is not semantic.
+                v = canonicalizeCondition(v);
+                key = "Join Condition";
+                String prev = props.get(key);
+                if (prev != null) v = canonicalizeCondition(prev + " AND " + v);
+            }
+            if (commutativeJoin && "Node Type".equals(key)) {
+                v = "Join";
+            }
+            props.put(key, v);
+        }
+
+        if (commutativeJoin && children.size() > 1) {
+            children.sort((x, y) -> {
+                int c = Long.compare(x.hash, y.hash);
+                return c != 0 ? c : x.render().compareTo(y.render());
+            });
+        }
+        return new Node(nodeType, props, children);
+    }
+
+    /** Render a JSON value deterministically (objects with sorted keys, arrays in order). */
+    private static String canonicalValue(Object val) {
+        if (val instanceof JSONObject obj) {
+            TreeMap<String, String> sorted = new TreeMap<>();
+            for (String k : obj.keySet()) sorted.put(k, canonicalValue(obj.get(k)));
+            return sorted.toString();
+        }
+        if (val instanceof JSONArray arr) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < arr.length(); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(canonicalValue(arr.get(i)));
+            }
+            return sb.append(']').toString();
+        }
+        return val == null || JSONObject.NULL.equals(val) ? "null" : String.valueOf(val);
+    }
+
+    /**
+     * Make a PostgreSQL join condition insensitive to join input order: split the
+     * top-level AND chain, orient each simple {@code (x = y)} lexicographically and
+     * sort the conjuncts. Anything more complex is kept verbatim.
+     */
+    static String canonicalizeCondition(String cond) {
+        if (cond == null) return "";
+        List<String> conjuncts = new ArrayList<>();
+        for (String part : splitTopLevelAnd(stripOuterParens(cond.trim()))) {
+            String c = stripOuterParens(part.trim());
+            int eq = indexOfTopLevelEquals(c);
+            if (eq > 0) {
+                String l = c.substring(0, eq).trim();
+                String r = c.substring(eq + 1).trim();
+                c = l.compareTo(r) <= 0 ? l + " = " + r : r + " = " + l;
+            }
+            conjuncts.add(c);
+        }
+        conjuncts.sort(String::compareTo);
+        return String.join(" AND ", conjuncts);
+    }
+
+    private static String stripOuterParens(String s) {
+        String cur = s;
+        while (cur.length() >= 2 && cur.charAt(0) == '(' && cur.charAt(cur.length() - 1) == ')'
+                && matchingParen(cur, 0) == cur.length() - 1) {
+            cur = cur.substring(1, cur.length() - 1).trim();
+        }
+        return cur;
+    }
+
+    private static int matchingParen(String s, int open) {
+        int depth = 0;
+        boolean inQuote = false;
+        for (int i = open; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\'') inQuote = !inQuote;
+            if (inQuote) continue;
+            if (c == '(') depth++;
+            else if (c == ')' && --depth == 0) return i;
+        }
+        return -1;
+    }
+
+    private static List<String> splitTopLevelAnd(String s) {
+        List<String> out = new ArrayList<>();
+        String upper = s.toUpperCase(Locale.ROOT);
+        int depth = 0;
+        boolean inQuote = false;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\'') inQuote = !inQuote;
+            if (inQuote) continue;
+            if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (depth == 0 && upper.startsWith(" AND ", i)) {
+                out.add(s.substring(start, i));
+                start = i + 5;
+                i += 4;
+            }
+        }
+        out.add(s.substring(start));
+        return out;
+    }
+
+    /** Index of a lone top-level '=' (not part of <=, >=, <>, !=), or -1 if absent or ambiguous. */
+    private static int indexOfTopLevelEquals(String s) {
+        int depth = 0;
+        boolean inQuote = false;
+        int found = -1;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\'') inQuote = !inQuote;
+            if (inQuote) continue;
+            if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (depth == 0 && c == '=') {
+                char prev = i > 0 ? s.charAt(i - 1) : ' ';
+                if (prev == '<' || prev == '>' || prev == '!') return -1;
+                if (found >= 0) return -1;
+                found = i;
+            } else if (depth == 0 && (c == '<' || c == '>')) {
+                return -1;
+            }
+        }
+        return found;
+    }
+
+    /** Walk down the first differing child hashes to find the smallest differing subtree. */
+    private static Result localizeMismatch(Node a, Node b) {
+        StringBuilder path = new StringBuilder(label(a));
+        Node x = a;
+        Node y = b;
+        while (x.props.equals(y.props) && x.children.size() == y.children.size()) {
+            int differing = -1;
+            for (int i = 0; i < x.children.size(); i++) {
+                if (!x.children.get(i).deepEquals(y.children.get(i))) {
+                    differing = i;
+                    break;
+                }
+            }
+            if (differing < 0) break;
+            x = x.children.get(differing);
+            y = y.children.get(differing);
+            path.append(" > ").append(label(x)).append('[').append(differing).append(']');
+        }
+        return new Result(false, path.toString(), x.render(), y.render());
+    }
+
+    private static String label(Node n) {
+        return n.nodeType == null || n.nodeType.isEmpty() ? "(node)" : n.nodeType;
+    }
+}
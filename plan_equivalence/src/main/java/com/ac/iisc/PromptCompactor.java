@@ -0,0 +1,227 @@
+package com.ac.iisc;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compact prompt mode for the LLM helpers.
+ *
+ * <p>The default prompts embed both cleaned plans as pretty-printed JSON and
+ * the entire schema summary. With {@code llm_prompt_mode=compact} in
+ * {@code config.properties}, {@link #prepare(String, String, String)}
+ * instead returns:</p>
+ * <ul>
+ *   <li>each plan as an indented one-operator-per-line encoding (see
+ *       {@link #encodePlan(JSONObject)}), without planner estimates;</li>
+ *   <li>a minified schema summary restricted to the tables the two plans
+ *       scan.</li>
+ * </ul>
+ *
+ * <p>Token counts are estimated at four characters per token, which is close
+ * enough to compare prompt variants; the saving is logged per request.</p>
+ */
+public final class PromptCompactor
+{
+    /** Explanation of the compact encoding, placed before the plans in compact prompts. */
+    public static final String COMPACT_FORMAT_NOTE = """
+            PLAN FORMAT: ORIGINAL_PLAN_JSON and TARGET_PLAN_JSON below are given in a compact
+            encoding of the same cleaned EXPLAIN JSON: one operator per line, children indented
+            by two spaces under their parent, and the remaining plan properties as key=value
+            pairs separated by "; ". SCHEMA_SUMMARY only lists the tables the plans reference.
+            """;
+
+    /** Planner estimates that do not affect semantics. */
+    private static final Set<String> DROPPED_KEYS = Set.of("Plan Rows", "Plan Width", "Startup Cost", "Total Cost");
+
+    private PromptCompactor() { }
+
+    /** Prompt sections for one request, in either full or compact form. */
+    public static final class Parts
+    {
+        private final boolean compact;
+        private final String schemaSummary;
+        private final String planA;
+        private final String planB;
+        private final int savedChars;
+
+        Parts(boolean compact, String schemaSummary, String planA, String planB, int savedChars)
+        {
+            this.compact = compact;
+            this.schemaSummary = schemaSummary;
+            this.planA = planA;
+            this.planB = planB;
+            this.savedChars = savedChars;
+        }
+
+        public boolean isCompact() { return compact; }
+        public String getSchemaSummary() { return schemaSummary; }
+        public String getPlanA() { return planA; }
+        public String getPlanB() { return planB; }
+
+        /**
+         * Log the estimated size of {@code prompt} and the tokens saved
+         * relative to the full encoding (compact mode only).
+         */
+        public void reportSavings(String prompt)
+        {
+            if (!compact) return;
+            int tokens = estimateTokens(prompt);
+            int saved = savedChars / 4;
+            double pct = tokens + saved == 0 ? 0 : 100.0 * saved / (tokens + saved);
+            System.out.println(String.format(Locale.ROOT,
+                "[LLM] Compact prompt: ~%d tokens (saved ~%d tokens, %.1f%%)", tokens, saved, pct));
+        }
+    }
+
+    /** True when {@code llm_prompt_mode=compact}. */
+    public static boolean isCompactMode()
+    {
+        return "compact".equalsIgnoreCase(FileIO.getProperty("llm_prompt_mode", "full"));
+    }
+
+    /**
+     * Build the schema and plan sections of a prompt. In full mode the inputs
+     * are returned unchanged ({@code null} plans become {@code "(null)"}).
+     */
+    public static Parts prepare(String planAJson, String planBJson, String schemaSummary)
+    {
+        String fullA = planAJson == null ? "(null)" : planAJson;
+        String fullB = planBJson == null ? "(null)" : planBJson;
+        String fullSchema = schemaSummary == null ? "null" : schemaSummary;
+        if (!isCompactMode()) {
+            return new Parts(false, fullSchema, fullA, fullB, 0);
+        }
+
+        Set<String> tables = new TreeSet<>();
+        String compactA = compactPlan(planAJson, tables);
+        String compactB = compactPlan(planBJson, tables);
+        String compactSchema = filterSchemaSummary(schemaSummary, tables);
+        int saved = (fullA.length() + fullB.length() + fullSchema.length())
+            - (compactA.length() + compactB.length() + compactSchema.length() + COMPACT_FORMAT_NOTE.length());
+        return new Parts(true, compactSchema, compactA, compactB, saved);
+    }
+
+    /**
+     * Tables (upper-cased) referenced by the cleaned EXPLAIN JSON plans in
+     * {@code planJsons}; plans that are null or not JSON contribute none.
+     */
+    public static Set<String> referencedTables(List<String> planJsons)
+    {
+        Set<String> tables = new TreeSet<>();
+        for (String planJson : planJsons) {
+            if (planJson == null) continue;
+            try {
+                collectTables(new JSONObject(planJson), tables);
+            } catch (JSONException e) {
+                // Not a plan; nothing to collect
+            }
+        }
+        return tables;
+    }
+
+    private static String compactPlan(String planJson, Set<String> tables)
+    {
+        if (planJson == null) return "(null)";
+        try {
+            JSONObject plan = new JSONObject(planJson);
+            collectTables(plan, tables);
+            return encodePlan(plan);
+        } catch (JSONException e) {
+            return planJson;
+        }
+    }
+
+    /**
+     * Encode a cleaned plan as indented text, e.g.
+     * <pre>
+     * Hash Join: Join Type=Inner; Hash Cond=(o_custkey = c_custkey)
+     *   Seq Scan: Relation Name=orders; Alias=orders
+     *   Hash
+     *     Seq Scan: Relation Name=customer; Alias=customer; Filter=(c_mktsegment = 'BUILDING'::bpchar)
+     * </pre>
+     */
+    public static String encodePlan(JSONObject plan)
+    {
+        StringBuilder sb = new StringBuilder();
+        encodeNode(plan, 0, sb);
+        return sb.toString();
+    }
+
+    private static void encodeNode(JSONObject node, int depth, StringBuilder sb)
+    {
+        sb.append("  ".repeat(depth)).append(node.optString("Node Type", "?"));
+        boolean first = true;
+        for (String key : new TreeSet<>(node.keySet())) {
+            if (key.equals("Node Type") || key.equals("Plans") || DROPPED_KEYS.contains(key)) continue;
+            sb.append(first ? ": " : "; ").append(key).append('=').append(encodeValue(node.get(key)));
+            first = false;
+        }
+        sb.append('\n');
+        JSONArray children = node.optJSONArray("Plans");
+        if (children == null) return;
+        for (int i = 0; i < children.length(); i++) {
+            Object child = children.get(i);
+            if (child instanceof JSONObject c) encodeNode(c, depth + 1, sb);
+        }
+    }
+
+    private static String encodeValue(Object v)
+    {
+        if (v instanceof JSONArray arr) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < arr.length(); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(encodeValue(arr.get(i)));
+            }
+            return sb.append(']').toString();
+        }
+        if (v instanceof JSONObject obj) return obj.toString();
+        return String.valueOf(v);
+    }
+
+    private static void collectTables(JSONObject node, Set<String> tables)
+    {
+        String rel = node.optString("Relation Name", null);
+        if (rel != null) tables.add(rel.toUpperCase(Locale.ROOT));
+        JSONArray children = node.optJSONArray("Plans");
+        if (children == null) return;
+        for (int i = 0; i < children.length(); i++) {
+            Object child = children.get(i);
+            if (child instanceof JSONObject c) collectTables(c, tables);
+        }
+    }
+
+    /**
+     * Keep only the schema-summary entries whose table name (case-insensitive)
+     * is in {@code tables}; the result is minified JSON. The input is returned
+     * unchanged if it is not a JSON object.
+     */
+    public static String filterSchemaSummary(String schemaSummary, Set<String> tables)
+    {
+        if (schemaSummary == null) return "null";
+        try {
+            JSONObject all = new JSONObject(schemaSummary);
+            JSONObject kept = new JSONObject();
+            for (Iterator<String> it = all.keys(); it.hasNext(); ) {
+                String table = it.next();
+                if (tables.contains(table.toUpperCase(Locale.ROOT))) kept.put(table, all.get(table));
+            }
+            return kept.toString();
+        } catch (JSONException e) {
+            return schemaSummary;
+        }
+    }
+
+    /** Rough token estimate (four characters per token). */
+    public static int estimateTokens(String text)
+    {
+        return text == null ? 0 : (text.length() + 3) / 4;
+    }
+}
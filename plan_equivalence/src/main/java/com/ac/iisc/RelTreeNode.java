@@ -1,8 +1,12 @@
 package com.ac.iisc;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -73,16 +77,49 @@ public class RelTreeNode {
      * Two trees are order‑insensitively equivalent iff their canonical digests match.
      */
     public String canonicalDigest() {
-        final String nodeLabel = label == null ? "" : label;
-        if (children.isEmpty()) {
-            return nodeLabel + "[]";
+        // Explicit stack: order nodes so that children come before their
+        // parents, then digest them in that order, keeping results in an array.
+        List<RelTreeNode> order = new ArrayList<>();
+        Map<RelTreeNode, Integer> index = new IdentityHashMap<>();
+        Deque<RelTreeNode> stack = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        stack.push(this);
+        expanded.push(Boolean.FALSE);
+        while (!stack.isEmpty()) {
+            RelTreeNode n = stack.pop();
+            boolean childrenDone = expanded.pop();
+            if (index.containsKey(n)) continue;
+            if (childrenDone) {
+                index.put(n, order.size());
+                order.add(n);
+                continue;
+            }
+            stack.push(n);
+            expanded.push(Boolean.TRUE);
+            for (RelTreeNode c : n.children) {
+                if (c != null && !index.containsKey(c)) {
+                    stack.push(c);
+                    expanded.push(Boolean.FALSE);
+                }
+            }
         }
-        List<String> childDigests = new ArrayList<>(children.size());
-        for (RelTreeNode c : children) {
-            childDigests.add(c == null ? "(null)[]" : c.canonicalDigest());
+
+        String[] digests = new String[order.size()];
+        for (int i = 0; i < order.size(); i++) {
+            RelTreeNode n = order.get(i);
+            final String nodeLabel = n.label == null ? "" : n.label;
+            if (n.children.isEmpty()) {
+                digests[i] = nodeLabel + "[]";
+                continue;
+            }
+            List<String> childDigests = new ArrayList<>(n.children.size());
+            for (RelTreeNode c : n.children) {
+                childDigests.add(c == null ? "(null)[]" : digests[index.get(c)]);
+            }
+            Collections.sort(childDigests);
+            digests[i] = nodeLabel + "[" + String.join("|", childDigests) + "]";
         }
-        Collections.sort(childDigests);
-        return nodeLabel + "[" + String.join("|", childDigests) + "]";
+        return digests[index.get(this)];
     }
 
     /** Order‑insensitive structural equality (children treated as an unordered multiset). */
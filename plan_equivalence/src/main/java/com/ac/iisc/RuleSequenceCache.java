@@ -0,0 +1,296 @@
+package com.ac.iisc;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.tools.Frameworks;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Learned cache of transformation lists that made
+ * {@link Calcite#compareQueries(RelNode, RelNode, List)} succeed, keyed by an
+ * abstracted signature of the plan difference.
+ *
+ * <p>The same structural rewrites recur across the corpora (scalar subquery
+ * vs join, LEFT JOIN + COUNT vs semi-join, OR-of-ANDs vs IN, ...). The
+ * signature is computed from the subtrees found by
+ * {@link PlanDiff#localize(RelNode, RelNode)} with table names, column
+ * indexes and literals abstracted away, so two pairs with the same kind of
+ * difference share a key. Before the LLM is consulted, the lists recorded
+ * for the key are tried locally, best success rate first.</p>
+ *
+ * <p>Configuration keys in {@code config.properties}:</p>
+ * <ul>
+ *   <li>{@code rule_cache_enabled} – {@code true}/{@code false} (default true).</li>
+ *   <li>{@code rule_cache_file} – JSON store (default {@code ~/.plan_equivalence/rule_sequences.json}).</li>
+ *   <li>{@code rule_cache_max_candidates} – lists tried per pair (default 5).</li>
+ * </ul>
+ */
+public final class RuleSequenceCache
+{
+    private static final Pattern TABLE = Pattern.compile("table=\\[+[^\\]]*\\]+");
+    private static final Pattern INPUT_REF = Pattern.compile("\\$(cor)?\\d+");
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'(:[A-Z_()0-9 ,]+)?");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w$])-?\\d+(\\.\\d+)?(:[A-Z_()0-9 ,]+)?");
+
+    private static volatile RuleSequenceCache shared;
+
+    private final Path file;
+    private final boolean enabled;
+    private final int maxCandidates;
+    private JSONObject store;
+
+    public RuleSequenceCache(Path file, boolean enabled, int maxCandidates)
+    {
+        this.file = file;
+        this.enabled = enabled;
+        this.maxCandidates = Math.max(1, maxCandidates);
+    }
+
+    /**
+     * Process-wide cache configured from {@code config.properties}.
+     */
+    public static RuleSequenceCache getShared()
+    {
+        RuleSequenceCache c = shared;
+        if (c == null) {
+            synchronized (RuleSequenceCache.class) {
+                c = shared;
+                if (c == null) {
+                    String defaultFile = Paths.get(System.getProperty("user.home"), ".plan_equivalence", "rule_sequences.json").toString();
+                    int max;
+                    try {
+                        max = Integer.parseInt(FileIO.getProperty("rule_cache_max_candidates", "5").trim());
+                    } catch (NumberFormatException e) {
+                        max = 5;
+                    }
+                    c = new RuleSequenceCache(
+                        Paths.get(FileIO.getProperty("rule_cache_file", defaultFile)),
+                        Boolean.parseBoolean(FileIO.getProperty("rule_cache_enabled", "true")),
+                        max);
+                    shared = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Abstracted signature of the difference between {@code from} and
+     * {@code to}, or null if they are structurally identical (see
+     * {@link PlanDiff#localize(RelNode, RelNode)} and {@link PlanIdentity}).
+     */
+    public static String signature(RelNode from, RelNode to)
+    {
+        PlanDiff.Result diff = PlanDiff.localize(from, to);
+        if (diff == null) return null;
+        String shape = shape(diff.getLeft()) + " => " + shape(diff.getRight());
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest(shape.getBytes(StandardCharsets.UTF_8))).substring(0, 24);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /** Operator tree with tables, column references, aliases and literals abstracted. */
+    static String shape(RelNode rel)
+    {
+        StringBuilder sb = new StringBuilder();
+        appendShape(rel, sb);
+        return sb.toString();
+    }
+
+    private static void appendShape(RelNode rel, StringBuilder sb)
+    {
+        // Project terms are keyed by output alias; keep only the expressions
+        String local = rel instanceof Project p
+            ? rel.getRelTypeName() + ", exprs=" + p.getProjects()
+            : PlanDiff.localDigest(rel);
+        local = TABLE.matcher(local).replaceAll("table=T");
+        local = STRING_LITERAL.matcher(local).replaceAll("'?'");
+        local = INPUT_REF.matcher(local).replaceAll("\\$");
+        local = NUMBER_LITERAL.matcher(local).replaceAll("?");
+        sb.append(local);
+        if (rel.getInputs().isEmpty()) return;
+        sb.append('(');
+        for (int i = 0; i < rel.getInputs().size(); i++) {
+            if (i > 0) sb.append(", ");
+            appendShape(rel.getInput(i), sb);
+        }
+        sb.append(')');
+    }
+
+    /**
+     * Try the recorded transformation lists for this pair's signature on
+     * {@code from}, best success rate first. Every attempt is recorded.
+     *
+     * @return the first list that made the plans equivalent, or null
+     */
+    public List<String> tryCached(RelNode from, RelNode to)
+    {
+        if (!enabled || from == null || to == null) return null;
+        String sig = signature(from, to);
+        if (sig == null) return null;
+        for (List<String> rules : candidates(sig)) {
+            boolean ok = Calcite.compareQueries(from, to, rules);
+            record(sig, rules, ok);
+            if (ok) return rules;
+        }
+        return null;
+    }
+
+    /** SQL form of {@link #tryCached(RelNode, RelNode)}; returns null if planning fails. */
+    public List<String> tryCached(String fromSql, String toSql)
+    {
+        if (!enabled) return null;
+        return tryCached(plan(fromSql), plan(toSql));
+    }
+
+    /**
+     * Record {@code rules} as a verified transformation list for the pair
+     * {@code fromSql -> toSql}.
+     */
+    public void learn(String fromSql, String toSql, List<String> rules)
+    {
+        if (!enabled || rules == null || rules.isEmpty()) return;
+        RelNode from = plan(fromSql);
+        RelNode to = plan(toSql);
+        if (from == null || to == null) return;
+        String sig = signature(from, to);
+        if (sig != null) record(sig, rules, true);
+    }
+
+    /**
+     * Recorded lists for {@code signature}, ranked by Laplace-smoothed success
+     * rate, then by fewer rules; at most {@code rule_cache_max_candidates}.
+     */
+    public synchronized List<List<String>> candidates(String signature)
+    {
+        JSONArray entries = load().optJSONArray(signature);
+        List<JSONObject> ranked = new ArrayList<>();
+        if (entries == null) return List.of();
+        for (int i = 0; i < entries.length(); i++) ranked.add(entries.getJSONObject(i));
+        ranked.sort(Comparator.comparingDouble(RuleSequenceCache::score).reversed()
+            .thenComparingInt(e -> e.getJSONArray("rules").length()));
+
+        List<List<String>> out = new ArrayList<>();
+        for (JSONObject e : ranked) {
+            if (out.size() >= maxCandidates) break;
+            JSONArray rules = e.getJSONArray("rules");
+            List<String> list = new ArrayList<>(rules.length());
+            for (int i = 0; i < rules.length(); i++) list.add(rules.getString(i));
+            out.add(list);
+        }
+        return out;
+    }
+
+    /**
+     * Update the success/attempt counters of {@code rules} under {@code signature} and persist.
+     * The file is re-read under an exclusive lock first, so concurrent
+     * processes sharing it (forked workers, shards) do not drop each other's updates.
+     */
+    public synchronized void record(String signature, List<String> rules, boolean success)
+    {
+        if (!enabled) return;
+        try (FileChannel channel = openLock(); FileLock lock = channel == null ? null : channel.lock()) {
+            if (lock != null) store = null;
+            JSONObject root = load();
+            JSONArray entries = root.optJSONArray(signature);
+            if (entries == null) {
+                if (!success) return;
+                entries = new JSONArray();
+                root.put(signature, entries);
+            }
+            JSONObject entry = null;
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject e = entries.getJSONObject(i);
+                if (e.getJSONArray("rules").toList().equals(rules)) {
+                    entry = e;
+                    break;
+                }
+            }
+            if (entry == null) {
+                if (!success) return;
+                entry = new JSONObject().put("rules", new JSONArray(rules)).put("successes", 0).put("attempts", 0);
+                entries.put(entry);
+            }
+            entry.put("attempts", entry.optInt("attempts") + 1);
+            if (success) entry.put("successes", entry.optInt("successes") + 1);
+            save(root);
+        } catch (IOException e) {
+            System.err.println("[RuleSequenceCache] Unable to lock cache file: " + e.getMessage());
+        }
+    }
+
+    /** Channel on the {@code .lock} sibling of the cache file, or null if it cannot be opened. */
+    private FileChannel openLock()
+    {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            return FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static double score(JSONObject e)
+    {
+        return (e.optInt("successes") + 1.0) / (e.optInt("attempts") + 2.0);
+    }
+
+    private JSONObject load()
+    {
+        if (store != null) return store;
+        store = new JSONObject();
+        if (!Files.isRegularFile(file)) return store;
+        try {
+            store = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            System.err.println("[RuleSequenceCache] Ignoring unreadable cache file " + file + ": " + e.getMessage());
+        }
+        return store;
+    }
+
+    private void save(JSONObject root)
+    {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, "rule_sequences", ".tmp");
+            Files.writeString(tmp, root.toString(2), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[RuleSequenceCache] Unable to write cache file: " + e.getMessage());
+        }
+    }
+
+    private static RelNode plan(String sql)
+    {
+        try {
+            return Calcite.getOptimizedRelNode(Frameworks.getPlanner(Calcite.getFrameworkConfig()), sql);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
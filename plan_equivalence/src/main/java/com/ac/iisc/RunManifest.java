@@ -0,0 +1,234 @@
+package com.ac.iisc;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.calcite.rel.RelNode;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Durable per-pair record of a corpus run, so an interrupted or repeated run
+ * only redoes the pairs that changed.
+ *
+ * <p>For every query ID the manifest stores the SHA-256 of both SQL blocks,
+ * the engine version that produced the verdict, the verdict, the stage that
+ * decided it and how long the check took. {@link Test} records each pair as
+ * soon as its verdict is known (the file is rewritten atomically and synced),
+ * and before checking a pair asks {@link #lookup(String, String, String)} for
+ * a verdict that is still valid: same SQL text and same engine version.</p>
+ *
+ * <p>The engine version is a hash of the project's compiled classes and
+ * resources (among them {@code config.properties} and the schema summaries),
+ * the effective configuration, the schema summary in use and the Calcite
+ * version. Rebuilding after a code change, switching the LLM model or prompt
+ * settings, or editing the summary therefore invalidates every entry; set
+ * {@code run_manifest_engine_version} to pin it explicitly instead.</p>
+ *
+ * <p>Configuration keys in {@code config.properties}:</p>
+ * <ul>
+ *   <li>{@code run_manifest_enabled} – {@code true}/{@code false} (default true).</li>
+ *   <li>{@code run_manifest_file} – JSON store (default {@code ~/.plan_equivalence/run_manifest.json}).</li>
+ *   <li>{@code run_manifest_engine_version} – explicit engine version (default: computed).</li>
+ * </ul>
+ */
+public final class RunManifest
+{
+    /** One recorded verdict. */
+    public record Entry(String sqlHashA, String sqlHashB, String engine, boolean equivalent, String stage,
+                        long millis, String recordedAt) { }
+
+    private static volatile RunManifest shared;
+
+    private final Path file;
+    private final boolean enabled;
+    private final String engineVersion;
+    private JSONObject store;
+
+    private final AtomicInteger reused = new AtomicInteger();
+    private final AtomicInteger recorded = new AtomicInteger();
+
+    public RunManifest(Path file, boolean enabled, String engineVersion)
+    {
+        if (engineVersion == null || engineVersion.isBlank()) {
+            throw new IllegalArgumentException("engineVersion is required");
+        }
+        this.file = file;
+        this.enabled = enabled;
+        this.engineVersion = engineVersion;
+    }
+
+    /**
+     * Process-wide manifest configured from {@code config.properties}.
+     */
+    public static RunManifest getShared()
+    {
+        RunManifest m = shared;
+        if (m == null) {
+            synchronized (RunManifest.class) {
+                m = shared;
+                if (m == null) {
+                    String defaultFile = Paths.get(System.getProperty("user.home"), ".plan_equivalence", "run_manifest.json").toString();
+                    String version = FileIO.getProperty("run_manifest_engine_version", "").trim();
+                    m = new RunManifest(
+                        Paths.get(FileIO.getProperty("run_manifest_file", defaultFile)),
+                        Boolean.parseBoolean(FileIO.getProperty("run_manifest_enabled", "true")),
+                        version.isEmpty() ? computeEngineVersion() : version);
+                    shared = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    public String getEngineVersion()
+    {
+        return engineVersion;
+    }
+
+    /**
+     * The recorded verdict for {@code id}, or null if there is none or it is
+     * stale (either SQL block or the engine version changed).
+     */
+    public synchronized Entry lookup(String id, String sqlA, String sqlB)
+    {
+        if (!enabled) return null;
+        JSONObject e = load().optJSONObject(id);
+        if (e == null) return null;
+        if (!engineVersion.equals(e.optString("engine"))
+            || !sqlHash(sqlA).equals(e.optString("sql_a"))
+            || !sqlHash(sqlB).equals(e.optString("sql_b"))) {
+            return null;
+        }
+        reused.incrementAndGet();
+        return new Entry(e.optString("sql_a"), e.optString("sql_b"), e.optString("engine"),
+            e.optBoolean("equivalent"), e.optString("stage"), e.optLong("ms", -1), e.optString("recorded_at"));
+    }
+
+    /**
+     * Time the last recorded check of {@code id} took, or -1 if unknown. Only
+     * the SQL must match; timings from other engine versions still serve as
+     * estimates (see {@link PairScheduler}).
+     */
+    public synchronized long historicalMillis(String id, String sqlA, String sqlB)
+    {
+        if (!enabled) return -1;
+        JSONObject e = load().optJSONObject(id);
+        if (e == null || !sqlHash(sqlA).equals(e.optString("sql_a")) || !sqlHash(sqlB).equals(e.optString("sql_b"))) {
+            return -1;
+        }
+        return e.optLong("ms", -1);
+    }
+
+    /** Record the verdict for {@code id} (checked in {@code millis} ms) and write the manifest to disk. */
+    public synchronized void record(String id, String sqlA, String sqlB, boolean equivalent, String stage, long millis)
+    {
+        if (!enabled) return;
+        JSONObject root = load();
+        root.put(id, new JSONObject()
+            .put("sql_a", sqlHash(sqlA))
+            .put("sql_b", sqlHash(sqlB))
+            .put("engine", engineVersion)
+            .put("equivalent", equivalent)
+            .put("stage", stage == null ? "" : stage)
+            .put("ms", millis)
+            .put("recorded_at", Instant.now().toString()));
+        recorded.incrementAndGet();
+        save(root);
+    }
+
+    /** One-line summary, e.g. {@code Run manifest: 480 reused, 25 recorded (engine 3f2a...)}. */
+    public String getStats()
+    {
+        return "Run manifest: " + reused.get() + " reused, " + recorded.get() + " recorded (engine " + engineVersion + ")"
+            + (enabled ? "" : " [disabled]");
+    }
+
+    /** SHA-256 of a SQL block (null-safe). */
+    public static String sqlHash(String sql)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest((sql == null ? "" : sql).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Hash of the compiled project classes and resources (every file of the
+     * class directory, or the jar this class was loaded from), the effective
+     * configuration, the schema summary and the Calcite version. The last two
+     * are hashed separately because both may be read from outside the
+     * classpath.
+     */
+    static String computeEngineVersion()
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(String.valueOf(RelNode.class.getPackage().getImplementationVersion()).getBytes(StandardCharsets.UTF_8));
+            Path src = Paths.get(RunManifest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (Files.isDirectory(src)) {
+                List<Path> contents;
+                try (Stream<Path> files = Files.walk(src)) {
+                    contents = files.filter(Files::isRegularFile).sorted().toList();
+                }
+                for (Path p : contents) {
+                    md.update(src.relativize(p).toString().getBytes(StandardCharsets.UTF_8));
+                    md.update(Files.readAllBytes(p));
+                }
+            } else {
+                md.update(Files.readAllBytes(src));
+            }
+            md.update(FileIO.describeConfig().getBytes(StandardCharsets.UTF_8));
+            String summary = FileIO.readSchemaSummary();
+            md.update(String.valueOf(summary).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(md.digest()).substring(0, 16);
+        } catch (IOException | URISyntaxException | NoSuchAlgorithmException | RuntimeException e) {
+            System.err.println("[RunManifest] Unable to fingerprint the engine (" + e.getMessage()
+                + "); set run_manifest_engine_version to make verdicts reusable.");
+            return "unknown-" + Instant.now().toEpochMilli();
+        }
+    }
+
+    private JSONObject load()
+    {
+        if (store != null) return store;
+        store = new JSONObject();
+        if (!Files.isRegularFile(file)) return store;
+        try {
+            store = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            System.err.println("[RunManifest] Ignoring unreadable manifest " + file + ": " + e.getMessage());
+        }
+        return store;
+    }
+
+    private void save(JSONObject root)
+    {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, "run_manifest", ".tmp");
+            // SYNC: the verdict must be on disk before the next pair starts
+            Files.writeString(tmp, root.toString(2), StandardCharsets.UTF_8,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SYNC);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[RunManifest] Unable to write manifest: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.ac.iisc;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.metadata.BuiltInMetadata;
+import org.apache.calcite.rel.metadata.ChainedRelMetadataProvider;
+import org.apache.calcite.rel.metadata.DefaultRelMetadataProvider;
+import org.apache.calcite.rel.metadata.JaninoRelMetadataProvider;
+import org.apache.calcite.rel.metadata.MetadataDef;
+import org.apache.calcite.rel.metadata.MetadataHandler;
+import org.apache.calcite.rel.metadata.ReflectiveRelMetadataProvider;
+import org.apache.calcite.rel.metadata.RelColumnOrigin;
+import org.apache.calcite.rel.metadata.RelMetadataProvider;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Calcite metadata backed by the schema summary ({@link FileIO#readSchemaSummary()}).
+ *
+ * <p>The JDBC schema Calcite builds does not expose key constraints, so by
+ * default {@link RelMetadataQuery#getUniqueKeys} and
+ * {@link RelMetadataQuery#areColumnsUnique} know nothing about base tables.
+ * This provider answers both for {@link TableScan}s from the summary's primary
+ * keys and chains to {@link DefaultRelMetadataProvider} for everything else,
+ * so Calcite's own handlers carry the keys up through projects, filters,
+ * joins and aggregates. The chain is compiled once with
+ * {@link JaninoRelMetadataProvider} and every {@link RelMetadataQuery} caches
+ * its answers per node; {@link #install(RelOptCluster)} makes a cluster use
+ * it, which also lets rules such as {@code AGGREGATE_REMOVE} see the keys.</p>
+ *
+ * <p>Calcite has no foreign-key metadata type. {@link #isForeignKeyToPrimaryKey}
+ * answers FK→PK questions from the summary using (cached) column-origin
+ * metadata to map fields back to base columns.</p>
+ */
+public final class SchemaMetadataProvider
+{
+    /** A base table column, upper-cased. */
+    public record BaseColumn(String table, String column) { }
+
+    private record Summary(Map<String, Set<String>> pkByTable, Map<String, Map<String, BaseColumn>> fkByTable) { }
+
+    private static volatile Summary summary;
+
+    /** Summary-backed handlers first, Calcite's defaults for everything they do not cover. */
+    public static final RelMetadataProvider INSTANCE = ChainedRelMetadataProvider.of(List.of(
+        ReflectiveRelMetadataProvider.reflectiveSource(new UniqueKeys(), BuiltInMetadata.UniqueKeys.Handler.class),
+        ReflectiveRelMetadataProvider.reflectiveSource(new ColumnUniqueness(), BuiltInMetadata.ColumnUniqueness.Handler.class),
+        DefaultRelMetadataProvider.INSTANCE));
+
+    private static final JaninoRelMetadataProvider COMPILED = JaninoRelMetadataProvider.of(INSTANCE);
+
+    private SchemaMetadataProvider() { }
+
+    /**
+     * Make {@code cluster} answer metadata queries through this provider. Safe
+     * to call repeatedly; a no-op when already installed.
+     */
+    @SuppressWarnings("deprecation")
+    public static void install(RelOptCluster cluster)
+    {
+        if (cluster == null || cluster.getMetadataProvider() == INSTANCE) return;
+        cluster.setMetadataProvider(INSTANCE);
+        cluster.setMetadataQuerySupplier(() -> new RelMetadataQuery(COMPILED));
+        cluster.invalidateMetadataQuery();
+    }
+
+    /** Primary-key columns of {@code table} (upper-cased; empty if unknown). */
+    public static Set<String> primaryKey(String table)
+    {
+        if (table == null) return Set.of();
+        return getSummary().pkByTable().getOrDefault(table.trim().toUpperCase(Locale.ROOT), Set.of());
+    }
+
+    /**
+     * Base column that field {@code field} of {@code rel} is a plain copy of,
+     * or null if it is computed or comes from more than one column.
+     */
+    public static BaseColumn baseColumn(RelMetadataQuery mq, RelNode rel, int field)
+    {
+        if (mq == null || rel == null || field < 0 || field >= rel.getRowType().getFieldCount()) return null;
+        RelColumnOrigin origin = mq.getColumnOrigin(rel, field);
+        if (origin == null || origin.isDerived()) return null;
+        return columnOf(origin.getOriginTable(), origin.getOriginColumnOrdinal());
+    }
+
+    /**
+     * True if field {@code fkField} of {@code fkRel} is a foreign key (per the
+     * schema summary) referencing field {@code pkField} of {@code pkRel}, and
+     * that referenced column is part of its table's primary key.
+     */
+    public static boolean isForeignKeyToPrimaryKey(RelMetadataQuery mq, RelNode fkRel, int fkField,
+                                                   RelNode pkRel, int pkField)
+    {
+        BaseColumn fk = baseColumn(mq, fkRel, fkField);
+        BaseColumn pk = baseColumn(mq, pkRel, pkField);
+        if (fk == null || pk == null) return false;
+        BaseColumn ref = getSummary().fkByTable().getOrDefault(fk.table(), Map.of()).get(fk.column());
+        return pk.equals(ref) && primaryKey(pk.table()).contains(pk.column());
+    }
+
+    /** Unique keys of a base table: its summary primary key, else whatever the table declares. */
+    public static final class UniqueKeys implements MetadataHandler<BuiltInMetadata.UniqueKeys>
+    {
+        @Override
+        public MetadataDef<BuiltInMetadata.UniqueKeys> getDef()
+        {
+            return BuiltInMetadata.UniqueKeys.DEF;
+        }
+
+        public Set<ImmutableBitSet> getUniqueKeys(TableScan rel, RelMetadataQuery mq, boolean ignoreNulls)
+        {
+            ImmutableBitSet pk = primaryKeyBits(rel.getTable());
+            if (pk != null) return Set.of(pk);
+            List<ImmutableBitSet> keys = rel.getTable().getKeys();
+            return keys == null ? null : Set.copyOf(keys);
+        }
+    }
+
+    /** Column uniqueness of a base table: any superset of its summary primary key is unique. */
+    public static final class ColumnUniqueness implements MetadataHandler<BuiltInMetadata.ColumnUniqueness>
+    {
+        @Override
+        public MetadataDef<BuiltInMetadata.ColumnUniqueness> getDef()
+        {
+            return BuiltInMetadata.ColumnUniqueness.DEF;
+        }
+
+        public Boolean areColumnsUnique(TableScan rel, RelMetadataQuery mq, ImmutableBitSet columns, boolean ignoreNulls)
+        {
+            ImmutableBitSet pk = primaryKeyBits(rel.getTable());
+            if (pk != null && columns.contains(pk)) return true;
+            return rel.getTable().isKey(columns);
+        }
+    }
+
+    /** Field ordinals of the summary primary key of {@code table}, or null if unknown. */
+    private static ImmutableBitSet primaryKeyBits(RelOptTable table)
+    {
+        String name = tableName(table);
+        Set<String> pk = primaryKey(name);
+        if (pk.isEmpty()) return null;
+        List<RelDataTypeField> fields = table.getRowType().getFieldList();
+        ImmutableBitSet.Builder bits = ImmutableBitSet.builder();
+        for (String col : pk) {
+            int idx = -1;
+            for (RelDataTypeField f : fields) {
+                if (normalize(f.getName()).equals(col)) {
+                    idx = f.getIndex();
+                    break;
+                }
+            }
+            // A PK column missing from the row type means the summary does not describe this table
+            if (idx < 0) return null;
+            bits.set(idx);
+        }
+        return bits.build();
+    }
+
+    private static BaseColumn columnOf(RelOptTable table, int ordinal)
+    {
+        String name = tableName(table);
+        if (name == null || ordinal < 0 || ordinal >= table.getRowType().getFieldCount()) return null;
+        String col = normalize(table.getRowType().getFieldList().get(ordinal).getName());
+        return col.isEmpty() ? null : new BaseColumn(name, col);
+    }
+
+    private static String tableName(RelOptTable table)
+    {
+        List<String> qn = table == null ? null : table.getQualifiedName();
+        if (qn == null || qn.isEmpty()) return null;
+        String name = normalize(qn.get(qn.size() - 1));
+        return name.isEmpty() ? null : name;
+    }
+
+    private static String normalize(String name)
+    {
+        return name == null ? "" : name.replace("\"", "").trim().toUpperCase(Locale.ROOT);
+    }
+
+    private static Summary getSummary()
+    {
+        Summary cached = summary;
+        if (cached != null) return cached;
+        synchronized (SchemaMetadataProvider.class) {
+            if (summary == null) summary = loadSummary();
+            return summary;
+        }
+    }
+
+    /** Parse the summary JSON: {@code {TABLE: {pk: [...], fks: [{col, ref_table, ref_col}]}}}. */
+    private static Summary loadSummary()
+    {
+        try {
+            String json = FileIO.readSchemaSummary();
+            if (json == null || json.isBlank()) return new Summary(Map.of(), Map.of());
+            JSONObject root = new JSONObject(json);
+            Map<String, Set<String>> pk = new HashMap<>();
+            Map<String, Map<String, BaseColumn>> fk = new HashMap<>();
+            for (String tableKey : root.keySet()) {
+                JSONObject t = root.optJSONObject(tableKey);
+                if (t == null) continue;
+                String table = normalize(tableKey);
+
+                Set<String> pkCols = new LinkedHashSet<>();
+                JSONArray pkArr = t.optJSONArray("pk");
+                if (pkArr != null) {
+                    for (int i = 0; i < pkArr.length(); i++) {
+                        String c = normalize(pkArr.optString(i, null));
+                        if (!c.isEmpty()) pkCols.add(c);
+                    }
+                }
+                pk.put(table, Set.copyOf(pkCols));
+
+                Map<String, BaseColumn> fks = new HashMap<>();
+                JSONArray fkArr = t.optJSONArray("fks");
+                if (fkArr != null) {
+                    for (int i = 0; i < fkArr.length(); i++) {
+                        JSONObject fkObj = fkArr.optJSONObject(i);
+                        if (fkObj == null) continue;
+                        String col = normalize(fkObj.optString("col", ""));
+                        String rt = normalize(fkObj.optString("ref_table", ""));
+                        String rc = normalize(fkObj.optString("ref_col", ""));
+                        if (col.isEmpty() || rt.isEmpty() || rc.isEmpty()) continue;
+                        fks.put(col, new BaseColumn(rt, rc));
+                    }
+                }
+                fk.put(table, fks);
+            }
+            return new Summary(pk, fk);
+        } catch (Exception e) {
+            // The summary is optional; without it no keys are reported
+            System.err.println("[SchemaMetadataProvider] Schema summary unavailable: " + e.getMessage());
+            return new Summary(Map.of(), Map.of());
+        }
+    }
+}
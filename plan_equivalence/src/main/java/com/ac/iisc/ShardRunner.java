@@ -0,0 +1,370 @@
+package com.ac.iisc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Splits a corpus run over several processes or machines that share only a
+ * directory.
+ *
+ * <p>Every worker computes the same deterministic partition of the query IDs
+ * (by hash of the ID, or by estimated cost with longest-first greedy
+ * balancing) and processes its own shard with the {@link Test} pipeline
+ * against its own database or offline schema. It writes
+ * {@code shard_K_of_N.json} in the shared directory after every pair, and a
+ * per-shard {@link RunManifest} there so a restarted worker resumes where it
+ * stopped. Within a shard, pairs run longest-first on {@code --parallel}
+ * threads ({@link PairScheduler}). {@code merge} combines the shard files into one report with
+ * verdict counts and timing statistics; no coordinator is involved.</p>
+ *
+ * <pre>
+ * java com.ac.iisc.ShardRunner worker --shard 0 --of 4 --dir /shared/run1
+ *     [--strategy hash|cost] [--ids TPCDS_Q1,TPCDS_Q2 | --match 'TPCDS_.*'] [--no-llm] [--parallel 1]
+ * java com.ac.iisc.ShardRunner merge --dir /shared/run1 [--report report.txt]
+ * </pre>
+ */
+public final class ShardRunner
+{
+    /** How query IDs are assigned to shards. */
+    public enum Strategy { HASH, COST }
+
+    private static final Pattern SHARD_FILE = Pattern.compile("shard_(\\d+)_of_(\\d+)\\.json");
+
+    private ShardRunner() { }
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (argv.length == 0 || !(argv[0].equals("worker") || argv[0].equals("merge"))) {
+            System.err.println("[ShardRunner] Usage: ShardRunner worker --shard K --of N --dir DIR [options] | merge --dir DIR");
+            System.exit(2);
+        }
+        CliArgs args = new CliArgs(Arrays.copyOfRange(argv, 1, argv.length));
+        if (!args.has("dir")) throw new IllegalArgumentException("--dir is required");
+        Path dir = Paths.get(args.get("dir", "."));
+        if (argv[0].equals("worker")) {
+            worker(args, dir);
+        } else {
+            String report = merge(dir);
+            System.out.print(report);
+            Path out = args.has("report") ? Paths.get(args.get("report", "")) : dir.resolve("report.txt");
+            Files.writeString(out, report, StandardCharsets.UTF_8);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * The IDs of shard {@code shard} (0-based) of {@code of}. Depends only on
+     * the arguments, so every worker derives the same partition.
+     *
+     * @param cost estimated cost per ID (used by {@link Strategy#COST} only)
+     */
+    public static List<String> shard(List<String> ids, int shard, int of, Strategy strategy, ToLongFunction<String> cost)
+    {
+        if (of < 1 || shard < 0 || shard >= of) {
+            throw new IllegalArgumentException("Invalid shard " + shard + " of " + of);
+        }
+        List<String> mine = new ArrayList<>();
+        if (strategy == Strategy.HASH) {
+            for (String id : ids) {
+                if (Math.floorMod(id.hashCode(), of) == shard) mine.add(id);
+            }
+            return mine;
+        }
+        // Longest-first greedy: each ID goes to the currently lightest shard
+        Map<String, Long> costs = new LinkedHashMap<>();
+        for (String id : ids) costs.put(id, cost.applyAsLong(id));
+        List<String> order = new ArrayList<>(costs.keySet());
+        order.sort(Comparator.comparing((String id) -> costs.get(id)).reversed().thenComparing(Comparator.naturalOrder()));
+        long[] load = new long[of];
+        for (String id : order) {
+            int lightest = 0;
+            for (int i = 1; i < of; i++) {
+                if (load[i] < load[lightest]) lightest = i;
+            }
+            load[lightest] += costs.get(id);
+            if (lightest == shard) mine.add(id);
+        }
+        return mine;
+    }
+
+    /**
+     * Cost estimate of a pair from its SQL alone
+     * ({@link PairScheduler#structuralCost}; 0 if a side cannot be read).
+     * Recorded times are not used, so every worker computes the same value.
+     */
+    public static long estimateCost(String id)
+    {
+        try {
+            return PairScheduler.structuralCost(FileIO.readOriginalSqlQuery(id), FileIO.readRewrittenSqlQuery(id));
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static void worker(CliArgs args, Path dir) throws IOException
+    {
+        int shard = args.getInt("shard", -1);
+        int of = args.getInt("of", -1);
+        Strategy strategy = Strategy.valueOf(args.get("strategy", "hash").toUpperCase(Locale.ROOT));
+        boolean useLlm = !args.has("no-llm");
+        int parallelism = args.getInt("parallel", 1);
+
+        List<String> ids;
+        if (args.has("ids")) {
+            ids = new ArrayList<>();
+            for (String id : args.get("ids", "").split(",")) {
+                if (!id.isBlank()) ids.add(id.trim());
+            }
+        } else {
+            Pattern match = Pattern.compile(args.get("match", ".*"));
+            ids = FileIO.listQueryIds(FileIO.SqlSource.ORIGINAL).stream().filter(id -> match.matcher(id).matches()).toList();
+        }
+        List<String> mine = shard(ids, shard, of, strategy, ShardRunner::estimateCost);
+
+        Files.createDirectories(dir);
+        Path out = dir.resolve("shard_" + shard + "_of_" + of + ".json");
+        String engine = RunManifest.getShared().getEngineVersion();
+        RunManifest manifest = new RunManifest(dir.resolve("manifest_shard_" + shard + "_of_" + of + ".json"), true, engine);
+
+        // Rows of an earlier, interrupted attempt at this shard (for the timing of reused pairs)
+        Map<String, JSONObject> earlier = new LinkedHashMap<>();
+        if (Files.isRegularFile(out)) {
+            try {
+                JSONArray rows = new JSONObject(Files.readString(out, StandardCharsets.UTF_8)).optJSONArray("pairs");
+                for (int i = 0; rows != null && i < rows.length(); i++) {
+                    earlier.put(rows.getJSONObject(i).optString("id"), rows.getJSONObject(i));
+                }
+            } catch (JSONException e) {
+                System.err.println("[ShardRunner] Ignoring unreadable " + out + ": " + e.getMessage());
+            }
+        }
+
+        JSONObject result = new JSONObject()
+            .put("shard", shard).put("of", of).put("strategy", strategy.name().toLowerCase(Locale.ROOT))
+            .put("host", hostName()).put("engine", engine).put("started", Instant.now().toString())
+            .put("complete", false).put("pairs", new JSONArray());
+        System.out.println("[ShardRunner] Shard " + shard + "/" + of + ": " + mine.size() + " of " + ids.size() + " pairs -> " + out);
+
+        long start = System.nanoTime();
+        PairScheduler.run(PairScheduler.order(mine, manifest), parallelism, id -> {
+            StringBuilder log = new StringBuilder();
+            log.append("-----------------------------------------------------\n");
+            log.append("Query ID: ").append(id).append('\n');
+            JSONObject row = runPair(id, manifest, useLlm, earlier.get(id), log);
+            System.out.print(log);
+            synchronized (result) {
+                result.getJSONArray("pairs").put(row);
+                result.put("wall_ms", (System.nanoTime() - start) / 1_000_000);
+                write(out, result);
+            }
+        });
+        result.put("complete", true).put("finished", Instant.now().toString());
+        write(out, result);
+        System.out.println(manifest.getStats());
+    }
+
+    /**
+     * Check one pair (or reuse its manifest verdict) and describe the outcome.
+     * A reused pair keeps the time from {@code earlier} (the row of a previous
+     * attempt at this shard), or -1 if unknown.
+     */
+    private static JSONObject runPair(String id, RunManifest manifest, boolean useLlm, JSONObject earlier, StringBuilder log)
+    {
+        JSONObject row = new JSONObject().put("id", id);
+        long t0 = System.nanoTime();
+        try {
+            String sqlA = FileIO.readOriginalSqlQuery(id);
+            String sqlB = FileIO.readRewrittenSqlQuery(id);
+            RunManifest.Entry previous = manifest.lookup(id, sqlA, sqlB);
+            if (previous != null) {
+                log.append("Unchanged since ").append(previous.recordedAt()).append(", equivalence (")
+                    .append(previous.stage()).append("): ").append(previous.equivalent()).append('\n');
+                return row.put("equivalent", previous.equivalent()).put("stage", previous.stage())
+                    .put("ms", earlier == null ? -1 : earlier.optLong("ms", -1)).put("reused", true);
+            }
+            String stage;
+            if (!ForkedWorkerPool.isEnabled()) stage = Test.checkLocally(sqlA, sqlB, log);
+            else {
+                ForkedWorkerPool.Outcome outcome = ForkedWorkerPool.getShared().checkLocally(sqlA, sqlB);
+                log.append(outcome.log());
+                // Timed-out or crashed pairs are reported as such and left for a later run
+                if (outcome.status() != ForkedWorkerPool.Status.OK) {
+                    return row.put("equivalent", false).put("stage", outcome.status().name().toLowerCase(Locale.ROOT))
+                        .put("ms", outcome.millis()).put("reused", false);
+                }
+                stage = outcome.stage();
+            }
+            boolean equivalent = stage != null;
+            if (equivalent) LLMMetrics.getShared().pairResolvedLocally();
+            else if (useLlm) {
+                Boolean llm = Test.checkWithLLM(sqlA, sqlB, log);
+                if (llm != null) {
+                    equivalent = llm;
+                    stage = "llm";
+                }
+                if (equivalent) LLMMetrics.getShared().pairResolved();
+            }
+            // Without an LLM answer an unresolved pair has no final verdict; leave it for a later run
+            if (stage == null) stage = "unresolved";
+            else manifest.record(id, sqlA, sqlB, equivalent, stage, (System.nanoTime() - t0) / 1_000_000);
+            row.put("equivalent", equivalent).put("stage", stage);
+        } catch (Exception e) {
+            System.err.println("[ShardRunner] " + id + " failed: " + e.getMessage());
+            row.put("equivalent", false).put("stage", "error").put("error", String.valueOf(e.getMessage()));
+        }
+        return row.put("ms", (System.nanoTime() - t0) / 1_000_000).put("reused", false);
+    }
+
+    /**
+     * Combine the {@code shard_K_of_N.json} files in {@code dir} into a text
+     * report; also writes {@code results.csv} (one row per pair) next to them.
+     */
+    public static String merge(Path dir) throws IOException
+    {
+        Map<Integer, JSONObject> shards = new TreeMap<>();
+        int of = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "shard_*_of_*.json")) {
+            for (Path f : files) {
+                Matcher m = SHARD_FILE.matcher(f.getFileName().toString());
+                if (!m.matches()) continue;
+                int n = Integer.parseInt(m.group(2));
+                if (of != -1 && n != of) {
+                    throw new IllegalArgumentException("Shard files for different shard counts in " + dir + " (" + of + " and " + n + ")");
+                }
+                of = n;
+                try {
+                    shards.put(Integer.parseInt(m.group(1)), new JSONObject(Files.readString(f, StandardCharsets.UTF_8)));
+                } catch (JSONException e) {
+                    System.err.println("[ShardRunner] Ignoring unreadable shard file " + f + ": " + e.getMessage());
+                }
+            }
+        }
+        if (shards.isEmpty()) throw new IllegalArgumentException("No shard files in " + dir);
+
+        StringBuilder report = new StringBuilder();
+        Map<String, JSONObject> pairs = new TreeMap<>();
+        Map<String, Integer> shardOf = new LinkedHashMap<>();
+        Map<String, Integer> stages = new TreeMap<>();
+        List<Long> shardWalls = new ArrayList<>();
+        int complete = 0;
+        Set<String> engines = new TreeSet<>();
+        StringBuilder perShard = new StringBuilder();
+        for (Map.Entry<Integer, JSONObject> e : shards.entrySet()) {
+            JSONObject s = e.getValue();
+            JSONArray rows = s.optJSONArray("pairs");
+            int n = rows == null ? 0 : rows.length();
+            if (s.optBoolean("complete")) complete++;
+            engines.add(s.optString("engine"));
+            shardWalls.add(s.optLong("wall_ms"));
+            perShard.append(String.format(Locale.ROOT, "  shard %d on %s: %d pairs, wall %d ms%s%n",
+                e.getKey(), s.optString("host", "?"), n, s.optLong("wall_ms"), s.optBoolean("complete") ? "" : " (incomplete)"));
+            for (int i = 0; i < n; i++) {
+                JSONObject row = rows.getJSONObject(i);
+                String id = row.optString("id");
+                if (pairs.containsKey(id)) {
+                    report.append("Warning: ").append(id).append(" appears in shards ").append(shardOf.get(id))
+                        .append(" and ").append(e.getKey()).append("; keeping the first\n");
+                    continue;
+                }
+                pairs.put(id, row);
+                shardOf.put(id, e.getKey());
+            }
+        }
+        for (int k = 0; k < of; k++) {
+            if (!shards.containsKey(k)) report.append("Warning: shard ").append(k).append(" of ").append(of).append(" is missing\n");
+        }
+        if (engines.size() > 1) report.append("Warning: shards ran different engine versions ").append(engines).append('\n');
+
+        int equivalent = 0;
+        int reused = 0;
+        List<Long> times = new ArrayList<>();
+        StringBuilder csv = new StringBuilder("id,shard,equivalent,stage,ms,reused\n");
+        for (JSONObject row : pairs.values()) {
+            boolean eq = row.optBoolean("equivalent");
+            if (eq) equivalent++;
+            if (row.optBoolean("reused")) reused++;
+            if (row.optLong("ms", -1) >= 0) times.add(row.optLong("ms"));
+            String stage = row.optString("stage");
+            stages.merge((eq ? "" : "not equivalent/") + stage, 1, Integer::sum);
+            csv.append(String.join(",", row.optString("id"), String.valueOf(shardOf.get(row.optString("id"))),
+                String.valueOf(eq), stage, String.valueOf(row.optLong("ms")), String.valueOf(row.optBoolean("reused")))).append('\n');
+        }
+        Files.writeString(dir.resolve("results.csv"), csv, StandardCharsets.UTF_8);
+
+        long[] sorted = times.stream().mapToLong(Long::longValue).sorted().toArray();
+        long total = Arrays.stream(sorted).sum();
+        long maxWall = shardWalls.stream().mapToLong(Long::longValue).max().orElse(0);
+        double meanWall = shardWalls.stream().mapToLong(Long::longValue).average().orElse(0);
+
+        report.append(String.format(Locale.ROOT, "Shards: %d of %d present, %d complete; engine %s%n",
+            shards.size(), of, complete, String.join(",", engines)));
+        report.append(String.format(Locale.ROOT, "Pairs: %d, equivalent %d, not equivalent %d, reused from manifest %d%n",
+            pairs.size(), equivalent, pairs.size() - equivalent, reused));
+        report.append("By stage: ").append(stages).append('\n');
+        if (sorted.length > 0) {
+            report.append(String.format(Locale.ROOT, "Pair time ms: total %d  mean %d  p50 %d  p95 %d  max %d%n",
+                total, total / sorted.length, percentile(sorted, 50), percentile(sorted, 95), sorted[sorted.length - 1]));
+        }
+        report.append(String.format(Locale.ROOT, "Shard wall ms: max %d  mean %.0f  imbalance %.2f%n",
+            maxWall, meanWall, meanWall == 0 ? 1.0 : maxWall / meanWall));
+        report.append(perShard);
+        List<JSONObject> slowest = new ArrayList<>(pairs.values());
+        slowest.sort(Comparator.comparingLong((JSONObject r) -> r.optLong("ms")).reversed());
+        report.append("Slowest pairs:");
+        for (JSONObject r : slowest.subList(0, Math.min(10, slowest.size()))) {
+            report.append(' ').append(r.optString("id")).append(" (").append(r.optLong("ms")).append(" ms)");
+        }
+        return report.append('\n').toString();
+    }
+
+    private static void write(Path file, JSONObject content)
+    {
+        try {
+            Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), "shard", ".tmp");
+            Files.writeString(tmp, content.toString(2), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[ShardRunner] Unable to write " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static String hostName()
+    {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            String env = System.getenv("HOSTNAME");
+            return env == null ? "unknown" : env;
+        }
+    }
+
+    private static long percentile(long[] sorted, int p)
+    {
+        int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+}
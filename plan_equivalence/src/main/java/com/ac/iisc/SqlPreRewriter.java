@@ -0,0 +1,300 @@
+package com.ac.iisc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.calcite.sql.SqlBasicCall;
+import org.apache.calcite.sql.SqlCall;
+import org.apache.calcite.sql.SqlFunction;
+import org.apache.calcite.sql.SqlIdentifier;
+import org.apache.calcite.sql.SqlJoin;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.SqlNode;
+import org.apache.calcite.sql.SqlNodeList;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.SqlSelect;
+import org.apache.calcite.sql.fun.SqlCase;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.sql.parser.SqlParserPos;
+import org.apache.calcite.sql.util.SqlShuttle;
+import org.apache.calcite.util.Util;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Dialect compatibility rewrites applied to the parsed {@link SqlNode}
+ * before validation.
+ *
+ * <p>Benchmark SQL is written for PostgreSQL. A few constructs either do not
+ * validate in Calcite or trip over operator definitions in Calcite 1.36, so
+ * {@link Calcite#getOptimizedRelNode} rewrites them once, on the AST, in a
+ * single bottom-up {@link SqlShuttle} pass:</p>
+ * <ul>
+ *   <li>{@code substr} – {@code SUBSTR(...)} becomes the built-in
+ *       {@code SUBSTRING(...)} (a PostgreSQL synonym); the library SUBSTR
+ *       definition can fail type coercion with a ClassCastException.</li>
+ *   <li>{@code least_greatest} – {@code LEAST}/{@code GREATEST} become
+ *       {@code CASE} expressions, in case the operator table does not
+ *       provide them.</li>
+ *   <li>{@code group_by_alias} – SELECT-list aliases used in the GROUP BY of
+ *       the same SELECT (at any nesting level) are replaced by the aliased
+ *       expression. PostgreSQL resolves a GROUP BY name that is also an input
+ *       column as that column, so aliases that collide with a column of the
+ *       SELECT's FROM clause are left alone, and so is every alias of a SELECT
+ *       whose input columns are not known (base-table columns come from the
+ *       schema summary, {@link FileIO#readSchemaSummary()}).</li>
+ * </ul>
+ * <p>{@code !=} needs no rewrite: the parser accepts it under the BABEL
+ * conformance set in {@link CalciteUtil#getFrameworkConfig()}. Because the
+ * rewrites work on the AST, string literals and quoted identifiers are never
+ * touched.</p>
+ *
+ * <p>Further rewrites can be added with {@link #register(String, Rewrite)};
+ * they run in registration order on every call after its operands have been
+ * rewritten.</p>
+ */
+public final class SqlPreRewriter
+{
+    /** One AST rewrite; returns {@code call} itself when it does not apply. */
+    @FunctionalInterface
+    public interface Rewrite
+    {
+        SqlNode apply(SqlCall call);
+    }
+
+    private record Entry(String name, Rewrite rewrite) { }
+
+    private static final List<Entry> REWRITES = new CopyOnWriteArrayList<>();
+
+    /** Base-table columns for {@code group_by_alias}, loaded on first use. */
+    private static volatile Map<String, Set<String>> tableColumns;
+
+    static {
+        register("substr", SqlPreRewriter::substrToSubstring);
+        register("least_greatest", SqlPreRewriter::leastGreatestToCase);
+        register("group_by_alias", SqlPreRewriter::expandGroupByAliases);
+    }
+
+    private SqlPreRewriter() { }
+
+    /**
+     * Add a rewrite under {@code name}, replacing an existing one with the
+     * same name (in place, keeping its position).
+     */
+    public static synchronized void register(String name, Rewrite rewrite)
+    {
+        if (name == null || name.isBlank() || rewrite == null) {
+            throw new IllegalArgumentException("Rewrite name and function are required");
+        }
+        Entry entry = new Entry(name, rewrite);
+        for (int i = 0; i < REWRITES.size(); i++) {
+            if (REWRITES.get(i).name().equals(name)) {
+                REWRITES.set(i, entry);
+                return;
+            }
+        }
+        REWRITES.add(entry);
+    }
+
+    /** Names of the registered rewrites, in the order they are applied. */
+    public static List<String> getRewriteNames()
+    {
+        List<String> names = new ArrayList<>();
+        for (Entry e : REWRITES) names.add(e.name());
+        return names;
+    }
+
+    /** Apply every registered rewrite to {@code node} (null-safe). */
+    public static SqlNode rewrite(SqlNode node)
+    {
+        if (node == null) return null;
+        List<Entry> rewrites = List.copyOf(REWRITES);
+        return node.accept(new SqlShuttle() {
+            @Override
+            public SqlNode visit(SqlCall call)
+            {
+                SqlNode n = super.visit(call);
+                for (Entry e : rewrites) {
+                    if (!(n instanceof SqlCall c)) break;
+                    n = e.rewrite().apply(c);
+                }
+                return n;
+            }
+        });
+    }
+
+    // --- built-in rewrites ---
+
+    private static SqlNode substrToSubstring(SqlCall call)
+    {
+        if (!isFunction(call, "SUBSTR")) return call;
+        int n = call.operandCount();
+        if (n < 2 || n > 3) return call;
+        return SqlStdOperatorTable.SUBSTRING.createCall(call.getParserPosition(), call.getOperandList());
+    }
+
+    /**
+     * {@code LEAST(a, b)} → {@code CASE WHEN a <= b THEN a ELSE b END}
+     * ({@code >=} for GREATEST); more arguments are folded from the left.
+     */
+    private static SqlNode leastGreatestToCase(SqlCall call)
+    {
+        SqlOperator comparator;
+        if (isFunction(call, "LEAST")) comparator = SqlStdOperatorTable.LESS_THAN_OR_EQUAL;
+        else if (isFunction(call, "GREATEST")) comparator = SqlStdOperatorTable.GREATER_THAN_OR_EQUAL;
+        else return call;
+        if (call.operandCount() < 2) return call;
+
+        SqlParserPos pos = call.getParserPosition();
+        SqlNode acc = call.operand(0);
+        for (int i = 1; i < call.operandCount(); i++) {
+            SqlNode b = call.operand(i);
+            // Each operand appears twice; the copies must be distinct nodes for the validator
+            SqlNode when = comparator.createCall(pos, acc, b);
+            acc = SqlCase.createSwitched(pos, null,
+                SqlNodeList.of(when), SqlNodeList.of(acc.clone(acc.getParserPosition())),
+                b.clone(b.getParserPosition()));
+        }
+        return acc;
+    }
+
+    /**
+     * Replace SELECT-list aliases ({@code expr AS alias}) referenced in the
+     * GROUP BY of the same SELECT by a copy of {@code expr}, unless the alias
+     * is also an input column of that SELECT.
+     */
+    private static SqlNode expandGroupByAliases(SqlCall call)
+    {
+        if (!(call instanceof SqlSelect select) || select.getGroup() == null) return call;
+        Set<String> inputs = inputColumns(select.getFrom());
+        if (inputs == null) return call;
+
+        Map<String, SqlNode> aliases = new HashMap<>();
+        for (SqlNode item : select.getSelectList()) {
+            if (item.getKind() != SqlKind.AS) continue;
+            List<SqlNode> ops = ((SqlCall) item).getOperandList();
+            if (ops.size() != 2 || !(ops.get(1) instanceof SqlIdentifier alias) || !alias.isSimple()) continue;
+            SqlNode expr = ops.get(0);
+            // "x AS x" needs no expansion
+            if (expr instanceof SqlIdentifier id && id.isSimple() && id.getSimple().equalsIgnoreCase(alias.getSimple())) continue;
+            String name = alias.getSimple().toLowerCase(Locale.ROOT);
+            // The input column wins, as in PostgreSQL
+            if (inputs.contains(name)) continue;
+            aliases.putIfAbsent(name, expr);
+        }
+        if (aliases.isEmpty()) return call;
+
+        SqlShuttle expand = new SqlShuttle() {
+            @Override
+            public SqlNode visit(SqlIdentifier id)
+            {
+                if (!id.isSimple()) return id;
+                SqlNode expr = aliases.get(id.getSimple().toLowerCase(Locale.ROOT));
+                return expr == null ? id : expr.clone(expr.getParserPosition());
+            }
+
+            @Override
+            public SqlNode visit(SqlCall c)
+            {
+                // Aliases of this SELECT are not visible inside sub-queries
+                return c instanceof SqlSelect ? c : super.visit(c);
+            }
+        };
+        SqlNodeList group = select.getGroup();
+        SqlNode rewritten = group.accept(expand);
+        if (rewritten != group) select.setGroupBy((SqlNodeList) rewritten);
+        return select;
+    }
+
+    /**
+     * Lower-cased names of the columns a FROM clause produces, or null when
+     * they cannot all be known (tables missing from the schema summary, CTE
+     * references, {@code *} in a derived table, table functions).
+     */
+    private static Set<String> inputColumns(SqlNode from)
+    {
+        if (from == null) return Set.of();
+        if (from instanceof SqlIdentifier id) {
+            return tableColumns().get(Util.last(id.names).toLowerCase(Locale.ROOT));
+        }
+        if (from instanceof SqlJoin join) {
+            Set<String> left = inputColumns(join.getLeft());
+            Set<String> right = inputColumns(join.getRight());
+            if (left == null || right == null) return null;
+            Set<String> both = new HashSet<>(left);
+            both.addAll(right);
+            return both;
+        }
+        if (from.getKind() == SqlKind.AS) {
+            List<SqlNode> ops = ((SqlCall) from).getOperandList();
+            // "t AS x (c1, c2)" renames the columns
+            if (ops.size() > 2) {
+                Set<String> renamed = new HashSet<>();
+                for (SqlNode c : ops.subList(2, ops.size())) renamed.add(c.toString().toLowerCase(Locale.ROOT));
+                return renamed;
+            }
+            return inputColumns(ops.get(0));
+        }
+        if (from instanceof SqlSelect sub) {
+            Set<String> names = new HashSet<>();
+            for (SqlNode item : sub.getSelectList()) {
+                if (item.getKind() == SqlKind.AS) {
+                    names.add(((SqlCall) item).operand(1).toString().toLowerCase(Locale.ROOT));
+                } else if (item instanceof SqlIdentifier id) {
+                    if (id.isStar()) return null;
+                    names.add(Util.last(id.names).toLowerCase(Locale.ROOT));
+                }
+                // Other unnamed expressions get generated names (EXPR$n)
+            }
+            return names;
+        }
+        return null;
+    }
+
+    /** Lower-cased table name to lower-cased column names, from the schema summary. */
+    private static Map<String, Set<String>> tableColumns()
+    {
+        Map<String, Set<String>> cached = tableColumns;
+        if (cached != null) return cached;
+        synchronized (SqlPreRewriter.class) {
+            if (tableColumns == null) tableColumns = loadTableColumns();
+            return tableColumns;
+        }
+    }
+
+    /** Parse {@code {TABLE: {cols: [...]}}}; an unreadable summary knows no tables. */
+    private static Map<String, Set<String>> loadTableColumns()
+    {
+        Map<String, Set<String>> out = new HashMap<>();
+        try {
+            String json = FileIO.readSchemaSummary();
+            if (json == null || json.isBlank()) return out;
+            JSONObject root = new JSONObject(json);
+            for (String table : root.keySet()) {
+                JSONObject t = root.optJSONObject(table);
+                JSONArray cols = t == null ? null : t.optJSONArray("cols");
+                if (cols == null) continue;
+                Set<String> names = new HashSet<>();
+                for (int i = 0; i < cols.length(); i++) names.add(cols.getString(i).toLowerCase(Locale.ROOT));
+                out.put(table.toLowerCase(Locale.ROOT), names);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("[SqlPreRewriter] Unable to read the schema summary: " + e.getMessage());
+        }
+        return out;
+    }
+
+    /** True for a call to a function named {@code name}, resolved or not. */
+    private static boolean isFunction(SqlCall call, String name)
+    {
+        return call instanceof SqlBasicCall
+            && call.getOperator() instanceof SqlFunction
+            && call.getOperator().getName().equalsIgnoreCase(name);
+    }
+}
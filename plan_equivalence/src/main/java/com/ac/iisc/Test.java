@@ -1,6 +1,12 @@
 package com.ac.iisc;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.tools.Frameworks;
@@ -98,116 +104,384 @@ public class Test
      */
     public static void main(String[] args) throws Exception
     {
-        for (String id : queryIDList)
-        {
-            String sqlA = FileIO.readOriginalSqlQuery(id);
-            String sqlB = FileIO.readRewrittenSqlQuery(id);
-
-            System.out.println("-----------------------------------------------------");
-            System.out.println("Query ID: " + id);
-
-            boolean equivalence = Calcite.compareQueries(sqlA, sqlB, null);
-            System.out.println("Equivalence without transformations: " + equivalence);
+        LLMMetrics.getShared().startRun();
 
-            //If RelNodes are equivalent, skip LLM call
-            if (equivalence)    continue;
+        // Pairs run concurrently, most expensive first (see PairScheduler); each
+        // pair's output is buffered and printed in one piece when it finishes
+        int parallelism = PairScheduler.configuredParallelism();
+        RunManifest manifest = RunManifest.getShared();
 
-            //ROUND 1 Check
-            LLMResponse llmResponse = LLMEqual.getLLMResponse(sqlA, sqlB);
-            System.out.println("LLM Equivalence A->B 1: " + llmResponse.areQueriesEquivalent());
+        // Optionally run the local ladder in capped child JVMs (see ForkedWorkerPool)
+        ForkedWorkerPool forked = ForkedWorkerPool.isEnabled() ? ForkedWorkerPool.getShared() : null;
+        Map<String, ForkedWorkerPool.Status> isolatedFailures = new ConcurrentHashMap<>();
 
-            if (llmResponse.areQueriesEquivalent())
-                System.out.println("LLM Transformations A->B 1: " + llmResponse.getTransformationSteps());
+        // Pass 1: local checks only; pairs that remain unresolved go to the LLM in pass 2
+        List<String> unresolved = Collections.synchronizedList(new ArrayList<>());
+        Map<String, Long> localMillis = new ConcurrentHashMap<>();
+        PairScheduler.run(PairScheduler.order(queryIDList, manifest), parallelism, id -> {
+            StringBuilder log = new StringBuilder();
+            log.append("-----------------------------------------------------\n");
+            log.append("Query ID: ").append(id).append('\n');
+            try {
+                String sqlA = FileIO.readOriginalSqlQuery(id);
+                String sqlB = FileIO.readRewrittenSqlQuery(id);
 
-            if (llmResponse.getTransformationSteps() != null && llmResponse.getTransformationSteps().size() > 0)
-            {
-                boolean check = Calcite.compareQueries(sqlA, sqlB, llmResponse.getTransformationSteps());
-                System.out.println("Equivalence with transformations: " + check);
-                //If transformations lead to equivalence, skip second LLM call
-                if (check) continue;
-            }
+                //Verdict from an earlier run with the same SQL and engine version
+                RunManifest.Entry previous = manifest.lookup(id, sqlA, sqlB);
+                if (previous != null) {
+                    log.append("Unchanged since ").append(previous.recordedAt()).append(", equivalence (")
+                        .append(previous.stage()).append("): ").append(previous.equivalent()).append('\n');
+                    return;
+                }
 
-            //ROUND 2 check - Only if round 1 gives equivalent but transformations are wrong
-            if (llmResponse.areQueriesEquivalent())
-            {
-                llmResponse = LLMEqual.getLLMResponse(sqlA, sqlB, llmResponse);
-                System.out.println("LLM Equivalence A->B 2: " + llmResponse.areQueriesEquivalent());
-
-                if (llmResponse.areQueriesEquivalent())
-                    System.out.println("LLM Transformations A->B 2: " + llmResponse.getTransformationSteps());
-
-                if (llmResponse.getTransformationSteps() != null && llmResponse.getTransformationSteps().size() > 0)
-                {
-                    boolean check = Calcite.compareQueries(sqlA, sqlB, llmResponse.getTransformationSteps());
-                    System.out.println("Equivalence with transformations: " + check);
-                    //If transformations lead to equivalence, skip second LLM call
-                    if (check) continue;
+                //If RelNodes are equivalent (directly or via cached rule lists), skip LLM call
+                long t0 = System.nanoTime();
+                String stage;
+                if (forked == null) stage = checkLocally(sqlA, sqlB, log);
+                else {
+                    ForkedWorkerPool.Outcome outcome = forked.checkLocally(sqlA, sqlB);
+                    log.append(outcome.log());
+                    if (outcome.status() != ForkedWorkerPool.Status.OK) {
+                        // Not recorded in the manifest, so the next run tries the pair again
+                        log.append("Equivalence without transformations: ").append(outcome.status()).append('\n');
+                        isolatedFailures.put(id, outcome.status());
+                        return;
+                    }
+                    stage = outcome.stage();
+                }
+                long ms = (System.nanoTime() - t0) / 1_000_000;
+                if (stage != null) {
+                    LLMMetrics.getShared().pairResolvedLocally();
+                    manifest.record(id, sqlA, sqlB, true, stage, ms);
+                    return;
                 }
+                localMillis.put(id, ms);
+                unresolved.add(id);
+            } catch (IOException e) {
+                log.append("[Test] Unable to read ").append(id).append(": ").append(e.getMessage()).append('\n');
+            } finally {
+                System.out.print(log);
             }
+        });
 
-            //Repeat round 1 & 2 for B->A
-            llmResponse = LLMEqual.getLLMResponse(sqlB, sqlA);
-            System.out.println("LLM Equivalence B->A 1: " + llmResponse.areQueriesEquivalent());
+        // Pass 2: LLM-assisted checks
+        runLLMPass(List.copyOf(unresolved), parallelism, manifest, localMillis);
 
-            if (llmResponse.areQueriesEquivalent())
-                System.out.println("LLM Transformations B->A 1: " + llmResponse.getTransformationSteps());
+        System.out.println("-----------------------------------------------------");
+        System.out.println(LLMResponseCache.getShared().getStats());
+        System.out.println(LLMMetrics.getShared().getSummary());
+        System.out.println(RunManifest.getShared().getStats());
+        System.out.println(LadderProfile.getShared().getStats());
+        if (!isolatedFailures.isEmpty()) System.out.println("Isolated failures: " + isolatedFailures);
+    }
 
-            if (llmResponse.getTransformationSteps() != null && llmResponse.getTransformationSteps().size() > 0)
+    /**
+     * The LLM pass over {@code ids}: the batch-mode prefetch, then
+     * {@link #checkWithLLM(String, String, StringBuilder)} for every pair,
+     * concurrently. Each pair's output is printed in one piece when it finishes.
+     *
+     * @param manifest     orders the pairs and records their verdicts (may be null)
+     * @param localMillis  time each pair already spent in the local checks
+     * @return the number of pairs resolved
+     */
+    static int runLLMPass(List<String> ids, int parallelism, RunManifest manifest, Map<String, Long> localMillis)
+        throws IOException
+    {
+        // Batch mode: answer the first full-plan request of every pair in
+        // multi-pair requests; the per-pair calls below then hit the response
+        // cache. That is round 1 A->B, for pairs without a localized round 0 (which
+        // comes first and may settle the pair); B->A is only asked if A->B fails.
+        if (LLMBatch.isEnabled() && !ids.isEmpty())
+        {
+            boolean localized = Boolean.parseBoolean(FileIO.getProperty("llm_localized_prompts", "true"));
+            List<LLMBatch.Item> items = new ArrayList<>();
+            for (String id : ids)
             {
-                boolean check = Calcite.compareQueries(sqlB, sqlA, llmResponse.getTransformationSteps());
-                System.out.println("Equivalence with transformations: " + check);
-                //If transformations lead to equivalence, skip second LLM call
-                if (check) continue;
+                String sqlA = FileIO.readOriginalSqlQuery(id);
+                String sqlB = FileIO.readRewrittenSqlQuery(id);
+                if (localized && localizedDiff(sqlA, sqlB) != null) continue;
+                items.add(new LLMBatch.Item(id + ":A->B", sqlA, sqlB));
             }
+            if (!items.isEmpty()) LLMBatch.getLLMResponses(items);
+        }
 
-            //ROUND 2 check - Only if round 1 gives equivalent but transformations are wrong
-            if (llmResponse.areQueriesEquivalent())
-            {
-                llmResponse = LLMEqual.getLLMResponse(sqlB, sqlA, llmResponse);
-                System.out.println("LLM Equivalence B->A 2: " + llmResponse.areQueriesEquivalent());
-
-                if (llmResponse.areQueriesEquivalent())
-                    System.out.println("LLM Transformations B->A 2: " + llmResponse.getTransformationSteps());
-
-                if (llmResponse.getTransformationSteps() != null && llmResponse.getTransformationSteps().size() > 0)
-                {
-                    boolean check = Calcite.compareQueries(sqlB, sqlA, llmResponse.getTransformationSteps());
-                    System.out.println("Equivalence with transformations: " + check);
-                    //If transformations lead to equivalence, skip second LLM call
-                    if (check) continue;
+        AtomicInteger resolved = new AtomicInteger();
+        PairScheduler.run(PairScheduler.order(ids, manifest), parallelism, id -> {
+            StringBuilder log = new StringBuilder();
+            log.append("-----------------------------------------------------\n");
+            log.append("Query ID (LLM): ").append(id).append('\n');
+            try {
+                String sqlA = FileIO.readOriginalSqlQuery(id);
+                String sqlB = FileIO.readRewrittenSqlQuery(id);
+
+                long t0 = System.nanoTime();
+                Boolean equivalence = checkWithLLM(sqlA, sqlB, log);
+                long ms = localMillis.getOrDefault(id, 0L) + (System.nanoTime() - t0) / 1_000_000;
+                if (Boolean.TRUE.equals(equivalence)) {
+                    resolved.incrementAndGet();
+                    LLMMetrics.getShared().pairResolved();
                 }
+                // Without an LLM answer the pair has no verdict; leave it for a later run
+                if (manifest != null && equivalence != null) manifest.record(id, sqlA, sqlB, equivalence, "llm", ms);
+            } catch (Exception e) {
+                log.append("[Test] LLM check of ").append(id).append(" failed: ").append(e.getMessage()).append('\n');
+            } finally {
+                System.out.print(log);
             }
-            
-            //If still false, we try to get A -> X then B -> X transformations and check if they lead to same RelNode
-            llmResponse = LLMEqual.getLLMResponse(sqlA, sqlB);
-            System.out.println("LLM Equivalence A->X: " + llmResponse.areQueriesEquivalent());
+        });
+        return resolved.get();
+    }
 
-            if (!llmResponse.areQueriesEquivalent()) continue;
+    /**
+     * Checks that need no LLM: the Calcite comparison ladder, then rule lists
+     * that resolved pairs with the same kind of difference before (both
+     * directions). Output is appended to {@code log}.
+     *
+     * @return the deciding stage ({@code "calcite"} or {@code "rule_cache"}), or null if unresolved
+     */
+    static String checkLocally(String sqlA, String sqlB, StringBuilder log)
+    {
+        boolean equivalence = Calcite.compareQueries(sqlA, sqlB, null);
+        log.append("Equivalence without transformations: " + equivalence).append('\n');
+        if (equivalence) return "calcite";
 
-            //Perform transformation-based equivalence check only if transformations are provided
-            System.out.println("LLM Transformations (A to X): " + llmResponse.getTransformationSteps());
-            RelNode intermediateRel = Calcite.getOptimizedRelNode(Frameworks.getPlanner(Calcite.getFrameworkConfig()), sqlA);
-            String intermediateSql = Calcite.relNodeToSql(intermediateRel);
-            llmResponse = LLMEqual.getLLMResponse(sqlB, intermediateSql);
-            System.out.println("LLM Equivalence 2 B->X: " + llmResponse.areQueriesEquivalent());
+        List<String> cachedRules = RuleSequenceCache.getShared().tryCached(sqlA, sqlB);
+        if (cachedRules != null) {
+            log.append("Cached transformations (A to B): " + cachedRules + "\nEquivalence: true").append('\n');
+            return "rule_cache";
+        }
+        cachedRules = RuleSequenceCache.getShared().tryCached(sqlB, sqlA);
+        if (cachedRules != null) {
+            log.append("Cached transformations (B to A): " + cachedRules + "\nEquivalence: true").append('\n');
+            return "rule_cache";
+        }
+        return null;
+    }
 
-            if (!llmResponse.areQueriesEquivalent()) continue;
+    /**
+     * LLM rounds for one pair: A->B and B->A, then A->X and B->X through an
+     * intermediate plan X. Output is appended to {@code log}.
+     *
+     * @return true if some LLM-proposed transformations were verified, false if
+     *         not, or null if no LLM round was answered (no API key, plans
+     *         unavailable, empty responses)
+     */
+    static Boolean checkWithLLM(String sqlA, String sqlB, StringBuilder log) throws Exception
+    {
+        boolean equivalence;
 
-            System.out.println("LLM Transformations (B to X): " + llmResponse.getTransformationSteps());
-            equivalence = Calcite.compareQueries(sqlB, intermediateSql, llmResponse.getTransformationSteps());
-            System.out.println("Equivalence: " + equivalence);
+        // ROUND 1 & 2 for A->B, then for B->A. B->A starts only once A->B has
+        // failed, so a pair resolved by A->B pays for no B->A requests
+        // (pairs themselves already run concurrently, see PairScheduler).
+        Boolean forward = checkDirection("A->B", sqlA, sqlB, log);
+        if (Boolean.TRUE.equals(forward)) return true;
+        Boolean backward = checkDirection("B->A", sqlB, sqlA, log);
+        if (Boolean.TRUE.equals(backward)) return true;
+        boolean answered = forward != null || backward != null;
 
-            if (!equivalence)
-            {
-                llmResponse = LLMEqual.getLLMResponse(sqlB, intermediateSql, llmResponse);
-                System.out.println("LLM Equivalence 2 B->X: " + llmResponse.areQueriesEquivalent());
+        //If still false, we try to get A -> X then B -> X transformations and check if they lead to same RelNode
+        LLMResponse llmResponse = LLMEqual.getLLMResponse(sqlA, sqlB);
+        if (llmResponse == null) return answered ? false : null;
+        log.append("LLM Equivalence A->X: " + llmResponse.areQueriesEquivalent()).append('\n');
+
+        if (!llmResponse.areQueriesEquivalent()) return false;
+
+        //Perform transformation-based equivalence check only if transformations are provided
+        log.append("LLM Transformations (A to X): " + llmResponse.getTransformationSteps()).append('\n');
+        RelNode intermediateRel = Calcite.getOptimizedRelNode(Frameworks.getPlanner(Calcite.getFrameworkConfig()), sqlA);
+        // Normalized once: rendering to SQL and both comparisons below reuse it
+        NormalizedPlan intermediate = Calcite.normalize(intermediateRel);
+        String intermediateSql = Calcite.relNodeToSql(intermediate);
+        llmResponse = LLMEqual.getLLMResponse(sqlB, intermediateSql);
+        if (llmResponse == null) return false;
+        log.append("LLM Equivalence 2 B->X: " + llmResponse.areQueriesEquivalent()).append('\n');
+
+        if (!llmResponse.areQueriesEquivalent()) return false;
+
+        log.append("LLM Transformations (B to X): " + llmResponse.getTransformationSteps()).append('\n');
+        equivalence = verify(Verification.INTERMEDIATE, sqlB, sqlA, llmResponse.getTransformationSteps(), intermediate, log).isEquivalent();
+        log.append("Equivalence: " + equivalence).append('\n');
+
+        if (!equivalence)
+        {
+            llmResponse = LLMEqual.getLLMResponse(sqlB, intermediateSql, llmResponse);
+            if (llmResponse == null) return false;
+            log.append("LLM Equivalence 2 B->X: " + llmResponse.areQueriesEquivalent()).append('\n');
+
+            if (!llmResponse.areQueriesEquivalent()) return false;
+
+            log.append("LLM Transformations (B to X): " + llmResponse.getTransformationSteps()).append('\n');
+            equivalence = verify(Verification.INTERMEDIATE, sqlB, sqlA, llmResponse.getTransformationSteps(), intermediate, log).isEquivalent();
+            log.append("Equivalence: " + equivalence).append('\n');
+        }
+        return equivalence;
+    }
+
+    /**
+     * Run LLM rounds 1 and 2 for one direction ({@code from} -> {@code to}).
+     * Output is appended to {@code log}.
+     *
+     * @return true if LLM-proposed transformations made the queries equivalent,
+     *         false if not, or null if no round was answered
+     */
+    private static Boolean checkDirection(String label, String from, String to, StringBuilder log) throws Exception
+    {
+        //ROUND 0 check - ask about the differing subtrees only, when they can be localized
+        Boolean localized = null;
+        if (Boolean.parseBoolean(FileIO.getProperty("llm_localized_prompts", "true")))
+            localized = checkLocalized(label, from, to, log);
+        if (Boolean.TRUE.equals(localized)) return true;
 
-                if (!llmResponse.areQueriesEquivalent()) continue;
+        //ROUND 1 Check
+        LLMResponse llmResponse = LLMEqual.getLLMResponse(from, to);
+        if (llmResponse == null) return localized;
+        log.append("LLM Equivalence ").append(label).append(" 1: ").append(llmResponse.areQueriesEquivalent()).append('\n');
 
-                System.out.println("LLM Transformations (B to X): " + llmResponse.getTransformationSteps());
-                equivalence = Calcite.compareQueries(sqlB, intermediateSql, llmResponse.getTransformationSteps());
-                System.out.println("Equivalence: " + equivalence);
+        if (llmResponse.areQueriesEquivalent())
+            log.append("LLM Transformations ").append(label).append(" 1: ").append(llmResponse.getTransformationSteps()).append('\n');
+
+        if (llmResponse.getTransformationSteps() != null && llmResponse.getTransformationSteps().size() > 0)
+        {
+            //Full list, prefixes and single rules on either side, in parallel
+            TransformationVerifier.Result check = verify(Verification.FULL, from, to, llmResponse.getTransformationSteps(), null, log);
+            log.append("Equivalence with transformations: ").append(check).append('\n');
+            //If transformations lead to equivalence, skip second LLM call
+            if (check.isEquivalent()) {
+                learn(from, to, check);
+                return true;
             }
-        } 
+        }
+
+        //ROUND 2 check - Only if round 1 gives equivalent but transformations are wrong
+        if (!llmResponse.areQueriesEquivalent()) return false;
+
+        llmResponse = LLMEqual.getLLMResponse(from, to, llmResponse);
+        if (llmResponse == null) return false;
+        log.append("LLM Equivalence ").append(label).append(" 2: ").append(llmResponse.areQueriesEquivalent()).append('\n');
+
+        if (llmResponse.areQueriesEquivalent())
+            log.append("LLM Transformations ").append(label).append(" 2: ").append(llmResponse.getTransformationSteps()).append('\n');
+
+        if (llmResponse.getTransformationSteps() != null && llmResponse.getTransformationSteps().size() > 0)
+        {
+            TransformationVerifier.Result check = verify(Verification.FULL, from, to, llmResponse.getTransformationSteps(), null, log);
+            log.append("Equivalence with transformations: ").append(check).append('\n');
+            if (check.isEquivalent()) learn(from, to, check);
+            return check.isEquivalent();
+        }
+        return false;
+    }
+
+    /** The checks of LLM-proposed transformations, which can run in a {@link ForkedWorkerPool} child. */
+    public enum Verification
+    {
+        /** {@link TransformationVerifier#verify} of the steps for A and B. */
+        FULL,
+        /** The steps applied to the {@link PlanDiff} subtrees of A and B ({@link #localizedDiff}). */
+        LOCALIZED,
+        /** The steps applied to A, compared with the normalized plan of B (the intermediate X). */
+        INTERMEDIATE
+    }
+
+    /**
+     * Run {@code kind} in a forked worker when they are enabled (a timed-out
+     * or crashed check counts as not equivalent), else in this JVM. Output is
+     * appended to {@code log}.
+     *
+     * @param intermediate normalized plan of {@code b} for {@link Verification#INTERMEDIATE}
+     *                     in this JVM (null to build it)
+     */
+    private static TransformationVerifier.Result verify(Verification kind, String a, String b, List<String> steps,
+                                                        NormalizedPlan intermediate, StringBuilder log) throws Exception
+    {
+        if (!ForkedWorkerPool.isEnabled()) return runVerification(kind, a, b, steps, intermediate);
+        ForkedWorkerPool.Verdict verdict = ForkedWorkerPool.getShared().verify(kind, a, b, steps);
+        log.append(verdict.log());
+        if (verdict.status() == ForkedWorkerPool.Status.OK) return verdict.result();
+        log.append("Verification (").append(kind).append("): ").append(verdict.status()).append('\n');
+        return new TransformationVerifier.Result(false, List.of(), false, 0);
+    }
+
+    /**
+     * Check {@code steps} as {@code kind} says, in this JVM.
+     *
+     * @param intermediate normalized plan of {@code b} for {@link Verification#INTERMEDIATE}
+     *                     (null to build it)
+     */
+    static TransformationVerifier.Result runVerification(Verification kind, String a, String b, List<String> steps,
+                                                         NormalizedPlan intermediate) throws Exception
+    {
+        boolean ok;
+        switch (kind) {
+            case FULL:
+                return TransformationVerifier.verify(a, b, steps);
+            case LOCALIZED:
+                PlanDiff.Result diff = localizedDiff(a, b);
+                ok = diff != null && Calcite.compareQueries(diff.getLeft(), diff.getRight(), steps);
+                break;
+            case INTERMEDIATE:
+                NormalizedPlan x = intermediate != null ? intermediate
+                    : Calcite.normalize(Calcite.getOptimizedRelNode(Frameworks.getPlanner(Calcite.getFrameworkConfig()), b));
+                ok = Calcite.compareQueries(a, Calcite.relNodeToSql(x), x, steps);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown verification " + kind);
+        }
+        return new TransformationVerifier.Result(ok, ok ? List.copyOf(steps) : List.of(), false, 1);
+    }
+
+    /** Record the winning variant of a verification in the rule-sequence cache. */
+    private static void learn(String from, String to, TransformationVerifier.Result check)
+    {
+        if (check.isReversed()) RuleSequenceCache.getShared().learn(to, from, check.getRules());
+        else RuleSequenceCache.getShared().learn(from, to, check.getRules());
+    }
+
+    /**
+     * Localize the difference between the two optimized plans with
+     * {@link PlanDiff} and ask the LLM about those subtrees only. Everything
+     * above the subtrees is identical, so transformations that make the
+     * subtrees equivalent make the whole queries equivalent.
+     *
+     * @return true if the subtree transformations were verified, false if
+     *         not, or null if there was no round 0 or it was not answered
+     */
+    private static Boolean checkLocalized(String label, String from, String to, StringBuilder log) throws Exception
+    {
+        PlanDiff.Result diff = localizedDiff(from, to);
+        if (diff == null) return null;
+
+        LLMResponse llmResponse = LLMEqual.getLocalizedLLMResponse(diff);
+        if (llmResponse == null) return null;
+        log.append("LLM Equivalence ").append(label).append(" 0 (subtree at ").append(diff.getPath()).append("): ")
+            .append(llmResponse.areQueriesEquivalent()).append('\n');
+
+        List<String> steps = llmResponse.getTransformationSteps();
+        if (!llmResponse.areQueriesEquivalent() || steps == null || steps.isEmpty()) return false;
+
+        log.append("LLM Transformations ").append(label).append(" 0: ").append(steps).append('\n');
+        boolean check = verify(Verification.LOCALIZED, from, to, steps, null, log).isEquivalent();
+        log.append("Equivalence with subtree transformations: ").append(check).append('\n');
+        if (check) RuleSequenceCache.getShared().learn(from, to, steps);
+        return check;
+    }
+
+    /**
+     * The differing subtrees of {@code from} and {@code to} for a round-0
+     * prompt, or null if there is no such round: the plans cannot be built,
+     * are identical, or already differ at their roots (nothing is gained over
+     * the full-plan prompt then).
+     */
+    private static PlanDiff.Result localizedDiff(String from, String to)
+    {
+        PlanDiff.Result diff;
+        try {
+            RelNode relFrom = Calcite.getOptimizedRelNode(Frameworks.getPlanner(Calcite.getFrameworkConfig()), from);
+            RelNode relTo = Calcite.getOptimizedRelNode(Frameworks.getPlanner(Calcite.getFrameworkConfig()), to);
+            diff = PlanDiff.localize(relFrom, relTo);
+        } catch (Exception e) {
+            return null;
+        }
+        return diff == null || diff.isRoot() ? null : diff;
     }
 }
@@ -0,0 +1,185 @@
+package com.ac.iisc;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Speculative, parallel check of an LLM-proposed transformation list.
+ *
+ * <p>{@link Calcite#compareQueries(String, String, List)} applies the whole
+ * list once to the left plan. LLM answers are often nearly right: one extra
+ * rule, a list that only works up to some point, or rules meant for the
+ * other side. {@link #verify(String, String, List)} therefore tries, in
+ * parallel on a fork-join pool:</p>
+ * <ul>
+ *   <li>the full list,</li>
+ *   <li>every proper prefix (longest first),</li>
+ *   <li>every single rule,</li>
+ * </ul>
+ * <p>each applied to A (compared with B) and to B (compared with A). The
+ * first variant that proves equivalence wins. Variants that have not started
+ * yet are skipped, and running ones are interrupted, which makes
+ * {@code compareQueries} stop at its next ladder stage. Each variant plans
+ * both queries afresh, so no Calcite planner or metadata state is shared
+ * between threads.</p>
+ *
+ * <p>Configuration keys in {@code config.properties}:</p>
+ * <ul>
+ *   <li>{@code verify_speculative} – {@code true}/{@code false} (default true);
+ *       false applies only the full list to A, as before.</li>
+ *   <li>{@code verify_parallelism} – pool size, 0 = available processors (default 0).</li>
+ * </ul>
+ */
+public final class TransformationVerifier
+{
+    private static volatile ForkJoinPool pool;
+
+    private TransformationVerifier() { }
+
+    /** Outcome of {@link #verify(String, String, List)}. */
+    public static final class Result
+    {
+        private final boolean equivalent;
+        private final List<String> rules;
+        private final boolean reversed;
+        private final int variantsRun;
+
+        Result(boolean equivalent, List<String> rules, boolean reversed, int variantsRun)
+        {
+            this.equivalent = equivalent;
+            this.rules = rules;
+            this.reversed = reversed;
+            this.variantsRun = variantsRun;
+        }
+
+        public boolean isEquivalent() { return equivalent; }
+
+        /** Rules of the winning variant (empty when not equivalent). */
+        public List<String> getRules() { return rules; }
+
+        /** True if the winning rules were applied to B rather than A. */
+        public boolean isReversed() { return reversed; }
+
+        /** Variants that were actually compared before the check finished. */
+        public int getVariantsRun() { return variantsRun; }
+
+        @Override
+        public String toString()
+        {
+            return equivalent
+                ? "equivalent via " + rules + (reversed ? " applied to B" : " applied to A") + " (" + variantsRun + " variants run)"
+                : "not equivalent (" + variantsRun + " variants run)";
+        }
+    }
+
+    /** One candidate: {@code rules} applied to A ({@code reversed=false}) or to B. */
+    private record Variant(List<String> rules, boolean reversed) { }
+
+    /**
+     * Check whether some variant of {@code steps} makes {@code sqlA} and
+     * {@code sqlB} equivalent.
+     */
+    public static Result verify(String sqlA, String sqlB, List<String> steps)
+    {
+        if (steps == null || steps.isEmpty()) {
+            return new Result(Calcite.compareQueries(sqlA, sqlB, null), List.of(), false, 1);
+        }
+        if (!Boolean.parseBoolean(FileIO.getProperty("verify_speculative", "true"))) {
+            boolean ok = Calcite.compareQueries(sqlA, sqlB, steps);
+            return new Result(ok, ok ? List.copyOf(steps) : List.of(), false, 1);
+        }
+
+        List<Variant> variants = variants(steps);
+        CompletableFuture<Variant> winner = new CompletableFuture<>();
+        AtomicInteger run = new AtomicInteger();
+        // Threads running a variant right now; interrupted (under the lock, so
+        // never after they moved on to other work) once a winner is found
+        Set<Thread> running = new HashSet<>();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(variants.size());
+        ForkJoinPool p = getPool();
+        for (Variant v : variants) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                synchronized (running) {
+                    if (winner.isDone()) return;
+                    running.add(Thread.currentThread());
+                }
+                try {
+                    run.incrementAndGet();
+                    boolean ok = v.reversed()
+                        ? Calcite.compareQueries(sqlB, sqlA, v.rules())
+                        : Calcite.compareQueries(sqlA, sqlB, v.rules());
+                    if (ok) winner.complete(v);
+                } finally {
+                    synchronized (running) {
+                        running.remove(Thread.currentThread());
+                    }
+                    // Clear an interrupt aimed at this variant before the pool thread is reused
+                    Thread.interrupted();
+                }
+            }, p));
+        }
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+            .whenComplete((ignored, ex) -> winner.complete(null));
+
+        Variant found = winner.join();
+        synchronized (running) {
+            for (Thread t : running) t.interrupt();
+        }
+        for (CompletableFuture<Void> t : tasks) t.cancel(false);
+        return found == null
+            ? new Result(false, List.of(), false, run.get())
+            : new Result(true, found.rules(), found.reversed(), run.get());
+    }
+
+    /**
+     * Full list, proper prefixes (longest first) and single rules, each for
+     * A and for B, without duplicates. The full list is submitted first since
+     * it is the LLM's actual answer.
+     */
+    private static List<Variant> variants(List<String> steps)
+    {
+        Set<List<String>> lists = new LinkedHashSet<>();
+        lists.add(List.copyOf(steps));
+        for (int n = steps.size() - 1; n >= 1; n--) lists.add(List.copyOf(steps.subList(0, n)));
+        for (String rule : steps) lists.add(List.of(rule));
+
+        List<Variant> out = new ArrayList<>(lists.size() * 2);
+        for (List<String> rules : lists) {
+            out.add(new Variant(rules, false));
+            out.add(new Variant(rules, true));
+        }
+        return out;
+    }
+
+    private static ForkJoinPool getPool()
+    {
+        ForkJoinPool p = pool;
+        if (p == null) {
+            synchronized (TransformationVerifier.class) {
+                p = pool;
+                if (p == null) {
+                    int n;
+                    try {
+                        n = Integer.parseInt(FileIO.getProperty("verify_parallelism", "0").trim());
+                    } catch (NumberFormatException e) {
+                        n = 0;
+                    }
+                    if (n <= 0) n = Runtime.getRuntime().availableProcessors();
+                    p = new ForkJoinPool(n, fjp -> {
+                        var t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(fjp);
+                        t.setName("verify-" + t.getPoolIndex());
+                        return t;
+                    }, null, false);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+}